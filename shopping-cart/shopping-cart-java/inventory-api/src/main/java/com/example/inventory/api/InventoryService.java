@@ -7,6 +7,8 @@ import com.lightbend.lagom.javadsl.api.Service;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.transport.Method;
 
+import java.util.Optional;
+
 import static com.lightbend.lagom.javadsl.api.Service.named;
 import static com.lightbend.lagom.javadsl.api.Service.restCall;
 
@@ -19,8 +21,11 @@ import static com.lightbend.lagom.javadsl.api.Service.restCall;
 public interface InventoryService extends Service {
     /**
      * Get the inventory level for the given product id.
+     * <p>
+     * The level is read from a cache of each node, so it may not include the latest changes made through the other
+     * nodes, unless {@code exact} is true.
      */
-    ServiceCall<NotUsed, Integer> get(String productId);
+    ServiceCall<NotUsed, Integer> get(String productId, Optional<Boolean> exact);
 
     /**
      * Add inventory to the given product id.
@@ -31,7 +36,7 @@ public interface InventoryService extends Service {
     default Descriptor descriptor() {
         return named("inventory")
                 .withCalls(
-                        restCall(Method.GET, "/inventory/:productId", this::get),
+                        restCall(Method.GET, "/inventory/:productId?exact", this::get),
                         restCall(Method.POST, "/inventory/:productId", this::add)
                 )
                 .withAutoAcl(true);
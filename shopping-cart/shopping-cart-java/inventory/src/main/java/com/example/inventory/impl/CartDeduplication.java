@@ -0,0 +1,283 @@
+package com.example.inventory.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.typesafe.config.Config;
+import lombok.Value;
+import org.pcollections.HashTreePSet;
+import org.pcollections.PSequence;
+import org.pcollections.PSet;
+import org.pcollections.TreePVector;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The checked out carts whose items were already removed from an inventory, so that the carts redelivered by the
+ * shopping cart topic are not removed twice.
+ * <p>
+ * The last {@code max-recent-carts} carts checked out within {@code window} of the last one are remembered exactly.
+ * The older ones are added to Bloom filters, the first one sized for {@code max-recent-carts} carts and each next one
+ * for twice as many, up to the carts expected during {@code replay-horizon}, so that a busy product has large
+ * filters while a quiet one keeps small ones. A filter is forgotten once its carts were all checked out more than
+ * {@code replay-horizon} before the last one, and at most {@link #MAX_FILTERS} are kept whatever the rate. So a cart
+ * checked out after all the carts of the filters is only skipped if it was removed already, while an older cart is
+ * skipped if it may have been removed already, with a false positive rate of about {@code false-positive-rate} per
+ * filter.
+ */
+@JsonDeserialize
+final class CartDeduplication {
+
+    /**
+     * The settings of the {@code inventory.deduplication} section of the config.
+     */
+    @Value
+    static final class Settings {
+        public final Duration window;
+        public final int maxRecentCarts;
+        public final Duration replayHorizon;
+        public final double falsePositiveRate;
+        /**
+         * The number of carts expected during the replay horizon, which the largest filters are sized for.
+         */
+        public final int maxFilterCarts;
+
+        Settings(Duration window, int maxRecentCarts, Duration replayHorizon, double expectedCartsPerMinute,
+                 double falsePositiveRate) {
+            Preconditions.checkArgument(maxRecentCarts > 0, "max-recent-carts must be positive");
+            Preconditions.checkArgument(replayHorizon.compareTo(window) >= 0, "replay-horizon must not be shorter than the window");
+            Preconditions.checkArgument(expectedCartsPerMinute > 0, "expected-carts-per-minute must be positive");
+            Preconditions.checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "false-positive-rate must be between 0 and 1");
+            this.window = window;
+            this.maxRecentCarts = maxRecentCarts;
+            this.replayHorizon = replayHorizon;
+            this.falsePositiveRate = falsePositiveRate;
+            this.maxFilterCarts = Math.toIntExact(Math.max(maxRecentCarts,
+                    (long) Math.ceil(expectedCartsPerMinute * replayHorizon.getSeconds() / 60)));
+        }
+
+        static Settings fromConfig(Config config) {
+            Config deduplication = config.getConfig("inventory.deduplication");
+            return new Settings(deduplication.getDuration("window"),
+                    deduplication.getInt("max-recent-carts"),
+                    deduplication.getDuration("bloom-filter.replay-horizon"),
+                    deduplication.getDouble("bloom-filter.expected-carts-per-minute"),
+                    deduplication.getDouble("bloom-filter.false-positive-rate"));
+        }
+    }
+
+    static final int MAX_FILTERS = 8;
+
+    /**
+     * The carts remembered exactly, in the order they were removed.
+     */
+    public final PSequence<RemovedCart> recentCarts;
+
+    /**
+     * The Bloom filters of the older carts, the last one first.
+     */
+    public final PSequence<CartFilter> olderCarts;
+
+    @JsonIgnore
+    private final PSet<String> recentCartIds;
+
+    @JsonIgnore
+    private final Instant lastCheckout;
+
+    @JsonCreator
+    CartDeduplication(List<RemovedCart> recentCarts, List<CartFilter> olderCarts) {
+        this.recentCarts = recentCarts == null ? TreePVector.empty() : TreePVector.from(recentCarts);
+        this.olderCarts = olderCarts == null ? TreePVector.empty() : TreePVector.from(olderCarts);
+        this.recentCartIds = HashTreePSet.from(this.recentCarts.stream().map(cart -> cart.cartId).collect(Collectors.toList()));
+        this.lastCheckout = this.recentCarts.stream().map(cart -> cart.checkoutDate).max(Instant::compareTo).orElse(Instant.MIN);
+    }
+
+    private CartDeduplication(PSequence<RemovedCart> recentCarts, PSet<String> recentCartIds, Instant lastCheckout,
+                              PSequence<CartFilter> olderCarts) {
+        this.recentCarts = recentCarts;
+        this.recentCartIds = recentCartIds;
+        this.lastCheckout = lastCheckout;
+        this.olderCarts = olderCarts;
+    }
+
+    static final CartDeduplication EMPTY = new CartDeduplication(TreePVector.empty(), TreePVector.empty());
+
+    /**
+     * Whether the items of the given cart were already removed, or may have been if it was checked out before one of
+     * the carts of the Bloom filters.
+     */
+    boolean isRemoved(String cartId, Instant checkoutDate, Settings settings) {
+        if (recentCartIds.contains(cartId)) {
+            return true;
+        }
+        // the carts checked out after all the carts of the filters are all remembered exactly
+        return olderCarts.stream().anyMatch(filter ->
+                !checkoutDate.isAfter(filter.newestCheckout) && filter.mightContain(cartId));
+    }
+
+    /**
+     * Remembers that the items of the given cart were removed, see {@link #removed(List, Settings)}.
+     */
+    CartDeduplication removed(String cartId, Instant checkoutDate, Settings settings) {
+        return removed(Collections.singletonList(new RemovedCart(cartId, checkoutDate)), settings);
+    }
+
+    /**
+     * Remembers that the items of the given carts were removed, moving the carts checked out before the window, and
+     * the oldest ones beyond {@code max-recent-carts}, to the Bloom filters.
+     */
+    CartDeduplication removed(List<RemovedCart> carts, Settings settings) {
+        if (carts.isEmpty()) {
+            return this;
+        }
+        Instant newLastCheckout = lastCheckout;
+        PSequence<RemovedCart> newRecentCarts = recentCarts;
+        PSet<String> newRecentCartIds = recentCartIds;
+        for (RemovedCart cart : carts) {
+            newLastCheckout = cart.checkoutDate.isAfter(newLastCheckout) ? cart.checkoutDate : newLastCheckout;
+            newRecentCarts = newRecentCarts.plus(cart);
+            newRecentCartIds = newRecentCartIds.plus(cart.cartId);
+        }
+
+        // the carts are removed about in the order they were checked out, so the expired ones are mostly at the head
+        Instant windowStart = newLastCheckout.minus(settings.window);
+        List<RemovedCart> expired = new ArrayList<>();
+        while (!newRecentCarts.isEmpty() && (newRecentCarts.size() > settings.maxRecentCarts
+                || newRecentCarts.get(0).checkoutDate.isBefore(windowStart))) {
+            RemovedCart oldest = newRecentCarts.get(0);
+            newRecentCarts = newRecentCarts.minus(0);
+            newRecentCartIds = newRecentCartIds.minus(oldest.cartId);
+            expired.add(oldest);
+        }
+        PSequence<CartFilter> newOlderCarts = expired.isEmpty() ? olderCarts : addToFilters(olderCarts, expired, settings);
+        newOlderCarts = forgetBeyondHorizon(newOlderCarts, newLastCheckout.minus(settings.replayHorizon));
+        return new CartDeduplication(newRecentCarts, newRecentCartIds, newLastCheckout, newOlderCarts);
+    }
+
+    private static PSequence<CartFilter> addToFilters(PSequence<CartFilter> filters, List<RemovedCart> carts, Settings settings) {
+        int next = 0;
+        while (next < carts.size()) {
+            if (filters.isEmpty() || filters.get(0).isFull()) {
+                int maxCarts = filters.isEmpty()
+                        ? settings.maxRecentCarts
+                        : (int) Math.min(settings.maxFilterCarts, Math.max(settings.maxRecentCarts, 2L * filters.get(0).maxCarts));
+                filters = filters.plus(0, CartFilter.create(maxCarts, settings.falsePositiveRate));
+                if (filters.size() > MAX_FILTERS) {
+                    filters = filters.minus(MAX_FILTERS);
+                }
+            }
+            // the bits of a filter are copied once for all the carts it takes
+            CartFilter filter = filters.get(0);
+            int end = Math.min(carts.size(), next + filter.maxCarts - filter.carts);
+            filters = filters.with(0, filter.plus(carts.subList(next, end)));
+            next = end;
+        }
+        return filters;
+    }
+
+    private static PSequence<CartFilter> forgetBeyondHorizon(PSequence<CartFilter> filters, Instant horizonStart) {
+        while (!filters.isEmpty() && filters.get(filters.size() - 1).newestCheckout.isBefore(horizonStart)) {
+            filters = filters.minus(filters.size() - 1);
+        }
+        return filters;
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class RemovedCart {
+        public final String cartId;
+        public final Instant checkoutDate;
+
+        @JsonCreator
+        RemovedCart(String cartId, Instant checkoutDate) {
+            this.cartId = Preconditions.checkNotNull(cartId, "cartId");
+            this.checkoutDate = Preconditions.checkNotNull(checkoutDate, "checkoutDate");
+        }
+    }
+
+    /**
+     * A Bloom filter of cart ids, using the two halves of their 128 bits murmur3 hash to derive its hash functions.
+     */
+    @Value
+    @JsonDeserialize
+    static final class CartFilter {
+        public final long[] bits;
+        public final int hashes;
+        public final int carts;
+        public final int maxCarts;
+        /**
+         * The latest checkout of its carts.
+         */
+        public final Instant newestCheckout;
+
+        @JsonCreator
+        CartFilter(long[] bits, int hashes, int carts, int maxCarts, Instant newestCheckout) {
+            this.bits = Preconditions.checkNotNull(bits, "bits");
+            this.hashes = hashes;
+            this.carts = carts;
+            this.maxCarts = maxCarts;
+            this.newestCheckout = Preconditions.checkNotNull(newestCheckout, "newestCheckout");
+        }
+
+        static CartFilter create(int expectedCarts, double falsePositiveRate) {
+            long size = Math.max(64, (long) Math.ceil(-expectedCarts * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+            int hashes = Math.max(1, (int) Math.round((double) size / expectedCarts * Math.log(2)));
+            return new CartFilter(new long[(int) ((size + 63) / 64)], hashes, 0, expectedCarts, Instant.MIN);
+        }
+
+        boolean isFull() {
+            return carts >= maxCarts;
+        }
+
+        boolean mightContain(String cartId) {
+            long[] hash = hash(cartId);
+            for (int i = 0; i < hashes; i++) {
+                long bit = index(hash, i);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        CartFilter plus(List<RemovedCart> removedCarts) {
+            long[] newBits = Arrays.copyOf(bits, bits.length);
+            Instant newNewestCheckout = newestCheckout;
+            for (RemovedCart cart : removedCarts) {
+                long[] hash = hash(cart.cartId);
+                for (int i = 0; i < hashes; i++) {
+                    long bit = index(hash, i);
+                    newBits[(int) (bit >>> 6)] |= 1L << bit;
+                }
+                newNewestCheckout = cart.checkoutDate.isAfter(newNewestCheckout) ? cart.checkoutDate : newNewestCheckout;
+            }
+            return new CartFilter(newBits, hashes, carts + removedCarts.size(), maxCarts, newNewestCheckout);
+        }
+
+        private long index(long[] hash, int i) {
+            return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % (bits.length * 64L);
+        }
+
+        private static long[] hash(String cartId) {
+            HashCode hashCode = Hashing.murmur3_128().hashString(cartId, StandardCharsets.UTF_8);
+            byte[] bytes = hashCode.asBytes();
+            long low = 0;
+            long high = 0;
+            for (int i = 7; i >= 0; i--) {
+                low = (low << 8) | (bytes[i] & 0xff);
+                high = (high << 8) | (bytes[i + 8] & 0xff);
+            }
+            return new long[]{low, high};
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.inventory.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Adds up the concurrent additions to the inventory of the same product on this node, so that a product that is
+ * added to by many requests at once, during a flash sale, is written once for all of them instead of once per request.
+ * <p>
+ * The additions to a product are added to a {@link StripedCounter}, and the sum of the counter is written to the
+ * inventory by a single write at a time. An addition completes with the quantity once the write that follows it is
+ * done, so that it is never acknowledged before it is persisted.
+ */
+final class InventoryAdds {
+
+    private final BiFunction<String, Integer, CompletionStage<Integer>> inventory;
+    private final int stripes;
+    private final Cache<String, ProductAdds> products;
+
+    /**
+     * @param inventory adds the given quantity to the inventory of the given product, and completes with its new
+     *                  quantity
+     * @param stripes   how many cells the counter of each product has
+     */
+    InventoryAdds(BiFunction<String, Integer, CompletionStage<Integer>> inventory, int stripes, Duration idleTimeout) {
+        this.inventory = inventory;
+        this.stripes = stripes;
+        // a product evicted while it is added to keeps its pending additions, which are written by their own writes
+        this.products = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * Adds to the inventory of the given product, and completes with its quantity once the addition is written. Fails,
+     * with the additions written together with it, if they add up to more than an {@code int}.
+     */
+    CompletionStage<Integer> add(String productId, int quantity) {
+        ProductAdds adds = product(productId);
+        adds.pending.add(quantity);
+        return adds.write();
+    }
+
+    /**
+     * The quantity of the given product, once the additions made before are written.
+     */
+    CompletionStage<Integer> get(String productId) {
+        return product(productId).write();
+    }
+
+    private ProductAdds product(String productId) {
+        try {
+            return products.get(productId, () -> new ProductAdds(productId));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private final class ProductAdds {
+        private final String productId;
+        private final StripedCounter pending = new StripedCounter(stripes);
+        // completed by the next write, which takes the pending additions once it starts
+        private final AtomicReference<CompletableFuture<Integer>> nextWrite = new AtomicReference<>(new CompletableFuture<>());
+        private final AtomicBoolean writing = new AtomicBoolean();
+        // whether a write was requested since the last one started
+        private volatile boolean requested = false;
+
+        ProductAdds(String productId) {
+            this.productId = productId;
+        }
+
+        CompletionStage<Integer> write() {
+            CompletableFuture<Integer> written = nextWrite.get();
+            requested = true;
+            tryWrite();
+            return written;
+        }
+
+        private void tryWrite() {
+            if (writing.get() || !writing.compareAndSet(false, true)) {
+                // the write in progress starts another one once it's done
+                return;
+            }
+            requested = false;
+            CompletableFuture<Integer> written = nextWrite.getAndSet(new CompletableFuture<>());
+            int quantity;
+            try {
+                quantity = Math.toIntExact(pending.sumThenReset());
+            } catch (ArithmeticException e) {
+                // the additions taken don't fit in a single write, so none of them is written, and all of them fail
+                written.completeExceptionally(e);
+                done();
+                return;
+            }
+            inventory.apply(productId, quantity).whenComplete((newQuantity, error) -> {
+                if (error != null) {
+                    written.completeExceptionally(error);
+                } else {
+                    written.complete(newQuantity);
+                }
+                done();
+            });
+        }
+
+        private void done() {
+            writing.set(false);
+            if (requested) {
+                tryWrite();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.inventory.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps the recently read inventories of this node in memory, in front of the {@link InventoryEntity}.
+ * <p>
+ * At most {@code max-size} inventories are kept, each of them for at most {@code time-to-live}. The inventory of a
+ * product is invalidated when it is changed through this node, so the inventories changed through the other nodes,
+ * or by the shopping cart topic consumed on them, may be stale for up to {@code time-to-live}.
+ */
+class InventoryCache {
+
+    private final Cache<String, Integer> inventories;
+
+    // the reads of the inventories missing from the cache, by product id, forgotten when the inventory of the product
+    // is invalidated, so that an inventory read before an invalidation of that product is not cached
+    private final ConcurrentMap<String, Object> pendingReads = new ConcurrentHashMap<>();
+
+    InventoryCache(Config cacheConfig) {
+        Duration timeToLive = cacheConfig.getDuration("time-to-live");
+        this.inventories = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.getLong("max-size"))
+                .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * The cached inventory of the given product, or the one read from the entity.
+     */
+    CompletionStage<Integer> get(String productId, Function<String, CompletionStage<Integer>> entity) {
+        Integer cached = inventories.getIfPresent(productId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        Object read = new Object();
+        pendingReads.put(productId, read);
+        return entity.apply(productId)
+                .whenComplete((quantity, error) -> pendingReads.computeIfPresent(productId, (id, pendingRead) -> {
+                    if (pendingRead != read) {
+                        // read again since then, the latest read caches the inventory
+                        return pendingRead;
+                    }
+                    if (quantity != null) {
+                        inventories.put(productId, quantity);
+                    }
+                    return null;
+                }));
+    }
+
+    /**
+     * Forgets the inventory of the given product, after it changed.
+     */
+    void invalidate(String productId) {
+        pendingReads.remove(productId);
+        inventories.invalidate(productId);
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.inventory.impl;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.javadsl.CommandHandlerWithReply;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehaviorWithEnforcedReplies;
+import akka.persistence.typed.javadsl.ReplyEffect;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.serialization.CompressedJsonable;
+import com.lightbend.lagom.serialization.Jsonable;
+import com.typesafe.config.Config;
+import lombok.Value;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The inventory of a product, persisted as the changes of its quantity.
+ */
+public class InventoryEntity extends EventSourcedBehaviorWithEnforcedReplies<InventoryEntity.Command, InventoryEntity.Event, InventoryEntity.Inventory> {
+
+    private final String productId;
+
+    private final RetentionCriteria retentionCriteria;
+
+    private final CartDeduplication.Settings deduplication;
+
+    static EntityTypeKey<Command> ENTITY_TYPE_KEY = EntityTypeKey.create(Command.class, "Inventory");
+
+    private InventoryEntity(EntityContext<Command> entityContext, RetentionCriteria retentionCriteria,
+                            CartDeduplication.Settings deduplication) {
+        super(PersistenceId.of(entityContext.getEntityTypeKey().name(), entityContext.getEntityId()));
+        this.productId = entityContext.getEntityId();
+        this.retentionCriteria = retentionCriteria;
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * @param retentionCriteria when the inventory is snapshotted, see {@link #retentionCriteria(Config)}
+     * @param deduplication     how the checked out carts already removed from the inventory are remembered
+     */
+    static Behavior<Command> create(EntityContext<Command> entityContext, RetentionCriteria retentionCriteria,
+                                    CartDeduplication.Settings deduplication) {
+        return new InventoryEntity(entityContext, retentionCriteria, deduplication);
+    }
+
+    /**
+     * Reads when the inventories are snapshotted from the {@code inventory.snapshot} section of the given config.
+     */
+    static RetentionCriteria retentionCriteria(Config config) {
+        Config snapshot = config.getConfig("inventory.snapshot");
+        int everyNEvents = snapshot.getInt("every-n-events");
+        return everyNEvents > 0
+                ? RetentionCriteria.snapshotEvery(everyNEvents, snapshot.getInt("keep-n-snapshots"))
+                : RetentionCriteria.disabled();
+    }
+
+    //
+    // INVENTORY COMMANDS
+    //
+    interface Command<R> extends Jsonable {}
+
+    /**
+     * Replies with the quantity in stock.
+     */
+    @Value
+    @JsonDeserialize
+    static final class Get implements Command<Integer> {
+        public final ActorRef<Integer> replyTo;
+
+        @JsonCreator
+        Get(ActorRef<Integer> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * Adds to the quantity in stock, or removes from it when negative, and replies with the new quantity.
+     */
+    @Value
+    @JsonDeserialize
+    static final class Add implements Command<Integer> {
+        public final int quantity;
+        public final ActorRef<Integer> replyTo;
+
+        @JsonCreator
+        Add(int quantity, ActorRef<Integer> replyTo) {
+            this.quantity = quantity;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * Removes the quantities of the product in several checked out carts from the stock at once, except for the carts
+     * already removed, and replies with the new quantity.
+     */
+    @Value
+    @JsonDeserialize
+    static final class RemoveCheckedOut implements Command<Integer> {
+        public final PSequence<CheckedOutCart> carts;
+        public final ActorRef<Integer> replyTo;
+
+        @JsonCreator
+        RemoveCheckedOut(List<CheckedOutCart> carts, ActorRef<Integer> replyTo) {
+            this.carts = TreePVector.from(Preconditions.checkNotNull(carts, "carts"));
+            this.replyTo = replyTo;
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class CheckedOutCart {
+        public final String cartId;
+        public final Optional<Instant> checkoutDate;
+        public final int quantity;
+
+        @JsonCreator
+        CheckedOutCart(String cartId, Optional<Instant> checkoutDate, int quantity) {
+            this.cartId = Preconditions.checkNotNull(cartId, "cartId");
+            this.checkoutDate = checkoutDate == null ? Optional.empty() : checkoutDate;
+            this.quantity = quantity;
+        }
+    }
+
+    //
+    // INVENTORY EVENTS
+    //
+    public interface Event extends Jsonable {}
+
+    @Value
+    @JsonDeserialize
+    static final class InventoryAdded implements Event {
+        public final String productId;
+        /**
+         * Negative when the quantity was removed.
+         */
+        public final int quantity;
+
+        @JsonCreator
+        InventoryAdded(String productId, int quantity) {
+            this.productId = Preconditions.checkNotNull(productId, "productId");
+            this.quantity = quantity;
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class CheckedOutCartsRemoved implements Event {
+        public final String productId;
+        /**
+         * The carts, with when they were checked out, or when their items were removed if the topic didn't tell.
+         */
+        public final PSequence<CartDeduplication.RemovedCart> carts;
+        /**
+         * The total quantity of the product in the carts.
+         */
+        public final int quantity;
+
+        @JsonCreator
+        CheckedOutCartsRemoved(String productId, List<CartDeduplication.RemovedCart> carts, int quantity) {
+            this.productId = Preconditions.checkNotNull(productId, "productId");
+            this.carts = TreePVector.from(Preconditions.checkNotNull(carts, "carts"));
+            this.quantity = quantity;
+        }
+    }
+
+    //
+    // INVENTORY STATE
+    //
+    @Value
+    @JsonDeserialize
+    static final class Inventory implements CompressedJsonable {
+        public final int quantity;
+        public final CartDeduplication removedCarts;
+
+        @JsonCreator
+        Inventory(int quantity, CartDeduplication removedCarts) {
+            this.quantity = quantity;
+            this.removedCarts = removedCarts == null ? CartDeduplication.EMPTY : removedCarts;
+        }
+
+        Inventory add(int quantity) {
+            return new Inventory(this.quantity + quantity, removedCarts);
+        }
+
+        Inventory removeCheckedOut(List<CartDeduplication.RemovedCart> carts, int quantity, CartDeduplication.Settings deduplication) {
+            return new Inventory(this.quantity - quantity, removedCarts.removed(carts, deduplication));
+        }
+
+        public static final Inventory EMPTY = new Inventory(0, CartDeduplication.EMPTY);
+    }
+
+    @Override
+    public Inventory emptyState() {
+        return Inventory.EMPTY;
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria() {
+        return retentionCriteria;
+    }
+
+    @Override
+    public CommandHandlerWithReply<Command, Event, Inventory> commandHandler() {
+        return newCommandHandlerWithReplyBuilder().forAnyState()
+                .onCommand(Get.class, (state, cmd) -> Effect().reply(cmd.replyTo, state.quantity))
+                .onCommand(Add.class, (state, cmd) -> {
+                    if (cmd.quantity == 0) {
+                        return Effect().reply(cmd.replyTo, state.quantity);
+                    }
+                    return Effect().persist(new InventoryAdded(productId, cmd.quantity))
+                            .thenReply(cmd.replyTo, newState -> newState.quantity);
+                })
+                .onCommand(RemoveCheckedOut.class, this::onRemoveCheckedOut)
+                .build();
+    }
+
+    private ReplyEffect<Event, Inventory> onRemoveCheckedOut(Inventory state, RemoveCheckedOut cmd) {
+        Instant now = Instant.now();
+        // skips the carts already removed, including those delivered twice in the same batch
+        Set<String> cartIds = new HashSet<>();
+        List<CartDeduplication.RemovedCart> carts = new ArrayList<>();
+        int quantity = 0;
+        for (CheckedOutCart cart : cmd.carts) {
+            Instant checkoutDate = cart.checkoutDate.orElse(now);
+            if (cartIds.add(cart.cartId) && !state.removedCarts.isRemoved(cart.cartId, checkoutDate, deduplication)) {
+                carts.add(new CartDeduplication.RemovedCart(cart.cartId, checkoutDate));
+                quantity += cart.quantity;
+            }
+        }
+        if (carts.isEmpty()) {
+            return Effect().reply(cmd.replyTo, state.quantity);
+        }
+        return Effect().persist(new CheckedOutCartsRemoved(productId, carts, quantity))
+                .thenReply(cmd.replyTo, newState -> newState.quantity);
+    }
+
+    @Override
+    public EventHandler<Inventory, Event> eventHandler() {
+        return newEventHandlerBuilder().forAnyState()
+                .onEvent(InventoryAdded.class, (state, evt) -> state.add(evt.quantity))
+                .onEvent(CheckedOutCartsRemoved.class, (state, evt) ->
+                        state.removeCheckedOut(evt.carts, evt.quantity, deduplication))
+                .build();
+    }
+}
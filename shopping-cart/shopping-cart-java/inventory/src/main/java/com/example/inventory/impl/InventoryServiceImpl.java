@@ -2,64 +2,137 @@ package com.example.inventory.impl;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityRef;
+import akka.persistence.typed.javadsl.RetentionCriteria;
 import akka.stream.javadsl.Flow;
+import com.example.shoppingcart.api.ShoppingCartItem;
 import com.example.shoppingcart.api.ShoppingCartView;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 
 import com.example.shoppingcart.api.ShoppingCartService;
 import com.example.inventory.api.InventoryService;
+import com.typesafe.config.Config;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implementation of the InventoryService.
  */
 @Singleton
 public class InventoryServiceImpl implements InventoryService {
-    private final ConcurrentMap<String, AtomicInteger> inventory = new ConcurrentHashMap<>();
+
+    private final ClusterSharding clusterSharding;
+
+    private final InventoryCache cache;
+
+    private final Duration askTimeout = Duration.ofSeconds(5);
+
+    private final int batchMaxCarts;
+
+    private final Duration batchWindow;
+
+    // set when the concurrent additions to a product are added up before they are written
+    private final Optional<InventoryAdds> adds;
 
     @Inject
-    public InventoryServiceImpl(ShoppingCartService shoppingCartService) {
+    public InventoryServiceImpl(ShoppingCartService shoppingCartService, ClusterSharding clusterSharding, Config config) {
+        this.clusterSharding = clusterSharding;
+        this.cache = new InventoryCache(config.getConfig("inventory.cache"));
+        this.batchMaxCarts = config.getInt("inventory.checkout-batch.max-carts");
+        this.batchWindow = config.getDuration("inventory.checkout-batch.window");
+        Config addCoalescing = config.getConfig("inventory.add-coalescing");
+        this.adds = addCoalescing.getBoolean("enabled")
+                ? Optional.of(new InventoryAdds(this::addInventory, addCoalescing.getInt("stripes"),
+                        addCoalescing.getDuration("idle-timeout")))
+                : Optional.empty();
+
+        // register entity on shard
+        RetentionCriteria retentionCriteria = InventoryEntity.retentionCriteria(config);
+        CartDeduplication.Settings deduplication = CartDeduplication.Settings.fromConfig(config);
+        this.clusterSharding.init(
+                Entity.of(
+                        InventoryEntity.ENTITY_TYPE_KEY,
+                        entityContext -> InventoryEntity.create(entityContext, retentionCriteria, deduplication)
+                )
+        );
 
         // Subscribe to the shopping cart topic
         shoppingCartService.shoppingCartTopic().subscribe()
-            // Since this is at least once event handling, we really should track by shopping cart, and
-            // not update inventory if we've already seen this shopping cart. But this is an in memory
-            // inventory tracker anyway, so no need to be that careful.
+            // Since this is at least once event handling, a cart may be delivered again, so the inventory of
+            // each product remembers the carts it already removed
             .atLeastOnce(
-                // Create a flow that emits a Done for each message it processes
-                Flow.<ShoppingCartView>create().map(cart -> {
-                    cart.getItems().forEach(item ->
-                        getInventory(item.getItemId()).addAndGet(-item.getQuantity())
-                    );
-                    return Done.getInstance();
-                })
+                // Create a flow that removes the items of the carts from the inventory in batches, with a single
+                // change per product and batch, and then emits a Done for each message of the batch, so that their
+                // offsets are only committed once the whole batch is removed
+                Flow.<ShoppingCartView>create()
+                    .groupedWithin(batchMaxCarts, batchWindow)
+                    .mapAsync(1, carts -> removeCheckedOut(carts).thenApply(done -> carts))
+                    .mapConcat(carts -> Collections.nCopies(carts.size(), Done.getInstance()))
             );
 
     }
 
-    private AtomicInteger getInventory(String productId) {
-        return inventory.computeIfAbsent(productId, k -> new AtomicInteger());
+    private EntityRef<InventoryEntity.Command> entityRef(String productId) {
+        return clusterSharding.entityRefFor(InventoryEntity.ENTITY_TYPE_KEY, productId);
+    }
+
+    private CompletionStage<Integer> addInventory(String productId, int quantity) {
+        return entityRef(productId)
+                .<Integer>ask(replyTo -> new InventoryEntity.Add(quantity, replyTo), askTimeout)
+                .whenComplete((newQuantity, error) -> cache.invalidate(productId));
+    }
+
+    private CompletionStage<Done> removeCheckedOut(List<ShoppingCartView> carts) {
+        Map<String, List<InventoryEntity.CheckedOutCart>> cartsByProduct = new LinkedHashMap<>();
+        for (ShoppingCartView cart : carts) {
+            for (ShoppingCartItem item : cart.getItems()) {
+                cartsByProduct.computeIfAbsent(item.getItemId(), productId -> new ArrayList<>())
+                        .add(new InventoryEntity.CheckedOutCart(cart.getId(), cart.getCheckoutDate(), item.getQuantity()));
+            }
+        }
+        CompletableFuture<?>[] removals = cartsByProduct.entrySet().stream()
+                .map(productCarts -> removeCheckedOut(productCarts.getKey(), productCarts.getValue()).toCompletableFuture())
+                .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(removals).thenApply(done -> Done.getInstance());
+    }
+
+    private CompletionStage<Integer> removeCheckedOut(String productId, List<InventoryEntity.CheckedOutCart> carts) {
+        return entityRef(productId)
+                .<Integer>ask(replyTo -> new InventoryEntity.RemoveCheckedOut(carts, replyTo), askTimeout)
+                .whenComplete((newQuantity, error) -> cache.invalidate(productId));
     }
 
     @Override
-    public ServiceCall<NotUsed, Integer> get(String productId) {
-        return notUsed -> CompletableFuture.completedFuture(
-            getInventory(productId).get()
-        );
+    public ServiceCall<NotUsed, Integer> get(String productId, Optional<Boolean> exact) {
+        return notUsed -> {
+            if (!exact.orElse(false)) {
+                return cache.get(productId, id -> entityRef(id).ask(InventoryEntity.Get::new, askTimeout));
+            } else if (adds.isPresent()) {
+                // includes the additions made through this node that are not written yet
+                return adds.get().get(productId);
+            } else {
+                return entityRef(productId).ask(InventoryEntity.Get::new, askTimeout);
+            }
+        };
     }
 
     @Override
     public ServiceCall<Integer, Done> add(String productId) {
-        return quantity -> {
-            getInventory(productId).addAndGet(quantity);
-            return CompletableFuture.completedFuture(Done.getInstance());
-        };
+        return quantity -> adds.map(productAdds -> productAdds.add(productId, quantity))
+                .orElseGet(() -> addInventory(productId, quantity))
+                .thenApply(newQuantity -> Done.getInstance());
     }
 }
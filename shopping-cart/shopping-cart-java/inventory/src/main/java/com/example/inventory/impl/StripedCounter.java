@@ -0,0 +1,70 @@
+package com.example.inventory.impl;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at the same time without contending on a single value.
+ * <p>
+ * The additions are spread across {@code stripes} cells by thread, and each cell sits on its own cache lines so that
+ * the threads adding to different cells don't invalidate each other's caches. {@link #sum()} adds the cells up
+ * without stopping the additions, so it may miss the concurrent ones, while {@link #sumThenReset()} takes the value
+ * of every cell atomically, so that each addition is counted by exactly one call.
+ */
+final class StripedCounter {
+
+    // 128 bytes between two cells, as some CPUs prefetch cache lines of 64 bytes in pairs
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * @param stripes the number of cells, rounded up to a power of two
+     */
+    StripedCounter(int stripes) {
+        Preconditions.checkArgument(stripes > 0, "stripes must be positive");
+        int cellCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.mask = cellCount - 1;
+        // the first and last cells are also padded from the other objects of the heap
+        this.cells = new AtomicLongArray((cellCount + 1) * PADDING);
+    }
+
+    void add(long value) {
+        cells.getAndAdd(index(Thread.currentThread()), value);
+    }
+
+    /**
+     * The sum of the cells, which may miss the concurrent additions.
+     */
+    long sum() {
+        long sum = 0;
+        for (int cell = 0; cell <= mask; cell++) {
+            sum += cells.get((cell + 1) * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Takes the sum of the cells, resetting each of them to 0 at once, so that a concurrent addition is either
+     * counted by this sum or left for the next one.
+     */
+    long sumThenReset() {
+        long sum = 0;
+        for (int cell = 0; cell <= mask; cell++) {
+            sum += cells.getAndSet((cell + 1) * PADDING, 0);
+        }
+        return sum;
+    }
+
+    int stripes() {
+        return mask + 1;
+    }
+
+    private int index(Thread thread) {
+        // spreads the sequential thread ids across the cells
+        long id = thread.getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & mask) * PADDING + PADDING;
+    }
+}
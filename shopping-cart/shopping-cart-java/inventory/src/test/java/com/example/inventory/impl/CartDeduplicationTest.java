@@ -0,0 +1,123 @@
+package com.example.inventory.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class CartDeduplicationTest {
+
+    private final CartDeduplication.Settings settings = new CartDeduplication.Settings(Duration.ofHours(1), 100, Duration.ofHours(6), 10, 0.001);
+
+    private final Instant checkoutDate = Instant.parse("2020-03-01T10:15:30Z");
+
+    @Test
+    public void shouldRememberTheCartsWithinTheWindowExactly() {
+        CartDeduplication deduplication = CartDeduplication.EMPTY
+                .removed("123", checkoutDate, settings)
+                .removed("456", checkoutDate.plus(Duration.ofMinutes(30)), settings);
+
+        Assert.assertTrue(deduplication.isRemoved("123", checkoutDate, settings));
+        Assert.assertTrue(deduplication.isRemoved("456", checkoutDate, settings));
+        Assert.assertFalse(deduplication.isRemoved("789", checkoutDate, settings));
+        Assert.assertEquals(2, deduplication.recentCarts.size());
+        Assert.assertTrue(deduplication.olderCarts.isEmpty());
+    }
+
+    @Test
+    public void shouldRememberTheCartsBeforeTheWindowInABloomFilter() {
+        CartDeduplication deduplication = CartDeduplication.EMPTY
+                .removed("123", checkoutDate, settings)
+                .removed("456", checkoutDate.plus(Duration.ofHours(2)), settings);
+
+        Assert.assertEquals(1, deduplication.recentCarts.size());
+        Assert.assertEquals(1, deduplication.olderCarts.size());
+        Assert.assertTrue(deduplication.isRemoved("123", checkoutDate, settings));
+        // a cart checked out before the window that was not removed yet is only checked against the Bloom filter
+        Assert.assertFalse(deduplication.isRemoved("789", checkoutDate, settings));
+        // a cart checked out within the window is never skipped because of the Bloom filter
+        Assert.assertFalse(deduplication.isRemoved("123", checkoutDate.plus(Duration.ofHours(2)), settings));
+    }
+
+    @Test
+    public void shouldForgetTheFiltersBeyondTheReplayHorizon() {
+        CartDeduplication deduplication = CartDeduplication.EMPTY
+                .removed("123", checkoutDate, settings)
+                .removed("456", checkoutDate.plus(Duration.ofHours(2)), settings);
+        Assert.assertTrue(deduplication.isRemoved("123", checkoutDate, settings));
+
+        // all the carts of the filter were then checked out more than 6 hours before the last one
+        deduplication = deduplication.removed("789", checkoutDate.plus(Duration.ofMinutes(8 * 60 + 30)), settings);
+
+        Assert.assertTrue(deduplication.olderCarts.isEmpty());
+        Assert.assertFalse(deduplication.isRemoved("123", checkoutDate, settings));
+        Assert.assertFalse(deduplication.isRemoved("456", checkoutDate.plus(Duration.ofHours(2)), settings));
+        Assert.assertTrue(deduplication.isRemoved("789", checkoutDate, settings));
+    }
+
+    @Test
+    public void shouldBoundTheCartsRememberedExactlyForABusyProduct() {
+        // 100 carts per second, in batches of 50, all of them within the window
+        CartDeduplication deduplication = CartDeduplication.EMPTY;
+        for (int batch = 0; batch < 100; batch++) {
+            List<CartDeduplication.RemovedCart> carts = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                int cart = batch * 50 + i;
+                carts.add(new CartDeduplication.RemovedCart("cart-" + cart, checkoutDate.plusMillis(10L * cart)));
+            }
+            deduplication = deduplication.removed(carts, settings);
+        }
+
+        Assert.assertEquals(100, deduplication.recentCarts.size());
+        // the filters grow from 100 carts, doubling up to the 3600 carts expected during the replay horizon
+        Assert.assertEquals(Arrays.asList(1600, 800, 400, 200, 100),
+                deduplication.olderCarts.stream().map(filter -> filter.carts).collect(Collectors.toList()).subList(1, 6));
+        for (int cart = 0; cart < 5000; cart++) {
+            Assert.assertTrue("cart-" + cart, deduplication.isRemoved("cart-" + cart, checkoutDate.plusMillis(10L * cart), settings));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (deduplication.isRemoved("other-" + i, checkoutDate, settings)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 20);
+    }
+
+    @Test
+    public void shouldOnlyKeepTheLastBloomFilters() {
+        // the filters can't grow beyond the 10 carts expected during the replay horizon
+        CartDeduplication.Settings slowProduct =
+                new CartDeduplication.Settings(Duration.ofHours(1), 10, Duration.ofHours(1), 1.0 / 6, 0.001);
+        CartDeduplication deduplication = CartDeduplication.EMPTY;
+        for (int i = 0; i < 200; i++) {
+            deduplication = deduplication.removed("cart-" + i, checkoutDate, slowProduct);
+        }
+
+        Assert.assertEquals(CartDeduplication.MAX_FILTERS, deduplication.olderCarts.size());
+        Assert.assertFalse(deduplication.isRemoved("cart-0", checkoutDate, slowProduct));
+        Assert.assertTrue(deduplication.isRemoved("cart-185", checkoutDate, slowProduct));
+    }
+
+    @Test
+    public void shouldHaveAboutTheConfiguredFalsePositiveRate() {
+        CartDeduplication.CartFilter filter = CartDeduplication.CartFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter = filter.plus(Collections.singletonList(new CartDeduplication.RemovedCart("cart-" + i, checkoutDate)));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 200);
+    }
+}
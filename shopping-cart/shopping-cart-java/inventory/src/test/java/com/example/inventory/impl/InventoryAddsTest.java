@@ -0,0 +1,90 @@
+package com.example.inventory.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class InventoryAddsTest {
+
+    // stands for the entity, whose writes are completed by the tests
+    private final List<Integer> writes = new ArrayList<>();
+    private final List<CompletableFuture<Integer>> pendingWrites = new ArrayList<>();
+    private int quantity = 0;
+
+    private final InventoryAdds adds = new InventoryAdds((productId, added) -> {
+        writes.add(added);
+        CompletableFuture<Integer> written = new CompletableFuture<>();
+        pendingWrites.add(written);
+        return written;
+    }, 4, Duration.ofMinutes(1));
+
+    private void completeWrite(int index) {
+        quantity += writes.get(index);
+        pendingWrites.get(index).complete(quantity);
+    }
+
+    @Test
+    public void shouldWriteTheAdditionsMadeDuringAWriteTogether() throws Exception {
+        CompletionStage<Integer> first = adds.add("456", 1);
+        CompletionStage<Integer> second = adds.add("456", 2);
+        CompletionStage<Integer> third = adds.add("456", 3);
+        Assert.assertEquals(1, writes.size());
+
+        completeWrite(0);
+        Assert.assertEquals(Integer.valueOf(1), first.toCompletableFuture().get());
+        Assert.assertFalse(second.toCompletableFuture().isDone());
+        Assert.assertEquals(2, writes.size());
+        Assert.assertEquals(Integer.valueOf(5), writes.get(1));
+
+        completeWrite(1);
+        Assert.assertEquals(Integer.valueOf(6), second.toCompletableFuture().get());
+        Assert.assertEquals(Integer.valueOf(6), third.toCompletableFuture().get());
+        Assert.assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void shouldReadTheQuantityOnceThePreviousAdditionsAreWritten() throws Exception {
+        adds.add("456", 4);
+        CompletionStage<Integer> exact = adds.get("456");
+
+        completeWrite(0);
+        Assert.assertFalse(exact.toCompletableFuture().isDone());
+        completeWrite(1);
+        Assert.assertEquals(Integer.valueOf(4), exact.toCompletableFuture().get());
+        Assert.assertEquals(Integer.valueOf(0), writes.get(1));
+    }
+
+    @Test
+    public void shouldFailTheAdditionsOfAFailedWrite() {
+        CompletionStage<Integer> added = adds.add("456", 4);
+        pendingWrites.get(0).completeExceptionally(new RuntimeException("timeout"));
+
+        Assert.assertTrue(added.toCompletableFuture().isCompletedExceptionally());
+        CompletionStage<Integer> next = adds.add("456", 1);
+        Assert.assertEquals(2, writes.size());
+        Assert.assertFalse(next.toCompletableFuture().isDone());
+    }
+
+    @Test
+    public void shouldFailTheAdditionsThatDoNotFitInASingleWrite() {
+        adds.add("456", 1);
+        CompletionStage<Integer> first = adds.add("456", Integer.MAX_VALUE);
+        CompletionStage<Integer> second = adds.add("456", 1);
+        completeWrite(0);
+
+        Assert.assertTrue(first.toCompletableFuture().isCompletedExceptionally());
+        Assert.assertTrue(second.toCompletableFuture().isCompletedExceptionally());
+        Assert.assertEquals(1, writes.size());
+
+        CompletionStage<Integer> next = adds.add("456", 1);
+        Assert.assertEquals(2, writes.size());
+        Assert.assertEquals(Integer.valueOf(1), writes.get(1));
+        completeWrite(1);
+        Assert.assertEquals(Integer.valueOf(2), next.toCompletableFuture().join());
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.inventory.impl;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InventoryCacheTest {
+
+    private final InventoryCache cache = new InventoryCache(ConfigFactory.parseString("max-size = 2, time-to-live = 1 minute"));
+
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private CompletionStage<Integer> read(int quantity) {
+        reads.incrementAndGet();
+        return CompletableFuture.completedFuture(quantity);
+    }
+
+    @Test
+    public void shouldReadAnInventoryOnlyOnce() throws Exception {
+        Assert.assertEquals(Integer.valueOf(4), cache.get("456", id -> read(4)).toCompletableFuture().get());
+        Assert.assertEquals(Integer.valueOf(4), cache.get("456", id -> read(5)).toCompletableFuture().get());
+        Assert.assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void shouldReadAnInventoryAgainOnceInvalidated() throws Exception {
+        cache.get("456", id -> read(4)).toCompletableFuture().get();
+        cache.invalidate("456");
+
+        Assert.assertEquals(Integer.valueOf(5), cache.get("456", id -> read(5)).toCompletableFuture().get());
+        Assert.assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void shouldNotCacheAnInventoryReadBeforeAnInvalidation() throws Exception {
+        CompletableFuture<Integer> reading = new CompletableFuture<>();
+        CompletionStage<Integer> stale = cache.get("456", id -> reading);
+        cache.invalidate("456");
+        reading.complete(4);
+
+        Assert.assertEquals(Integer.valueOf(4), stale.toCompletableFuture().get());
+        Assert.assertEquals(Integer.valueOf(3), cache.get("456", id -> read(3)).toCompletableFuture().get());
+    }
+
+    @Test
+    public void shouldCacheAnInventoryReadBeforeAnInvalidationOfAnotherProduct() throws Exception {
+        CompletableFuture<Integer> reading = new CompletableFuture<>();
+        CompletionStage<Integer> read = cache.get("456", id -> reading);
+        cache.invalidate("123");
+        reading.complete(4);
+
+        Assert.assertEquals(Integer.valueOf(4), read.toCompletableFuture().get());
+        Assert.assertEquals(Integer.valueOf(4), cache.get("456", id -> read(3)).toCompletableFuture().get());
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.inventory.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the {@link StripedCounter} with an {@link AtomicInteger} per product, when many threads add to the
+ * inventories of a few products at once, with 1 to 64 threads. Not run by the tests, run it with:
+ * <pre>
+ * mvn -pl inventory -am test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt -Dmdep.includeScope=test
+ * java -cp "inventory/target/test-classes:inventory/target/classes:$(cat inventory/target/classpath.txt)" \
+ *     com.example.inventory.impl.InventoryCounterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryCounterBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    /**
+     * How many products the threads add to.
+     */
+    @Param({"1", "16"})
+    public int products;
+
+    /**
+     * Reads the sum of a counter once every this many additions.
+     */
+    @Param({"100"})
+    public int readEvery;
+
+    /**
+     * How many cells each striped counter has, 16 being the {@code inventory.add-coalescing.stripes} shipped.
+     */
+    @Param({"16", "64"})
+    public int stripes;
+
+    private String[] productIds;
+
+    private final ConcurrentMap<String, AtomicInteger> atomicIntegers = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, StripedCounter> stripedCounters = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setup() {
+        productIds = new String[products];
+        for (int i = 0; i < products; i++) {
+            productIds[i] = "product-" + i;
+        }
+    }
+
+    private String productId() {
+        return productIds[ThreadLocalRandom.current().nextInt(products)];
+    }
+
+    private boolean isRead() {
+        return ThreadLocalRandom.current().nextInt(readEvery) == 0;
+    }
+
+    @Benchmark
+    public long atomicInteger() {
+        AtomicInteger inventory = atomicIntegers.computeIfAbsent(productId(), productId -> new AtomicInteger());
+        return isRead() ? inventory.get() : inventory.addAndGet(1);
+    }
+
+    @Benchmark
+    public long stripedCounter() {
+        StripedCounter inventory = stripedCounters.computeIfAbsent(productId(), productId -> new StripedCounter(stripes));
+        if (isRead()) {
+            return inventory.sum();
+        }
+        inventory.add(1);
+        return 0;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(InventoryCounterBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.inventory.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.cluster.sharding.typed.javadsl.EntityContext;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import com.typesafe.config.ConfigFactory;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.UUID;
+
+public class InventoryEntityTest {
+
+    private static final String config =
+            "akka.persistence.journal.plugin = \"akka.persistence.journal.inmem\" \n"
+                    + "akka.persistence.snapshot-store.plugin = \"akka.persistence.snapshot-store.local\" \n"
+                    + "akka.persistence.snapshot-store.local.dir = \"target/snapshot-" + UUID.randomUUID() + "\" \n";
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(
+            ConfigFactory.parseString(config).withFallback(ConfigFactory.load()));
+
+    private final CartDeduplication.Settings deduplication = new CartDeduplication.Settings(Duration.ofHours(1), 100, Duration.ofHours(6), 10, 0.001);
+
+    private final Instant checkoutDate = Instant.parse("2020-03-01T10:15:30Z");
+
+    private ActorRef<InventoryEntity.Command> createTestInventory(String productId, RetentionCriteria retentionCriteria) {
+        // The actorRef to the shard can be null as it won't be used.
+        return testKit.spawn(InventoryEntity.create(new EntityContext<>(InventoryEntity.ENTITY_TYPE_KEY, productId, null),
+                retentionCriteria, deduplication));
+    }
+
+    private InventoryEntity.RemoveCheckedOut removeCheckedOut(String cartId, Optional<Instant> checkoutDate, int quantity,
+                                                              TestProbe<Integer> probe) {
+        return new InventoryEntity.RemoveCheckedOut(
+                Collections.singletonList(new InventoryEntity.CheckedOutCart(cartId, checkoutDate, quantity)), probe.getRef());
+    }
+
+    @Test
+    public void shouldStartWithAnEmptyInventory() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(UUID.randomUUID().toString(), RetentionCriteria.disabled());
+        TestProbe<Integer> probe = testKit.createTestProbe();
+
+        inventory.tell(new InventoryEntity.Get(probe.getRef()));
+        probe.expectMessage(0);
+    }
+
+    @Test
+    public void shouldAddAndRemoveInventory() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(UUID.randomUUID().toString(), RetentionCriteria.disabled());
+        TestProbe<Integer> probe = testKit.createTestProbe();
+
+        inventory.tell(new InventoryEntity.Add(10, probe.getRef()));
+        probe.expectMessage(10);
+        inventory.tell(new InventoryEntity.Add(-3, probe.getRef()));
+        probe.expectMessage(7);
+        inventory.tell(new InventoryEntity.Get(probe.getRef()));
+        probe.expectMessage(7);
+    }
+
+    @Test
+    public void shouldRemoveTheItemsOfACheckedOutCartOnlyOnce() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(UUID.randomUUID().toString(), RetentionCriteria.disabled());
+        TestProbe<Integer> probe = testKit.createTestProbe();
+
+        inventory.tell(new InventoryEntity.Add(10, probe.getRef()));
+        probe.expectMessage(10);
+        inventory.tell(removeCheckedOut("123", Optional.of(checkoutDate), 2, probe));
+        probe.expectMessage(8);
+        inventory.tell(removeCheckedOut("123", Optional.of(checkoutDate), 2, probe));
+        probe.expectMessage(8);
+        inventory.tell(removeCheckedOut("456", Optional.of(checkoutDate), 3, probe));
+        probe.expectMessage(5);
+    }
+
+    @Test
+    public void shouldRemoveTheItemsOfSeveralCheckedOutCartsAtOnce() {
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(UUID.randomUUID().toString(), RetentionCriteria.disabled());
+        TestProbe<Integer> probe = testKit.createTestProbe();
+        inventory.tell(new InventoryEntity.Add(10, probe.getRef()));
+        probe.expectMessage(10);
+        inventory.tell(removeCheckedOut("123", Optional.of(checkoutDate), 1, probe));
+        probe.expectMessage(9);
+
+        // the first cart was already removed, and the last one is delivered twice in the batch
+        inventory.tell(new InventoryEntity.RemoveCheckedOut(Arrays.asList(
+                new InventoryEntity.CheckedOutCart("123", Optional.of(checkoutDate), 1),
+                new InventoryEntity.CheckedOutCart("456", Optional.of(checkoutDate), 2),
+                new InventoryEntity.CheckedOutCart("789", Optional.empty(), 3),
+                new InventoryEntity.CheckedOutCart("789", Optional.empty(), 3)), probe.getRef()));
+        probe.expectMessage(4);
+    }
+
+    @Test
+    public void shouldRecoverTheInventoryFromItsSnapshotsAndEvents() {
+        String productId = UUID.randomUUID().toString();
+        ActorRef<InventoryEntity.Command> inventory = createTestInventory(productId, RetentionCriteria.snapshotEvery(2, 2));
+        TestProbe<Integer> probe = testKit.createTestProbe();
+        for (int i = 1; i <= 5; i++) {
+            inventory.tell(new InventoryEntity.Add(i, probe.getRef()));
+            probe.receiveMessage();
+        }
+        for (int i = 0; i < 3; i++) {
+            // the first cart is only remembered by a Bloom filter once the others are checked out
+            inventory.tell(removeCheckedOut("cart-" + i, Optional.of(checkoutDate.plus(Duration.ofHours(i))), 1, probe));
+            probe.receiveMessage();
+        }
+        testKit.stop(inventory);
+
+        ActorRef<InventoryEntity.Command> recovered = createTestInventory(productId, RetentionCriteria.snapshotEvery(2, 2));
+        recovered.tell(new InventoryEntity.Get(probe.getRef()));
+        probe.expectMessage(12);
+        recovered.tell(removeCheckedOut("cart-0", Optional.of(checkoutDate), 1, probe));
+        probe.expectMessage(12);
+        recovered.tell(removeCheckedOut("cart-2", Optional.of(checkoutDate.plus(Duration.ofHours(2))), 1, probe));
+        probe.expectMessage(12);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.inventory.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StripedCounterTest {
+
+    @Test
+    public void shouldRoundTheStripesUpToAPowerOfTwo() {
+        Assert.assertEquals(1, new StripedCounter(1).stripes());
+        Assert.assertEquals(4, new StripedCounter(3).stripes());
+        Assert.assertEquals(16, new StripedCounter(16).stripes());
+    }
+
+    @Test
+    public void shouldSumTheAdditions() {
+        StripedCounter counter = new StripedCounter(4);
+        counter.add(3);
+        counter.add(-1);
+
+        Assert.assertEquals(2, counter.sum());
+        Assert.assertEquals(2, counter.sumThenReset());
+        Assert.assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void shouldCountEachConcurrentAdditionExactlyOnce() throws Exception {
+        StripedCounter counter = new StripedCounter(8);
+        AtomicLong drained = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                for (int j = 0; j < 100000; j++) {
+                    counter.add(1);
+                }
+            }));
+        }
+        Thread drainer = new Thread(() -> {
+            awaitQuietly(start);
+            for (int j = 0; j < 1000; j++) {
+                drained.addAndGet(counter.sumThenReset());
+            }
+        });
+        threads.forEach(Thread::start);
+        drainer.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        drainer.join();
+
+        Assert.assertEquals(800000, drained.get() + counter.sumThenReset());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
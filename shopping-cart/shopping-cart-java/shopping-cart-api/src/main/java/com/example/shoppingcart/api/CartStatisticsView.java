@@ -0,0 +1,39 @@
+package com.example.shoppingcart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * The shopping carts created and checked out during one minute.
+ */
+@Value
+@JsonDeserialize
+public final class CartStatisticsView {
+    /**
+     * The start of the minute.
+     */
+    public final Instant minute;
+
+    public final long created;
+
+    public final long checkedOut;
+
+    /**
+     * The average time from creation to checkout of the carts checked out during that minute, if any, over the carts
+     * whose creation is known.
+     */
+    public final Optional<Long> averageTimeToCheckoutMillis;
+
+    @JsonCreator
+    public CartStatisticsView(Instant minute, long created, long checkedOut, Optional<Long> averageTimeToCheckoutMillis) {
+        this.minute = Preconditions.checkNotNull(minute, "minute");
+        this.created = created;
+        this.checkedOut = checkedOut;
+        this.averageTimeToCheckoutMillis = Preconditions.checkNotNull(averageTimeToCheckoutMillis, "averageTimeToCheckoutMillis");
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.shoppingcart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+/**
+ * An item that was often put in a shopping cart recently.
+ */
+@Value
+@JsonDeserialize
+public final class PopularItemView {
+    public final String itemId;
+
+    /**
+     * How many times the item was added, or had its quantity adjusted, during the window. An estimate, which may
+     * be slightly above the real count but never below.
+     */
+    public final long count;
+
+    @JsonCreator
+    public PopularItemView(String itemId, long count) {
+        this.itemId = Preconditions.checkNotNull(itemId, "itemId");
+        this.count = count;
+    }
+}
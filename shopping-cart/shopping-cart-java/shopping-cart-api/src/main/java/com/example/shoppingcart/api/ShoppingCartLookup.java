@@ -0,0 +1,46 @@
+package com.example.shoppingcart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * The result of looking up one of the shopping carts of a batch: either the cart, or the reason why it could not
+ * be read.
+ */
+@Value
+@JsonDeserialize
+public final class ShoppingCartLookup {
+    /**
+     * The ID of the shopping cart.
+     */
+    public final String id;
+
+    /**
+     * The shopping cart, if it could be read.
+     */
+    public final Optional<ShoppingCartView> cart;
+
+    /**
+     * Why the shopping cart could not be read.
+     */
+    public final Optional<String> error;
+
+    @JsonCreator
+    public ShoppingCartLookup(String id, Optional<ShoppingCartView> cart, Optional<String> error) {
+        this.id = Preconditions.checkNotNull(id, "id");
+        this.cart = Preconditions.checkNotNull(cart, "cart");
+        this.error = Preconditions.checkNotNull(error, "error");
+    }
+
+    public static ShoppingCartLookup found(ShoppingCartView cart) {
+        return new ShoppingCartLookup(cart.getId(), Optional.of(cart), Optional.empty());
+    }
+
+    public static ShoppingCartLookup failed(String id, String error) {
+        return new ShoppingCartLookup(id, Optional.empty(), Optional.of(error));
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.shoppingcart.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A page of shopping cart reports.
+ */
+@Value
+@JsonDeserialize
+public final class ShoppingCartReportPage {
+    /**
+     * The reports of this page.
+     */
+    public final List<ShoppingCartReportView> reports;
+
+    /**
+     * The cursor to pass to get the next page, if there is one.
+     */
+    public final Optional<String> next;
+
+    @JsonCreator
+    public ShoppingCartReportPage(List<ShoppingCartReportView> reports, Optional<String> next) {
+        this.reports = Preconditions.checkNotNull(reports, "reports");
+        this.next = Preconditions.checkNotNull(next, "next");
+    }
+}
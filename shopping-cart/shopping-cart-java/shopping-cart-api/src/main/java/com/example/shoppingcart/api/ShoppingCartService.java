@@ -2,13 +2,19 @@ package com.example.shoppingcart.api;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.Descriptor;
 import com.lightbend.lagom.javadsl.api.Service;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.broker.kafka.KafkaProperties;
+import com.lightbend.lagom.javadsl.api.deser.PathParamSerializers;
 import com.lightbend.lagom.javadsl.api.transport.Method;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
 import static com.lightbend.lagom.javadsl.api.Service.*;
 
 /**
@@ -24,10 +30,29 @@ public interface ShoppingCartService extends Service {
     /**
      * Get a shopping cart.
      * <p>
-     * Example: curl http://localhost:9000/shoppingcart/123
+     * The response has an ETag that changes whenever the cart changes. A request with an If-None-Match header
+     * holding the current ETag gets an empty 304 Not Modified response.
+     * <p>
+     * Example: curl -i -H 'If-None-Match: "3"' http://localhost:9000/shoppingcart/123
      */
     ServiceCall<NotUsed, ShoppingCartView> get(String id);
 
+    /**
+     * Get several shopping carts at once. The result has one entry per requested id, in the same order, with either
+     * the cart or the reason why it could not be read.
+     * <p>
+     * Example: curl -H "Content-Type: application/json" -X POST -d '["123", "456"]' http://localhost:9000/shoppingcart/batch-get
+     */
+    ServiceCall<List<String>, List<ShoppingCartLookup>> batchGet();
+
+    /**
+     * Follow the changes of a shopping cart over a WebSocket: the current cart is sent first, and then the new cart
+     * every time it changes, instead of polling {@link #get(String)}.
+     * <p>
+     * Example: websocat ws://localhost:9000/shoppingcart/123/changes
+     */
+    ServiceCall<NotUsed, Source<ShoppingCartView, NotUsed>> changes(String id);
+
     /**
      * Get a shopping cart report (view model).
      *
@@ -35,13 +60,70 @@ public interface ShoppingCartService extends Service {
      */
     ServiceCall<NotUsed, ShoppingCartReportView> getReport(String id);
 
+    /**
+     * List the shopping cart reports created, or checked out, within a time range, from the oldest to the most
+     * recent. A page has at most {@code limit} reports, the next one is read by passing the {@code next} cursor of
+     * the page as {@code after}.
+     * <p>
+     * Example: curl 'http://localhost:9000/shoppingcart/reports?by=checkout&from=2020-03-01T00:00:00Z&to=2020-03-02T00:00:00Z&limit=100'
+     *
+     * @param by either {@code creation} or {@code checkout}
+     */
+    ServiceCall<NotUsed, ShoppingCartReportPage> findReports(String by, Instant from, Instant to, Optional<String> after,
+                                                             Optional<Integer> limit);
+
+    /**
+     * Get the number of shopping carts created and checked out per minute within a time range, and their average
+     * time to checkout. Only the minutes with any activity are listed, from the oldest to the most recent.
+     * <p>
+     * Example: curl 'http://localhost:9000/shoppingcart/statistics?from=2020-03-01T00:00:00Z&to=2020-03-01T01:00:00Z'
+     */
+    ServiceCall<NotUsed, List<CartStatisticsView>> getStatistics(Instant from, Instant to);
+
+    /**
+     * Get the items most often put in a shopping cart during the last minutes, from the most to the least popular.
+     * The window is set by the service, and the counts are estimates.
+     * <p>
+     * Example: curl 'http://localhost:9000/shoppingcart/popular-items?limit=10'
+     */
+    ServiceCall<NotUsed, List<PopularItemView>> getPopularItems(Optional<Integer> limit);
+
+    /**
+     * Get the ids of the shopping carts not checked out yet that contain an item, streamed over a WebSocket. The
+     * carts are found from an index that is updated shortly after they change.
+     * <p>
+     * Example: websocat ws://localhost:9000/shoppingcart/items/abc/carts
+     */
+    ServiceCall<NotUsed, Source<String, NotUsed>> getOpenCartsContaining(String itemId);
+
+    /**
+     * Get the reports of several shopping carts at once, streamed over a WebSocket as they are read. Carts without
+     * a report are skipped.
+     * <p>
+     * Example: echo '["123", "456"]' | websocat ws://localhost:9000/shoppingcart/reports/batch-get
+     */
+    ServiceCall<List<String>, Source<ShoppingCartReportView, NotUsed>> getReports();
+
     /**
      * Update an items quantity in the shopping cart.
      * <p>
-     * Example: curl -H "Content-Type: application/json" -X POST -d '{"itemId": 456, "quantity": 2}' http://localhost:9000/shoppingcart/123
+     * The calls that change a cart accept an Idempotency-Key header, once shopping-cart.serialization.write-version
+     * is 5, and ignore it before. A retried request with the key of a request
+     * that was accepted is accepted again, without changing the cart, and responds with the current cart. The last
+     * 16 keys of each cart are remembered, so a client should use a new key for every change.
+     * <p>
+     * Example: curl -H "Content-Type: application/json" -H "Idempotency-Key: 5f2b" -X POST -d '{"itemId": 456, "quantity": 2}' http://localhost:9000/shoppingcart/123
      */
     ServiceCall<ShoppingCartItem, Done> addItem(String id);
 
+    /**
+     * Add several items to the shopping cart at once. Either all items are added or, if any of them is
+     * rejected, none of them is.
+     * <p>
+     * Example: curl -H "Content-Type: application/json" -X POST -d '[{"itemId": 456, "quantity": 2}, {"itemId": 789, "quantity": 1}]' http://localhost:9000/shoppingcart/123/items
+     */
+    ServiceCall<List<ShoppingCartItem>, ShoppingCartView> addItems(String id);
+
     /**
      * Remove an item in the shopping cart.
      *
@@ -57,9 +139,10 @@ public interface ShoppingCartService extends Service {
     ServiceCall<Quantity, ShoppingCartView> adjustItemQuantity(String cartId, String itemId);
 
     /**
-     * Checkout the shopping cart.
+     * Checkout the shopping cart. A retried checkout with the Idempotency-Key of a checkout that was accepted is
+     * accepted again, once the Idempotency-Key header is read, see {@link #addItem(String)}.
      * <p>
-     * Example: curl -X POST http://localhost:9000/shoppingcart/123/checkout
+     * Example: curl -H "Idempotency-Key: 7c1e" -X POST http://localhost:9000/shoppingcart/123/checkout
      */
     ServiceCall<NotUsed, Done> checkout(String id);
 
@@ -72,9 +155,19 @@ public interface ShoppingCartService extends Service {
     default Descriptor descriptor() {
         return named("shopping-cart")
             .withCalls(
+                // before GET /shoppingcart/:id, which would match it too
+                restCall(Method.GET, "/shoppingcart/reports?by&from&to&after&limit", this::findReports),
+                restCall(Method.GET, "/shoppingcart/statistics?from&to", this::getStatistics),
+                restCall(Method.GET, "/shoppingcart/popular-items?limit", this::getPopularItems),
                 restCall(Method.GET, "/shoppingcart/:id", this::get),
+                // before POST /shoppingcart/:id, which would match it too
+                restCall(Method.POST, "/shoppingcart/batch-get", this::batchGet),
+                restCall(Method.GET, "/shoppingcart/:id/changes", this::changes),
                 restCall(Method.GET, "/shoppingcart/:id/report", this::getReport),
+                pathCall("/shoppingcart/reports/batch-get", this::getReports),
+                pathCall("/shoppingcart/items/:itemId/carts", this::getOpenCartsContaining),
                 restCall(Method.POST, "/shoppingcart/:id", this::addItem),
+                restCall(Method.POST, "/shoppingcart/:id/items", this::addItems),
                 restCall(Method.DELETE, "/shoppingcart/:cartId/item/:itemId", this::removeItem),
                 restCall(Method.PATCH, "/shoppingcart/:cartId/item/:itemId", this::adjustItemQuantity),
                 restCall(Method.POST, "/shoppingcart/:id/checkout", this::checkout)
@@ -88,6 +181,7 @@ public interface ShoppingCartService extends Service {
                     // name as the partition key.
                     .withProperty(KafkaProperties.partitionKeyStrategy(), ShoppingCartView::getId)
             )
+            .withPathParamSerializer(Instant.class, PathParamSerializers.required("Instant", Instant::parse, Instant::toString))
             .withAutoAcl(true);
     }
 }
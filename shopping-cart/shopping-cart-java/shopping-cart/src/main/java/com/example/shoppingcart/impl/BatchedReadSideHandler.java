@@ -0,0 +1,130 @@
+package com.example.shoppingcart.impl;
+
+import akka.Done;
+import akka.japi.Pair;
+import akka.stream.javadsl.Flow;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A read-side handler that writes the events of a tag in batches, instead of one transaction per event.
+ * <p>
+ * The events are grouped for up to {@code batch-window}, or until {@code batch-max-events} are received, and each
+ * batch is written by {@link #write(EntityManager, List)} in the same transaction as the offset of its last event.
+ * <p>
+ * The offsets are stored with PostgreSQL specific statements in the same table as the ones of the
+ * {@link com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide} handler, which is still used to prepare the
+ * schema and to load the offsets.
+ */
+abstract class BatchedReadSideHandler extends ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> {
+
+    private final ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> jpaHandler;
+    private final JpaSession jpaSession;
+    private final String readSideId;
+    private final int maxEvents;
+    private final Duration window;
+    private final String offsetTable;
+    private final Config offsetColumns;
+
+    private volatile AggregateEventTag<ShoppingCartEntity.Event> tag;
+
+    /**
+     * @param batchConfig the config holding the {@code batch-max-events} and {@code batch-window} settings
+     */
+    BatchedReadSideHandler(ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> jpaHandler, JpaSession jpaSession,
+                           String readSideId, Config config, Config batchConfig) {
+        this.jpaHandler = jpaHandler;
+        this.jpaSession = jpaSession;
+        this.readSideId = readSideId;
+        this.maxEvents = batchConfig.getInt("batch-max-events");
+        this.window = batchConfig.getDuration("batch-window");
+
+        Config offset = config.getConfig("lagom.persistence.read-side.jdbc.tables.offset");
+        String schemaName = offset.getString("schemaName");
+        this.offsetTable = schemaName.isEmpty() ? offset.getString("tableName") : schemaName + "." + offset.getString("tableName");
+        this.offsetColumns = offset.getConfig("columnNames");
+    }
+
+    /**
+     * Writes a batch of events, in order.
+     */
+    protected abstract void write(EntityManager entityManager, List<ShoppingCartEntity.Event> events);
+
+    /**
+     * Called once a batch is committed.
+     */
+    protected void committed(List<ShoppingCartEntity.Event> events) {
+    }
+
+    protected final AggregateEventTag<ShoppingCartEntity.Event> tag() {
+        return tag;
+    }
+
+    @Override
+    public CompletionStage<Done> globalPrepare() {
+        return jpaHandler.globalPrepare();
+    }
+
+    @Override
+    public CompletionStage<Offset> prepare(AggregateEventTag<ShoppingCartEntity.Event> tag) {
+        this.tag = tag;
+        return jpaHandler.prepare(tag);
+    }
+
+    @Override
+    public Flow<Pair<ShoppingCartEntity.Event, Offset>, Done, ?> handle() {
+        return Flow.<Pair<ShoppingCartEntity.Event, Offset>>create()
+                .groupedWithin(maxEvents, window)
+                .mapAsync(1, this::writeBatch);
+    }
+
+    private CompletionStage<Done> writeBatch(List<Pair<ShoppingCartEntity.Event, Offset>> batch) {
+        List<ShoppingCartEntity.Event> events = new ArrayList<>(batch.size());
+        for (Pair<ShoppingCartEntity.Event, Offset> eventAndOffset : batch) {
+            events.add(eventAndOffset.first());
+        }
+        Offset offset = batch.get(batch.size() - 1).second();
+
+        return jpaSession.withTransaction(entityManager -> {
+            write(entityManager, events);
+            updateOffset(entityManager, offset);
+            return Done.getInstance();
+        }).thenApply(done -> {
+            committed(events);
+            return done;
+        });
+    }
+
+    private void updateOffset(EntityManager entityManager, Offset offset) {
+        String offsetColumn;
+        Object offsetValue;
+        if (offset instanceof Offset.Sequence) {
+            offsetColumn = offsetColumns.getString("sequenceOffset");
+            offsetValue = ((Offset.Sequence) offset).value();
+        } else if (offset instanceof Offset.TimeBasedUUID) {
+            offsetColumn = offsetColumns.getString("timeUuidOffset");
+            offsetValue = ((Offset.TimeBasedUUID) offset).value().toString();
+        } else {
+            return;
+        }
+        String readSideIdColumn = offsetColumns.getString("readSideId");
+        String tagColumn = offsetColumns.getString("tag");
+        Query upsert = entityManager.createNativeQuery(
+                "INSERT INTO " + offsetTable + " (" + readSideIdColumn + ", " + tagColumn + ", " + offsetColumn + ") VALUES (?, ?, ?)"
+                        + " ON CONFLICT (" + readSideIdColumn + ", " + tagColumn + ") DO UPDATE SET " + offsetColumn + " = EXCLUDED." + offsetColumn);
+        upsert.setParameter(1, readSideId);
+        upsert.setParameter(2, tag.tag());
+        upsert.setParameter(3, offsetValue);
+        upsert.executeUpdate();
+    }
+}
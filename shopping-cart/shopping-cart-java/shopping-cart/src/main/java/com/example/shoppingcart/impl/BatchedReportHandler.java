@@ -0,0 +1,132 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the shopping cart reports in batches, instead of one transaction and a couple of queries per event.
+ * <p>
+ * Only the first {@link ShoppingCartEntity.ItemAdded} and the last {@link ShoppingCartEntity.CheckedOut} of each
+ * cart of a batch are kept. The whole batch is then written with one {@code INSERT ... ON CONFLICT DO NOTHING} for
+ * the new reports, one {@code UPDATE} for the checkouts and one {@code DELETE} for the expired carts. The cached
+ * reports of the carts of the batch are invalidated once it is committed.
+ * <p>
+ * The statements are specific to PostgreSQL. The offsets are shared with the
+ * {@link com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide} handler, so both modes can be switched without
+ * reprocessing the events.
+ */
+final class BatchedReportHandler extends BatchedReadSideHandler {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ReportCache reportCache;
+
+    BatchedReportHandler(ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> jpaHandler, JpaSession jpaSession,
+                         String readSideId, Config config, ReportCache reportCache) {
+        super(jpaHandler, jpaSession, readSideId, config, config.getConfig("shopping-cart.report"));
+        this.reportCache = reportCache;
+    }
+
+    @Override
+    protected void write(EntityManager entityManager, List<ShoppingCartEntity.Event> events) {
+        Map<String, Instant> creationDates = new LinkedHashMap<>();
+        Map<String, Instant> checkoutDates = new LinkedHashMap<>();
+        Set<String> expired = new LinkedHashSet<>();
+        for (ShoppingCartEntity.Event event : events) {
+            if (event instanceof ShoppingCartEntity.ItemAdded) {
+                ShoppingCartEntity.ItemAdded itemAdded = (ShoppingCartEntity.ItemAdded) event;
+                creationDates.putIfAbsent(itemAdded.getShoppingCartId(), itemAdded.getEventTime());
+            } else if (event instanceof ShoppingCartEntity.CheckedOut) {
+                ShoppingCartEntity.CheckedOut checkedOut = (ShoppingCartEntity.CheckedOut) event;
+                checkoutDates.put(checkedOut.getShoppingCartId(), checkedOut.getEventTime());
+            } else if (event instanceof ShoppingCartEntity.CartExpired) {
+                String cartId = ((ShoppingCartEntity.CartExpired) event).getShoppingCartId();
+                creationDates.remove(cartId);
+                expired.add(cartId);
+            }
+        }
+
+        logger.debug("Writing a batch of " + events.size() + " events for tag " + tag().tag() + ": " + creationDates.size()
+                + " new reports, " + checkoutDates.size() + " checkouts and " + expired.size() + " expired carts");
+        insertReports(entityManager, creationDates);
+        updateCheckoutDates(entityManager, checkoutDates);
+        deleteReports(entityManager, expired);
+    }
+
+    @Override
+    protected void committed(List<ShoppingCartEntity.Event> events) {
+        // once committed, so that the reports can't be cached again before they change
+        for (ShoppingCartEntity.Event event : events) {
+            if (event instanceof ShoppingCartEntity.ItemAdded) {
+                reportCache.invalidate(((ShoppingCartEntity.ItemAdded) event).getShoppingCartId());
+            } else if (event instanceof ShoppingCartEntity.CheckedOut) {
+                reportCache.invalidate(((ShoppingCartEntity.CheckedOut) event).getShoppingCartId());
+            } else if (event instanceof ShoppingCartEntity.CartExpired) {
+                reportCache.invalidate(((ShoppingCartEntity.CartExpired) event).getShoppingCartId());
+            }
+        }
+    }
+
+    private void insertReports(EntityManager entityManager, Map<String, Instant> creationDates) {
+        if (creationDates.isEmpty()) {
+            return;
+        }
+        List<String> rows = new ArrayList<>(creationDates.size());
+        for (int i = 0; i < creationDates.size(); i++) {
+            rows.add("(?, ?)");
+        }
+        Query insert = entityManager.createNativeQuery(
+                "INSERT INTO ShoppingCartReport (id, creationDate) VALUES " + String.join(", ", rows) + " ON CONFLICT (id) DO NOTHING");
+        bind(insert, creationDates);
+        insert.executeUpdate();
+    }
+
+    private void updateCheckoutDates(EntityManager entityManager, Map<String, Instant> checkoutDates) {
+        if (checkoutDates.isEmpty()) {
+            return;
+        }
+        List<String> rows = new ArrayList<>(checkoutDates.size());
+        for (int i = 0; i < checkoutDates.size(); i++) {
+            rows.add("(?, CAST(? AS timestamp))");
+        }
+        Query update = entityManager.createNativeQuery(
+                "UPDATE ShoppingCartReport SET checkoutDate = checkout.checkoutDate"
+                        + " FROM (VALUES " + String.join(", ", rows) + ") AS checkout (id, checkoutDate)"
+                        + " WHERE ShoppingCartReport.id = checkout.id");
+        bind(update, checkoutDates);
+        if (update.executeUpdate() < checkoutDates.size()) {
+            // a read side started or rebuilt after the history of a cart was deleted only sees its last events
+            logger.warn("Didn't find all carts for checkout, skipping the missing ones. CartIDs: " + checkoutDates.keySet());
+        }
+    }
+
+    private void deleteReports(EntityManager entityManager, Set<String> cartIds) {
+        if (cartIds.isEmpty()) {
+            return;
+        }
+        entityManager.createQuery("DELETE FROM ShoppingCartReport r WHERE r.id IN :cartIds")
+                .setParameter("cartIds", cartIds)
+                .executeUpdate();
+    }
+
+    private void bind(Query query, Map<String, Instant> dates) {
+        int position = 1;
+        for (Map.Entry<String, Instant> date : dates.entrySet()) {
+            query.setParameter(position++, date.getKey());
+            query.setParameter(position++, date.getValue());
+        }
+    }
+}
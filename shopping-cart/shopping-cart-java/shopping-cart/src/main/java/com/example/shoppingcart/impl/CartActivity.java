@@ -0,0 +1,57 @@
+package com.example.shoppingcart.impl;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+
+/**
+ * When a shopping cart was last used, and when it was checked out or expired, for the {@link CartExpiry}.
+ */
+@Entity
+@Table(indexes = {
+        // the open carts idle for the longest, and the carts closed for the longest, come first
+        @Index(name = "cartactivity_closedat_lastactivity", columnList = "closedAt, lastActivity")
+})
+public class CartActivity {
+    /**
+     * The ID of the shopping cart.
+     */
+    @Id
+    private String id;
+
+    @NotNull
+    private Instant lastActivity;
+
+    /**
+     * When the cart was checked out or expired, null while it is open.
+     */
+    private Instant closedAt;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @NotNull
+    public Instant getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(@NotNull Instant lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public Instant getClosedAt() {
+        return closedAt;
+    }
+
+    public void setClosedAt(Instant closedAt) {
+        this.closedAt = closedAt;
+    }
+}
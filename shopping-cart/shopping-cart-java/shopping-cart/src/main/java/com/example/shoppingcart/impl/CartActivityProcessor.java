@@ -0,0 +1,142 @@
+package com.example.shoppingcart.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the {@link CartActivity} of every shopping cart: the time of its last event, and the time it was checked
+ * out or expired. The events are written in batches, keeping only the last times of each cart of a batch.
+ */
+public class CartActivityProcessor extends ReadSideProcessor<ShoppingCartEntity.Event> {
+
+    private static final String READ_SIDE_ID = "shopping-cart-activity";
+
+    private final JpaReadSide jpaReadSide;
+    private final JpaSession jpaSession;
+    private final Config config;
+    private final EventTagMigration tagMigration;
+
+    @Inject
+    public CartActivityProcessor(JpaReadSide jpaReadSide, JpaSession jpaSession, Config config, EventTagMigration tagMigration) {
+        this.jpaReadSide = jpaReadSide;
+        this.jpaSession = jpaSession;
+        this.config = config;
+        this.tagMigration = tagMigration;
+    }
+
+    @Override
+    public ReadSideHandler<ShoppingCartEntity.Event> buildHandler() {
+        // only used to prepare the schema and to load the offsets
+        ReadSideHandler<ShoppingCartEntity.Event> jpaHandler =
+                jpaReadSide.<ShoppingCartEntity.Event>builder(READ_SIDE_ID).setGlobalPrepare(this::createSchema).build();
+        return tagMigration.wrap(READ_SIDE_ID, new Handler(jpaHandler));
+    }
+
+    private void createSchema(@SuppressWarnings("unused") EntityManager ignored) {
+        Persistence.generateSchema("default", ImmutableMap.of("hibernate.hbm2ddl.auto", "update"));
+    }
+
+    @Override
+    public PSequence<AggregateEventTag<ShoppingCartEntity.Event>> aggregateTags() {
+        return tagMigration.tags().allTags();
+    }
+
+    private final class Handler extends BatchedReadSideHandler {
+
+        private final Logger logger = LoggerFactory.getLogger(CartActivityProcessor.class);
+
+        Handler(ReadSideHandler<ShoppingCartEntity.Event> jpaHandler) {
+            super(jpaHandler, jpaSession, READ_SIDE_ID, config, config.getConfig("shopping-cart.expiry"));
+        }
+
+        @Override
+        protected void write(EntityManager entityManager, List<ShoppingCartEntity.Event> events) {
+            Map<String, Instant> lastActivities = new LinkedHashMap<>();
+            Map<String, Instant> closingDates = new LinkedHashMap<>();
+            for (ShoppingCartEntity.Event event : events) {
+                if (event instanceof ShoppingCartEntity.ItemAdded) {
+                    ShoppingCartEntity.ItemAdded itemAdded = (ShoppingCartEntity.ItemAdded) event;
+                    lastActivities.put(itemAdded.getShoppingCartId(), itemAdded.getEventTime());
+                } else if (event instanceof ShoppingCartEntity.ItemRemoved) {
+                    ShoppingCartEntity.ItemRemoved itemRemoved = (ShoppingCartEntity.ItemRemoved) event;
+                    lastActivities.put(itemRemoved.getShoppingCartId(), itemRemoved.getEventTime());
+                } else if (event instanceof ShoppingCartEntity.ItemQuantityAdjusted) {
+                    ShoppingCartEntity.ItemQuantityAdjusted adjusted = (ShoppingCartEntity.ItemQuantityAdjusted) event;
+                    lastActivities.put(adjusted.getShoppingCartId(), adjusted.getEventTime());
+                } else if (event instanceof ShoppingCartEntity.CheckedOut) {
+                    ShoppingCartEntity.CheckedOut checkedOut = (ShoppingCartEntity.CheckedOut) event;
+                    lastActivities.put(checkedOut.getShoppingCartId(), checkedOut.getEventTime());
+                    closingDates.put(checkedOut.getShoppingCartId(), checkedOut.getEventTime());
+                } else if (event instanceof ShoppingCartEntity.CartExpired) {
+                    ShoppingCartEntity.CartExpired expired = (ShoppingCartEntity.CartExpired) event;
+                    closingDates.put(expired.getShoppingCartId(), expired.getEventTime());
+                }
+            }
+
+            logger.debug("Writing a batch of " + events.size() + " events for tag " + tag().tag() + ": "
+                    + lastActivities.size() + " carts used and " + closingDates.size() + " closed");
+            upsertLastActivities(entityManager, lastActivities);
+            updateClosingDates(entityManager, closingDates);
+        }
+
+        private void upsertLastActivities(EntityManager entityManager, Map<String, Instant> lastActivities) {
+            if (lastActivities.isEmpty()) {
+                return;
+            }
+            Query upsert = entityManager.createNativeQuery(
+                    "INSERT INTO CartActivity (id, lastActivity) VALUES " + rows(lastActivities.size())
+                            + " ON CONFLICT (id) DO UPDATE SET lastActivity = GREATEST(CartActivity.lastActivity, EXCLUDED.lastActivity)");
+            bind(upsert, lastActivities);
+            upsert.executeUpdate();
+        }
+
+        private void updateClosingDates(EntityManager entityManager, Map<String, Instant> closingDates) {
+            if (closingDates.isEmpty()) {
+                return;
+            }
+            List<String> rows = new ArrayList<>(closingDates.size());
+            for (int i = 0; i < closingDates.size(); i++) {
+                rows.add("(?, CAST(? AS timestamp))");
+            }
+            Query update = entityManager.createNativeQuery(
+                    "UPDATE CartActivity SET closedAt = closing.closedAt"
+                            + " FROM (VALUES " + String.join(", ", rows) + ") AS closing (id, closedAt)"
+                            + " WHERE CartActivity.id = closing.id");
+            bind(update, closingDates);
+            update.executeUpdate();
+        }
+
+        private String rows(int count) {
+            List<String> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                rows.add("(?, ?)");
+            }
+            return String.join(", ", rows);
+        }
+
+        private void bind(Query query, Map<String, Instant> dates) {
+            int position = 1;
+            for (Map.Entry<String, Instant> date : dates.entrySet()) {
+                query.setParameter(position++, date.getKey());
+                query.setParameter(position++, date.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.shoppingcart.impl;
+
+import akka.persistence.typed.PersistenceId;
+import com.lightbend.lagom.javadsl.persistence.ReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.regex.Pattern;
+
+@Singleton
+public class CartActivityRepository {
+
+    private final JpaSession jpaSession;
+
+    private final String journalTable;
+    private final Config journalColumns;
+    private final String snapshotTable;
+    private final Config snapshotColumns;
+    private final String offsetTable;
+    private final Config offsetColumns;
+    private final String tagSeparator;
+
+    @Inject
+    public CartActivityRepository(ReadSide readSide, JpaSession jpaSession, Config config) {
+        this.jpaSession = jpaSession;
+        Config journal = config.getConfig("jdbc-journal.tables.journal");
+        this.journalTable = tableName(journal);
+        this.journalColumns = journal.getConfig("columnNames");
+        Config snapshot = config.getConfig("jdbc-snapshot-store.tables.snapshot");
+        this.snapshotTable = tableName(snapshot);
+        this.snapshotColumns = snapshot.getConfig("columnNames");
+        Config offset = config.getConfig("lagom.persistence.read-side.jdbc.tables.offset");
+        this.offsetTable = tableName(offset);
+        this.offsetColumns = offset.getConfig("columnNames");
+        this.tagSeparator = config.getString("akka-persistence-jdbc.tagSeparator");
+        readSide.register(CartActivityProcessor.class);
+    }
+
+    private static String tableName(Config table) {
+        String schemaName = table.getString("schemaName");
+        return schemaName.isEmpty() ? table.getString("tableName") : schemaName + "." + table.getString("tableName");
+    }
+
+    /**
+     * The open carts not used since the given time, the longest idle first.
+     */
+    CompletionStage<List<String>> findIdleSince(Instant since, int limit) {
+        return jpaSession.withTransaction(em -> em.createQuery(
+                "SELECT a.id FROM CartActivity a WHERE a.closedAt IS NULL AND a.lastActivity < :since ORDER BY a.lastActivity", String.class)
+                .setParameter("since", since)
+                .setMaxResults(limit)
+                .getResultList());
+    }
+
+    /**
+     * The carts checked out or expired before the given time, the longest closed first.
+     */
+    CompletionStage<List<String>> findClosedBefore(Instant before, int limit) {
+        return jpaSession.withTransaction(em -> em.createQuery(
+                "SELECT a.id FROM CartActivity a WHERE a.closedAt < :before ORDER BY a.closedAt", String.class)
+                .setParameter("before", before)
+                .setMaxResults(limit)
+                .getResultList());
+    }
+
+    /**
+     * Deletes the events and snapshots of a closed cart that precede its last snapshot, which it takes when it is
+     * closed, and then forgets its activity. A cart closed before it took that snapshot keeps the events after its
+     * last snapshot, if any.
+     * <p>
+     * Nothing is deleted while a read side or topic that processes the tags of the last event of the cart hasn't
+     * processed that event yet, according to its stored offsets, and the cart is then looked up again by a later sweep.
+     *
+     * @return whether the history of the cart was deleted
+     */
+    CompletionStage<Boolean> deleteHistory(String cartId) {
+        String persistenceId = PersistenceId.of(ShoppingCartEntity.ENTITY_TYPE_KEY.name(), cartId).id();
+        String snapshotPersistenceId = snapshotColumns.getString("persistenceId");
+        String snapshotSequenceNumber = snapshotColumns.getString("sequenceNumber");
+        String lastSnapshot = "(SELECT MAX(" + snapshotSequenceNumber + ") FROM " + snapshotTable
+                + " WHERE " + snapshotPersistenceId + " = ?)";
+        return jpaSession.withTransaction(em -> {
+            if (!isProcessed(em, persistenceId)) {
+                return false;
+            }
+            em.createNativeQuery("DELETE FROM " + journalTable
+                    + " WHERE " + journalColumns.getString("persistenceId") + " = ?"
+                    + " AND " + journalColumns.getString("sequenceNumber") + " < " + lastSnapshot)
+                    .setParameter(1, persistenceId)
+                    .setParameter(2, persistenceId)
+                    .executeUpdate();
+            em.createNativeQuery("DELETE FROM " + snapshotTable
+                    + " WHERE " + snapshotPersistenceId + " = ?"
+                    + " AND " + snapshotSequenceNumber + " < " + lastSnapshot)
+                    .setParameter(1, persistenceId)
+                    .setParameter(2, persistenceId)
+                    .executeUpdate();
+            em.createQuery("DELETE FROM CartActivity a WHERE a.id = :id")
+                    .setParameter("id", cartId)
+                    .executeUpdate();
+            return true;
+        });
+    }
+
+    /**
+     * Whether every read side and topic that stored an offset for one of the tags of the last event of the given cart
+     * processed that event.
+     */
+    private boolean isProcessed(EntityManager em, String persistenceId) {
+        String ordering = journalColumns.getString("ordering");
+        String tags = journalColumns.getString("tags");
+        @SuppressWarnings("unchecked")
+        List<Object[]> lastEvent = em.createNativeQuery("SELECT " + ordering + ", " + tags + " FROM " + journalTable
+                + " WHERE " + journalColumns.getString("persistenceId") + " = ?"
+                + " ORDER BY " + journalColumns.getString("sequenceNumber") + " DESC LIMIT 1")
+                .setParameter(1, persistenceId)
+                .getResultList();
+        if (lastEvent.isEmpty() || lastEvent.get(0)[1] == null) {
+            // no event is left to process
+            return true;
+        }
+        long lastOffset = ((Number) lastEvent.get(0)[0]).longValue();
+        List<String> eventTags = Arrays.asList(((String) lastEvent.get(0)[1]).split(Pattern.quote(tagSeparator)));
+        String sequenceOffset = offsetColumns.getString("sequenceOffset");
+        Number behind = (Number) em.createNativeQuery("SELECT COUNT(*) FROM " + offsetTable
+                + " WHERE " + offsetColumns.getString("tag") + " IN :tags"
+                + " AND (" + sequenceOffset + " IS NULL OR " + sequenceOffset + " < :lastOffset)")
+                .setParameter("tags", eventTags)
+                .setParameter("lastOffset", lastOffset)
+                .getSingleResult();
+        return behind.longValue() == 0;
+    }
+
+}
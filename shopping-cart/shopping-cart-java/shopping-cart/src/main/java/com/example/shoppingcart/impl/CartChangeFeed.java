@@ -0,0 +1,200 @@
+package com.example.shoppingcart.impl;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Pushes the changes of the shopping carts to the clients that follow them.
+ * <p>
+ * Every cart publishes its new summary to a topic of its own after each change, and a node subscribes to the topic
+ * of a cart once, while any of its clients follows that cart, so the changes of a cart that nobody follows are never
+ * sent to another node. The changes are then handed to the clients of the node that follow that cart. A client that
+ * is too slow to keep up with {@code buffer-size} changes gets the changes already buffered and then the end of its
+ * stream, instead of silently missing the next ones, so that it can follow the cart again from its current state. A
+ * change can still be lost when a node leaves the cluster.
+ */
+final class CartChangeFeed {
+
+    static final String TOPIC_PREFIX = "shopping-cart-changes-";
+
+    private final ActorRef mediator;
+    // the subscriber of this node to the topics of the carts followed by its clients
+    private final ActorRef subscriber;
+    private final int bufferSize;
+    private final Duration subscribeTimeout;
+    private final Duration resyncAfter;
+
+    // the clients of this node, by the id of the cart they follow
+    private final ConcurrentMap<String, Followers> followers = new ConcurrentHashMap<>();
+
+    /**
+     * @param spawn spawns the subscriber of this node
+     */
+    CartChangeFeed(Function<Behavior<Object>, akka.actor.typed.ActorRef<Object>> spawn, ActorRef mediator,
+                   int bufferSize, Duration subscribeTimeout, Duration resyncAfter) {
+        this.mediator = mediator;
+        this.bufferSize = bufferSize;
+        this.subscribeTimeout = subscribeTimeout;
+        this.resyncAfter = resyncAfter;
+        // also receives the acknowledgements of the unsubscriptions, which are ignored
+        this.subscriber = Adapter.toClassic(spawn.apply(Behaviors.receive(Object.class)
+                .onMessage(ShoppingCartEntity.CartChanged.class, changed -> {
+                    deliver(changed);
+                    return Behaviors.same();
+                })
+                .build()));
+    }
+
+    /**
+     * The change feed of this node, with the settings of the {@code shopping-cart.change-feed} section of the config.
+     */
+    static CartChangeFeed start(ActorSystem system, Config config) {
+        Config settings = config.getConfig("shopping-cart.change-feed");
+        return new CartChangeFeed(behavior -> Adapter.spawn(system, behavior, "shopping-cart-change-feed"),
+                DistributedPubSub.get(system).mediator(), settings.getInt("buffer-size"),
+                settings.getDuration("subscribe-timeout"), settings.getDuration("resync-after"));
+    }
+
+    static String topic(String cartId) {
+        return TOPIC_PREFIX + cartId;
+    }
+
+    /**
+     * Publishes the new summary of a cart to the nodes that follow it.
+     */
+    void publish(String cartId, ShoppingCartEntity.Summary summary) {
+        mediator.tell(new DistributedPubSubMediator.Publish(topic(cartId), new ShoppingCartEntity.CartChanged(cartId, summary)),
+                ActorRef.noSender());
+    }
+
+    /**
+     * The current summary of the given cart, read with the given function, followed by its changes until the client
+     * falls behind by more than the buffer size.
+     * <p>
+     * The cart is read once this node is subscribed to its topic, so that no change published by the carts of this
+     * node is missed in between. The other nodes only publish to this node once the subscription reached them through
+     * the gossip of the pub sub registry, so the cart is read again after {@code resync-after}, in case it changed
+     * on another node until then. A summary is only pushed if it is more recent than the previous one.
+     */
+    CompletionStage<Source<ShoppingCartEntity.Summary, NotUsed>> follow(
+            String cartId, Supplier<CompletionStage<ShoppingCartEntity.Summary>> read, Materializer materializer) {
+        Pair<CompletionStage<Done>, Source<ShoppingCartEntity.Summary, NotUsed>> subscription =
+                subscribe(cartId).preMaterialize(materializer);
+        Source<ShoppingCartEntity.Summary, NotUsed> changes = subscription.second();
+        Source<ShoppingCartEntity.Summary, NotUsed> resync = Source.single(cartId)
+                .initialDelay(resyncAfter)
+                .mapAsync(1, id -> read.get().handle((summary, error) -> Optional.ofNullable(summary)))
+                .filter(Optional::isPresent)
+                .map(Optional::get);
+        return subscription.first()
+                .thenCompose(subscribed -> read.get())
+                .whenComplete((current, error) -> {
+                    if (error != null) {
+                        changes.runWith(Sink.cancelled(), materializer);
+                    }
+                })
+                .thenApply(current -> Source.single(current)
+                        .concat(changes.merge(resync))
+                        .<ShoppingCartEntity.Summary>statefulMapConcat(() -> {
+                            long[] lastSequenceNr = {Long.MIN_VALUE};
+                            return summary -> {
+                                if (summary.getSequenceNr() <= lastSequenceNr[0]) {
+                                    return Collections.emptyList();
+                                }
+                                lastSequenceNr[0] = summary.getSequenceNr();
+                                return Collections.singletonList(summary);
+                            };
+                        }));
+    }
+
+    /**
+     * The changes of the given cart, from the moment the returned source is materialized, until the client falls
+     * behind by more than the buffer size. The materialized stage completes once this node is subscribed to the
+     * topic of the cart.
+     */
+    Source<ShoppingCartEntity.Summary, CompletionStage<Done>> subscribe(String cartId) {
+        return Source.<ShoppingCartEntity.Summary>queue(bufferSize, OverflowStrategy.dropNew())
+                .mapMaterializedValue(queue -> {
+                    Followers following = followers.compute(cartId, (id, current) -> {
+                        Followers cartFollowers = current == null ? new Followers(subscribeToTopic(id)) : current;
+                        cartFollowers.queues.add(queue);
+                        return cartFollowers;
+                    });
+                    queue.watchCompletion().whenComplete((done, error) -> unsubscribe(cartId, queue));
+                    return following.subscribed;
+                });
+    }
+
+    void deliver(ShoppingCartEntity.CartChanged changed) {
+        Followers cartFollowers = followers.get(changed.getCartId());
+        if (cartFollowers != null) {
+            for (SourceQueueWithComplete<ShoppingCartEntity.Summary> queue : cartFollowers.queues) {
+                queue.offer(changed.getSummary()).thenAccept(result -> {
+                    if (result == QueueOfferResult.dropped()) {
+                        // the client would otherwise keep a stale view of the cart
+                        queue.complete();
+                    }
+                });
+            }
+        }
+    }
+
+    int subscribers(String cartId) {
+        Followers cartFollowers = followers.get(cartId);
+        return cartFollowers == null ? 0 : cartFollowers.queues.size();
+    }
+
+    private CompletionStage<Done> subscribeToTopic(String cartId) {
+        return Patterns.ask(mediator, new DistributedPubSubMediator.Subscribe(topic(cartId), subscriber), subscribeTimeout)
+                .thenApply(ack -> Done.getInstance());
+    }
+
+    private void unsubscribe(String cartId, SourceQueueWithComplete<ShoppingCartEntity.Summary> queue) {
+        followers.computeIfPresent(cartId, (id, cartFollowers) -> {
+            cartFollowers.queues.remove(queue);
+            if (!cartFollowers.queues.isEmpty()) {
+                return cartFollowers;
+            }
+            // within the computation, so that it reaches the mediator before the subscription of a next client
+            mediator.tell(new DistributedPubSubMediator.Unsubscribe(topic(id), subscriber), subscriber);
+            return null;
+        });
+    }
+
+    private static final class Followers {
+        final Set<SourceQueueWithComplete<ShoppingCartEntity.Summary>> queues = ConcurrentHashMap.newKeySet();
+        // completed once this node is subscribed to the topic of the cart
+        final CompletionStage<Done> subscribed;
+
+        Followers(CompletionStage<Done> subscribed) {
+            this.subscribed = subscribed;
+        }
+    }
+}
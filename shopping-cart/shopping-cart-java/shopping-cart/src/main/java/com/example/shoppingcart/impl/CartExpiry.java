@@ -0,0 +1,144 @@
+package com.example.shoppingcart.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.ClusterSingleton;
+import akka.cluster.typed.SingletonActor;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Expires the shopping carts that are abandoned, and deletes the history of the carts that are closed.
+ * <p>
+ * Every {@code interval}, a single actor of the cluster looks up the {@link CartActivity} table for up to
+ * {@code batch-size} open carts not used for {@code expire-after}, and sends them an
+ * {@link ShoppingCartEntity.Expire}, so that they persist a {@link ShoppingCartEntity.CartExpired}. It then looks
+ * up to {@code batch-size} carts checked out or expired for {@code delete-history-after}, and deletes their events
+ * and snapshots but the last ones, unless a read side or topic didn't process their last events yet. Both are
+ * throttled to {@code carts-per-second}, so that a backlog of old carts is worked off without loading the database.
+ * <p>
+ * The {@code expiry.expired}, {@code expiry.rejected}, {@code expiry.history-deleted} and
+ * {@code expiry.history-kept} counters are exposed through the {@link ShoppingCartMetrics}.
+ */
+final class CartExpiry {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ClusterSharding sharding;
+    private final CartActivityRepository repository;
+    private final Materializer materializer;
+    private final ShoppingCartMetrics metrics;
+    private final Clock clock;
+    private final Duration expireAfter;
+    private final Duration deleteHistoryAfter;
+    private final int batchSize;
+    private final int cartsPerSecond;
+    private final Duration askTimeout;
+
+    private CartExpiry(ClusterSharding sharding, CartActivityRepository repository, Materializer materializer,
+                       ShoppingCartMetrics metrics, Clock clock, Config settings) {
+        this.sharding = sharding;
+        this.repository = repository;
+        this.materializer = materializer;
+        this.metrics = metrics;
+        this.clock = clock;
+        this.expireAfter = settings.getDuration("expire-after");
+        this.deleteHistoryAfter = settings.getDuration("delete-history-after");
+        this.batchSize = settings.getInt("batch-size");
+        this.cartsPerSecond = settings.getInt("carts-per-second");
+        this.askTimeout = settings.getDuration("ask-timeout");
+    }
+
+    /**
+     * Starts the cluster singleton that sweeps the carts, with the settings of the {@code shopping-cart.expiry}
+     * section of the config, unless it is disabled.
+     */
+    static void start(ActorSystem system, ClusterSharding sharding, CartActivityRepository repository, Config config,
+                      Materializer materializer) {
+        Config settings = config.getConfig("shopping-cart.expiry");
+        if (!settings.getBoolean("enabled")) {
+            return;
+        }
+        CartExpiry expiry = new CartExpiry(sharding, repository, materializer,
+                ShoppingCartMetrics.get(Adapter.toTyped(system)), Clock.systemUTC(), settings);
+        Behavior<Sweep> behavior = Behaviors.withTimers(timers -> {
+            timers.startTimerWithFixedDelay(Sweep.INSTANCE, settings.getDuration("interval"));
+            return expiry.idle();
+        });
+        ClusterSingleton.get(Adapter.toTyped(system)).init(SingletonActor.of(
+                Behaviors.supervise(behavior).onFailure(SupervisorStrategy.restart()), "shopping-cart-expiry"));
+    }
+
+    enum Sweep {
+        INSTANCE,
+        // sent by the actor to itself once a sweep is over
+        DONE
+    }
+
+    private Behavior<Sweep> idle() {
+        return Behaviors.receive((context, sweep) -> {
+            if (sweep != Sweep.INSTANCE) {
+                return Behaviors.same();
+            }
+            context.pipeToSelf(sweep(), (done, error) -> {
+                if (error != null) {
+                    logger.warn("Failed to sweep the shopping carts", error);
+                }
+                return Sweep.DONE;
+            });
+            return sweeping();
+        });
+    }
+
+    // the sweeps due while one is running are skipped
+    private Behavior<Sweep> sweeping() {
+        return Behaviors.receiveMessage(sweep -> sweep == Sweep.DONE ? idle() : Behaviors.same());
+    }
+
+    private CompletionStage<Done> sweep() {
+        Instant now = clock.instant();
+        Instant idleSince = now.minus(expireAfter);
+        return repository.findIdleSince(idleSince, batchSize)
+                .thenCompose(cartIds -> expire(cartIds, idleSince))
+                .thenCompose(done -> repository.findClosedBefore(now.minus(deleteHistoryAfter), batchSize))
+                .thenCompose(this::deleteHistory);
+    }
+
+    private CompletionStage<Done> expire(List<String> cartIds, Instant idleSince) {
+        return throttled(cartIds)
+                .mapAsync(1, cartId -> sharding.entityRefFor(ShoppingCartEntity.ENTITY_TYPE_KEY, cartId)
+                        .<ShoppingCartEntity.Confirmation>ask(replyTo -> new ShoppingCartEntity.Expire(idleSince, replyTo), askTimeout))
+                .runWith(Sink.foreach(confirmation -> {
+                    // rejected when the cart was used after it was looked up
+                    metrics.increment(confirmation instanceof ShoppingCartEntity.Accepted ? "expiry.expired" : "expiry.rejected");
+                }), materializer);
+    }
+
+    private CompletionStage<Done> deleteHistory(List<String> cartIds) {
+        return throttled(cartIds)
+                .mapAsync(1, repository::deleteHistory)
+                .runWith(Sink.foreach(deleted -> {
+                    // kept when a read side didn't process the last event of the cart yet, and looked up again later
+                    metrics.increment(deleted ? "expiry.history-deleted" : "expiry.history-kept");
+                }), materializer);
+    }
+
+    private Source<String, ?> throttled(List<String> cartIds) {
+        return Source.from(cartIds).throttle(cartsPerSecond, Duration.ofSeconds(1));
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.shoppingcart.impl;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable, compact map of item ids to quantities used as the shopping cart state.
+ * <p>
+ * Items are kept in two parallel arrays sorted by item id: the (interned) ids and their quantities as
+ * primitive ints. Lookups are binary searches and updates copy the arrays, which for the cart sizes we see is
+ * both cheaper and much smaller than a persistent hash trie of boxed quantities. As a {@link Map} it is
+ * serialized by Jackson exactly like the {@code PMap} it replaces, so existing snapshots remain readable.
+ * <p>
+ * Retained heap per cart, measured with JOL (see {@code CartItemsTest}) on a 64-bit JVM with compressed oops,
+ * excluding the item id strings and cached small Integers which are shared between carts:
+ * <pre>
+ *   items   HashTreePMap   CartItems
+ *       1         232 B        80 B
+ *      10       1,096 B       144 B
+ *     100       9,736 B       864 B
+ *   1,000     110,088 B     8,064 B
+ * </pre>
+ */
+final class CartItems extends AbstractMap<String, Integer> {
+
+    /**
+     * Item ids are repeated across a great number of carts, so we keep a single copy of each of them.
+     */
+    private static final Interner<String> ITEM_IDS = Interners.newWeakInterner();
+
+    private static final String[] NO_IDS = new String[0];
+    private static final int[] NO_QUANTITIES = new int[0];
+
+    static final CartItems EMPTY = new CartItems(NO_IDS, NO_QUANTITIES);
+
+    private final String[] itemIds;
+    private final int[] quantities;
+
+    private CartItems(String[] itemIds, int[] quantities) {
+        this.itemIds = itemIds;
+        this.quantities = quantities;
+    }
+
+    static CartItems from(Map<String, Integer> items) {
+        if (items instanceof CartItems) {
+            return (CartItems) items;
+        } else if (items.isEmpty()) {
+            return EMPTY;
+        }
+        SortedMap<String, Integer> sorted = new TreeMap<>(items);
+        String[] itemIds = new String[sorted.size()];
+        int[] quantities = new int[sorted.size()];
+        int index = 0;
+        for (Map.Entry<String, Integer> item : sorted.entrySet()) {
+            itemIds[index] = ITEM_IDS.intern(item.getKey());
+            quantities[index] = Preconditions.checkNotNull(item.getValue(), "quantity");
+            index++;
+        }
+        return new CartItems(itemIds, quantities);
+    }
+
+    /**
+     * Returns a copy of this map with the given quantity for the given item, adding the item if needed.
+     */
+    CartItems plus(String itemId, int quantity) {
+        int index = indexOf(Preconditions.checkNotNull(itemId, "itemId"));
+        if (index >= 0) {
+            if (quantities[index] == quantity) {
+                return this;
+            }
+            int[] newQuantities = quantities.clone();
+            newQuantities[index] = quantity;
+            return new CartItems(itemIds, newQuantities);
+        }
+
+        int insertAt = -(index + 1);
+        int size = itemIds.length;
+        String[] newItemIds = new String[size + 1];
+        int[] newQuantities = new int[size + 1];
+        System.arraycopy(itemIds, 0, newItemIds, 0, insertAt);
+        System.arraycopy(quantities, 0, newQuantities, 0, insertAt);
+        newItemIds[insertAt] = ITEM_IDS.intern(itemId);
+        newQuantities[insertAt] = quantity;
+        System.arraycopy(itemIds, insertAt, newItemIds, insertAt + 1, size - insertAt);
+        System.arraycopy(quantities, insertAt, newQuantities, insertAt + 1, size - insertAt);
+        return new CartItems(newItemIds, newQuantities);
+    }
+
+    /**
+     * Returns a copy of this map without the given item.
+     */
+    CartItems minus(String itemId) {
+        int index = indexOf(itemId);
+        if (index < 0) {
+            return this;
+        }
+        int size = itemIds.length;
+        if (size == 1) {
+            return EMPTY;
+        }
+        String[] newItemIds = new String[size - 1];
+        int[] newQuantities = new int[size - 1];
+        System.arraycopy(itemIds, 0, newItemIds, 0, index);
+        System.arraycopy(quantities, 0, newQuantities, 0, index);
+        System.arraycopy(itemIds, index + 1, newItemIds, index, size - index - 1);
+        System.arraycopy(quantities, index + 1, newQuantities, index, size - index - 1);
+        return new CartItems(newItemIds, newQuantities);
+    }
+
+    private int indexOf(Object itemId) {
+        if (!(itemId instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(itemIds, itemId);
+    }
+
+    @Override
+    public int size() {
+        return itemIds.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return itemIds.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object itemId) {
+        return indexOf(itemId) >= 0;
+    }
+
+    @Override
+    public Integer get(Object itemId) {
+        int index = indexOf(itemId);
+        return index >= 0 ? quantities[index] : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+            @Override
+            public Iterator<Map.Entry<String, Integer>> iterator() {
+                return new Iterator<Map.Entry<String, Integer>>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < itemIds.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Integer> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Integer> entry = new SimpleImmutableEntry<>(itemIds[index], quantities[index]);
+                        index++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return itemIds.length;
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.shoppingcart.impl;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * The carts created and checked out during one minute, as counted by the processor of one tag.
+ * <p>
+ * Each tag has its own buckets, so that the processors of the different tags never update the same row.
+ */
+@Entity
+@IdClass(CartStatisticsBucket.Key.class)
+public class CartStatisticsBucket {
+    /**
+     * The start of the minute.
+     */
+    @Id
+    private Instant minute;
+
+    @Id
+    private String tag;
+
+    private long created;
+
+    private long checkedOut;
+
+    /**
+     * The carts checked out during that minute whose creation was counted, so whose time to checkout is known.
+     */
+    private long timedCheckouts;
+
+    /**
+     * The sum of the times from creation to checkout of the {@link #timedCheckouts} carts.
+     */
+    private long timeToCheckoutMillis;
+
+    public Instant getMinute() {
+        return minute;
+    }
+
+    public void setMinute(Instant minute) {
+        this.minute = minute;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public void setTag(String tag) {
+        this.tag = tag;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
+    public long getCheckedOut() {
+        return checkedOut;
+    }
+
+    public void setCheckedOut(long checkedOut) {
+        this.checkedOut = checkedOut;
+    }
+
+    public long getTimedCheckouts() {
+        return timedCheckouts;
+    }
+
+    public void setTimedCheckouts(long timedCheckouts) {
+        this.timedCheckouts = timedCheckouts;
+    }
+
+    public long getTimeToCheckoutMillis() {
+        return timeToCheckoutMillis;
+    }
+
+    public void setTimeToCheckoutMillis(long timeToCheckoutMillis) {
+        this.timeToCheckoutMillis = timeToCheckoutMillis;
+    }
+
+    public static class Key implements Serializable {
+        private Instant minute;
+        private String tag;
+
+        public Key() {
+        }
+
+        public Key(Instant minute, String tag) {
+            this.minute = minute;
+            this.tag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return Objects.equals(minute, key.minute) && Objects.equals(tag, key.tag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minute, tag);
+        }
+    }
+}
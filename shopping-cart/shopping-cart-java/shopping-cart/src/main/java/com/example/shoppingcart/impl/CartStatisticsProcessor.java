@@ -0,0 +1,116 @@
+package com.example.shoppingcart.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide;
+import org.pcollections.PSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counts the carts created and checked out per minute, and the time they took to be checked out, as the events
+ * are received, so that the statistics of a time range are read from one row per minute and tag instead of being
+ * computed from all the reports.
+ * <p>
+ * A cart is created by its first {@link ShoppingCartEntity.ItemAdded}, in the minute of that event, and its
+ * checkout is counted in the minute of its {@link ShoppingCartEntity.CheckedOut}. The carts that are not checked
+ * out yet are kept in the {@link OpenCart} table until then, or until they expire. A checkout of a cart whose creation
+ * wasn't seen is counted without a time to checkout.
+ */
+public class CartStatisticsProcessor extends ReadSideProcessor<ShoppingCartEntity.Event> {
+
+    private static final String READ_SIDE_ID = "shopping-cart-statistics";
+
+    private final JpaReadSide jpaReadSide;
+    private final EventTagMigration tagMigration;
+    final private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Inject
+    public CartStatisticsProcessor(JpaReadSide jpaReadSide, EventTagMigration tagMigration) {
+        this.jpaReadSide = jpaReadSide;
+        this.tagMigration = tagMigration;
+    }
+
+    @Override
+    public ReadSideHandler<ShoppingCartEntity.Event> buildHandler() {
+        // the buckets of a handler are those of the tag it was prepared for
+        AtomicReference<String> tag = new AtomicReference<>();
+        return tagMigration.wrap(READ_SIDE_ID, jpaReadSide.<ShoppingCartEntity.Event>builder(READ_SIDE_ID)
+                .setGlobalPrepare(this::createSchema)
+                .setPrepare((entityManager, eventTag) -> tag.set(eventTag.tag()))
+                .setEventHandler(ShoppingCartEntity.ItemAdded.class, (entityManager, evt) -> countCreation(entityManager, tag.get(), evt))
+                .setEventHandler(ShoppingCartEntity.CheckedOut.class, (entityManager, evt) -> countCheckout(entityManager, tag.get(), evt))
+                .setEventHandler(ShoppingCartEntity.CartExpired.class, this::forgetExpiredCart)
+                .build());
+    }
+
+    private void createSchema(@SuppressWarnings("unused") EntityManager ignored) {
+        Persistence.generateSchema("default", ImmutableMap.of("hibernate.hbm2ddl.auto", "update"));
+    }
+
+    private void countCreation(EntityManager entityManager, String tag, ShoppingCartEntity.ItemAdded evt) {
+        int created = entityManager.createNativeQuery("INSERT INTO OpenCart (id, creationDate) VALUES (?, ?) ON CONFLICT (id) DO NOTHING")
+                .setParameter(1, evt.getShoppingCartId())
+                .setParameter(2, evt.getEventTime())
+                .executeUpdate();
+        if (created > 0) {
+            logger.debug("Counting the creation of CartID: " + evt.getShoppingCartId());
+            addToBucket(entityManager, tag, evt.getEventTime(), 1, 0, 0, 0);
+        }
+    }
+
+    private void countCheckout(EntityManager entityManager, String tag, ShoppingCartEntity.CheckedOut evt) {
+        OpenCart cart = entityManager.find(OpenCart.class, evt.getShoppingCartId());
+        if (cart == null) {
+            // its creation was never seen, for instance by a read side started after the history of the cart was deleted
+            logger.warn("Didn't find cart for checkout, counting it without its time to checkout. CartID: " + evt.getShoppingCartId());
+            addToBucket(entityManager, tag, evt.getEventTime(), 0, 1, 0, 0);
+            return;
+        }
+        logger.debug("Counting the checkout of CartID: " + evt.getShoppingCartId());
+        long timeToCheckout = Duration.between(cart.getCreationDate(), evt.getEventTime()).toMillis();
+        addToBucket(entityManager, tag, evt.getEventTime(), 0, 1, 1, timeToCheckout);
+        entityManager.remove(cart);
+    }
+
+    private void forgetExpiredCart(EntityManager entityManager, ShoppingCartEntity.CartExpired evt) {
+        OpenCart cart = entityManager.find(OpenCart.class, evt.getShoppingCartId());
+        if (cart != null) {
+            entityManager.remove(cart);
+        }
+    }
+
+    private void addToBucket(EntityManager entityManager, String tag, Instant eventTime, long created, long checkedOut,
+                             long timedCheckouts, long timeToCheckoutMillis) {
+        // an upsert, so that the bucket is never read and the processor works in one statement per event
+        entityManager.createNativeQuery(
+                "INSERT INTO CartStatisticsBucket (minute, tag, created, checkedOut, timedCheckouts, timeToCheckoutMillis) VALUES (?, ?, ?, ?, ?, ?)"
+                        + " ON CONFLICT (minute, tag) DO UPDATE SET"
+                        + " created = CartStatisticsBucket.created + EXCLUDED.created,"
+                        + " checkedOut = CartStatisticsBucket.checkedOut + EXCLUDED.checkedOut,"
+                        + " timedCheckouts = CartStatisticsBucket.timedCheckouts + EXCLUDED.timedCheckouts,"
+                        + " timeToCheckoutMillis = CartStatisticsBucket.timeToCheckoutMillis + EXCLUDED.timeToCheckoutMillis")
+                .setParameter(1, eventTime.truncatedTo(ChronoUnit.MINUTES))
+                .setParameter(2, tag)
+                .setParameter(3, created)
+                .setParameter(4, checkedOut)
+                .setParameter(5, timedCheckouts)
+                .setParameter(6, timeToCheckoutMillis)
+                .executeUpdate();
+    }
+
+    @Override
+    public PSequence<AggregateEventTag<ShoppingCartEntity.Event>> aggregateTags() {
+        return tagMigration.tags().allTags();
+    }
+
+}
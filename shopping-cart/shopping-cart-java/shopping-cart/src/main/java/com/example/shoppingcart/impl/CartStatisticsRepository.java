@@ -0,0 +1,51 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.persistence.ReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+@Singleton
+public class CartStatisticsRepository {
+
+    private final JpaSession jpaSession;
+
+    @Inject
+    public CartStatisticsRepository(ReadSide readSide, JpaSession jpaSession) {
+        this.jpaSession = jpaSession;
+        readSide.register(CartStatisticsProcessor.class);
+    }
+
+    /**
+     * The buckets of the minutes within {@code [from, to)} that had any activity, in order, each of them summed over
+     * all the tags, so without a tag. The range is read from the primary key, which starts with the minute.
+     */
+    CompletionStage<List<CartStatisticsBucket>> findByMinute(Instant from, Instant to) {
+        return jpaSession.withTransaction(em -> {
+            List<Object[]> rows = em.createQuery(
+                    "SELECT b.minute, SUM(b.created), SUM(b.checkedOut), SUM(b.timedCheckouts), SUM(b.timeToCheckoutMillis)"
+                            + " FROM CartStatisticsBucket b WHERE b.minute >= :from AND b.minute < :to"
+                            + " GROUP BY b.minute ORDER BY b.minute", Object[].class)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .getResultList();
+            List<CartStatisticsBucket> buckets = new ArrayList<>(rows.size());
+            for (Object[] row : rows) {
+                CartStatisticsBucket bucket = new CartStatisticsBucket();
+                bucket.setMinute((Instant) row[0]);
+                bucket.setCreated(((Number) row[1]).longValue());
+                bucket.setCheckedOut(((Number) row[2]).longValue());
+                bucket.setTimedCheckouts(((Number) row[3]).longValue());
+                bucket.setTimeToCheckoutMillis(((Number) row[4]).longValue());
+                buckets.add(bucket);
+            }
+            return buckets;
+        });
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.example.shoppingcart.impl;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Estimates how many times each item was counted, in a fixed amount of memory whatever the number of items.
+ * <p>
+ * Each item is counted in one cell of each of the {@code depth} rows of {@code width} counters, and its estimate is
+ * the smallest of these cells. An estimate is never below the real count, and exceeds it by less than
+ * {@code e / width} of the total count with a probability of at least {@code 1 - exp(-depth)}.
+ * <p>
+ * Not thread safe.
+ */
+final class CountMinSketch {
+
+    private final int width;
+    private final int depth;
+    private final long[] counters;
+
+    CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("The width and depth must be positive, got " + width + " and " + depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counters = new long[width * depth];
+    }
+
+    /**
+     * Counts an item {@code count} more times.
+     *
+     * @return the new estimate of the item
+     */
+    long add(String item, long count) {
+        long[] hashes = hashes(item);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int cell = cell(row, hashes);
+            counters[cell] += count;
+            estimate = Math.min(estimate, counters[cell]);
+        }
+        return estimate;
+    }
+
+    long estimate(String item) {
+        long[] hashes = hashes(item);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[cell(row, hashes)]);
+        }
+        return estimate;
+    }
+
+    void clear() {
+        Arrays.fill(counters, 0);
+    }
+
+    private static long[] hashes(String item) {
+        ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashString(item, StandardCharsets.UTF_8).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return new long[]{hash.getLong(0), hash.getLong(8)};
+    }
+
+    // the cells of the rows are derived from two hashes, which is as good as one independent hash per row
+    private int cell(int row, long[] hashes) {
+        long hash = hashes[0] + row * hashes[1];
+        return row * width + (int) Math.floorMod(hash, (long) width);
+    }
+}
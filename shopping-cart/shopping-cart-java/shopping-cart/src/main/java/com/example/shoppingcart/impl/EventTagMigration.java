@@ -0,0 +1,195 @@
+package com.example.shoppingcart.impl;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.pattern.Patterns;
+import akka.stream.javadsl.Flow;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Processes the shopping cart events through the {@link EventTags}, while they are migrated to new tags.
+ * <p>
+ * The events of a cart up to the cut-over offset are processed by the streams of its previous tag, and the later
+ * ones by the stream of its new tag, which may run ahead. So that the events of a cart are still processed in order,
+ * the streams of the new tags wait until the streams of the previous tags, of the same read side or topic, have
+ * stored the offset of their last event up to the cut-over offset. This is checked every {@code poll-interval},
+ * with PostgreSQL specific queries on the journal and offset tables.
+ */
+@Singleton
+public class EventTagMigration {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final EventTags tags;
+    private final JpaSession jpaSession;
+    private final ActorSystem system;
+    private final Duration pollInterval;
+
+    private final String journalTable;
+    private final Config journalColumns;
+    private final String offsetTable;
+    private final Config offsetColumns;
+    private final String tagSeparator;
+
+    // the offset of the last event up to the cut-over offset of each previous tag, which doesn't change anymore
+    private final Map<String, Optional<Long>> lastOffsets = new ConcurrentHashMap<>();
+    // completed once the previous tags of a read side or topic are processed up to the cut-over offset
+    private final Map<String, CompletionStage<Done>> drained = new ConcurrentHashMap<>();
+
+    @Inject
+    public EventTagMigration(JpaSession jpaSession, Config config, ActorSystem system) {
+        this.tags = EventTags.fromConfig(config);
+        this.jpaSession = jpaSession;
+        this.system = system;
+        this.pollInterval = config.getDuration("shopping-cart.event-tags.migration.poll-interval");
+
+        Config journal = config.getConfig("jdbc-journal.tables.journal");
+        this.journalTable = tableName(journal);
+        this.journalColumns = journal.getConfig("columnNames");
+        Config offset = config.getConfig("lagom.persistence.read-side.jdbc.tables.offset");
+        this.offsetTable = tableName(offset);
+        this.offsetColumns = offset.getConfig("columnNames");
+        this.tagSeparator = config.getString("akka-persistence-jdbc.tagSeparator");
+    }
+
+    private static String tableName(Config table) {
+        String schemaName = table.getString("schemaName");
+        return schemaName.isEmpty() ? table.getString("tableName") : schemaName + "." + table.getString("tableName");
+    }
+
+    EventTags tags() {
+        return tags;
+    }
+
+    /**
+     * Only lets through the events that the given tag processes, once they may be processed.
+     *
+     * @param offsetId the id under which the offsets of the read side or topic are stored
+     */
+    Flow<Pair<ShoppingCartEntity.Event, Offset>, Pair<ShoppingCartEntity.Event, Offset>, NotUsed> filter(
+            String offsetId, AggregateEventTag<ShoppingCartEntity.Event> tag) {
+        Flow<Pair<ShoppingCartEntity.Event, Offset>, Pair<ShoppingCartEntity.Event, Offset>, NotUsed> handled =
+                Flow.<Pair<ShoppingCartEntity.Event, Offset>>create().filter(eventAndOffset -> tags.handles(tag, eventAndOffset.second()));
+        if (!tags.cutOverOffset().isPresent() || tags.isPrevious(tag)) {
+            return handled;
+        }
+        return handled.mapAsync(1, eventAndOffset -> previousTagsDrained(offsetId).thenApply(done -> eventAndOffset));
+    }
+
+    /**
+     * Wraps the handler of a read side, so that it only handles the events that its tag processes.
+     */
+    ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> wrap(String readSideId,
+                                                                     ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event> handler) {
+        if (!tags.cutOverOffset().isPresent()) {
+            return handler;
+        }
+        return new ReadSideProcessor.ReadSideHandler<ShoppingCartEntity.Event>() {
+            private volatile AggregateEventTag<ShoppingCartEntity.Event> tag;
+
+            @Override
+            public CompletionStage<Done> globalPrepare() {
+                return handler.globalPrepare();
+            }
+
+            @Override
+            public CompletionStage<Offset> prepare(AggregateEventTag<ShoppingCartEntity.Event> tag) {
+                this.tag = tag;
+                return handler.prepare(tag);
+            }
+
+            @Override
+            public Flow<Pair<ShoppingCartEntity.Event, Offset>, Done, ?> handle() {
+                return filter(readSideId, tag).via(handler.handle());
+            }
+        };
+    }
+
+    private CompletionStage<Done> previousTagsDrained(String offsetId) {
+        CompletionStage<Done> stage = drained.computeIfAbsent(offsetId, this::awaitPreviousTags);
+        // checked again by the next event, or when the stream is restarted
+        stage.whenComplete((done, error) -> {
+            if (error != null) {
+                drained.remove(offsetId, stage);
+            }
+        });
+        return stage;
+    }
+
+    private CompletionStage<Done> awaitPreviousTags(String offsetId) {
+        return arePreviousTagsDrained(offsetId).thenCompose(isDrained -> {
+            if (isDrained) {
+                logger.info("The previous tags of " + offsetId + " are processed up to the cut-over offset");
+                return CompletableFuture.completedFuture(Done.getInstance());
+            }
+            logger.info("Waiting for the previous tags of " + offsetId + " to be processed up to the cut-over offset");
+            return Patterns.after(pollInterval, system.scheduler(), system.dispatcher(), () -> awaitPreviousTags(offsetId));
+        });
+    }
+
+    private CompletionStage<Boolean> arePreviousTagsDrained(String offsetId) {
+        long cutOverOffset = tags.cutOverOffset().get();
+        return jpaSession.withTransaction(em -> {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = em.createNativeQuery("SELECT " + offsetColumns.getString("tag") + ", "
+                    + offsetColumns.getString("sequenceOffset") + " FROM " + offsetTable
+                    + " WHERE " + offsetColumns.getString("readSideId") + " = ?")
+                    .setParameter(1, offsetId)
+                    .getResultList();
+            Map<String, Long> offsets = new HashMap<>();
+            for (Object[] row : rows) {
+                if (row[1] != null) {
+                    offsets.put((String) row[0], ((Number) row[1]).longValue());
+                }
+            }
+
+            for (AggregateEventTag<ShoppingCartEntity.Event> tag : tags.previousTags()) {
+                Optional<Long> lastOffset = lastOffsets.computeIfAbsent(tag.tag(), name -> findLastOffset(em, name, cutOverOffset));
+                if (lastOffset.isPresent() && offsets.getOrDefault(tag.tag(), 0L) < lastOffset.get()) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * The offset of the last event of the given tag up to the cut-over offset, found by walking the journal backwards
+     * from the cut-over offset.
+     */
+    private Optional<Long> findLastOffset(EntityManager em, String tag, long cutOverOffset) {
+        String ordering = journalColumns.getString("ordering");
+        String tags = journalColumns.getString("tags");
+        @SuppressWarnings("unchecked")
+        List<Object> rows = em.createNativeQuery("SELECT " + ordering + " FROM " + journalTable
+                + " WHERE " + ordering + " <= ?"
+                + " AND ? || " + tags + " || ? LIKE ?"
+                + " ORDER BY " + ordering + " DESC LIMIT 1")
+                .setParameter(1, cutOverOffset)
+                .setParameter(2, tagSeparator)
+                .setParameter(3, tagSeparator)
+                .setParameter(4, "%" + tagSeparator + tag + tagSeparator + "%")
+                .getResultList();
+        return rows.stream().findFirst().map(row -> ((Number) row).longValue());
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The tags of the shopping cart events, with the settings of the {@code shopping-cart.event-tags} section of the
+ * config. The events of each cart get one of {@code shards} tags, and each tag is processed by its own stream.
+ * <p>
+ * The number of tags can't simply be changed, as the carts would then tag their new events with other tags than
+ * their previous ones, which are processed by other streams. While migrating to new tags, the carts tag their events
+ * with both their previous and new tags, so that the previous tags are still processed up to a cut-over offset:
+ * <ol>
+ * <li>until the cut-over offset is set, the events are only processed through their previous tags;</li>
+ * <li>once it is set, the events up to the cut-over offset are processed through their previous tags, and the
+ * later ones through their new tags;</li>
+ * <li>once the migration ends, the events are only tagged and processed with their new tags.</li>
+ * </ol>
+ * The new tags must be named differently than the previous ones.
+ */
+final class EventTags {
+
+    private final AggregateEventShards<ShoppingCartEntity.Event> current;
+    private final Optional<AggregateEventShards<ShoppingCartEntity.Event>> previous;
+    private final Optional<Long> cutOverOffset;
+
+    EventTags(AggregateEventShards<ShoppingCartEntity.Event> current, Optional<AggregateEventShards<ShoppingCartEntity.Event>> previous,
+              Optional<Long> cutOverOffset) {
+        if (previous.isPresent() && !Collections.disjoint(current.allTags(), previous.get().allTags())) {
+            throw new IllegalArgumentException("The tags " + current.tag() + " must be named differently than the previous tags "
+                    + previous.get().tag());
+        }
+        this.current = current;
+        this.previous = previous;
+        this.cutOverOffset = previous.isPresent() ? cutOverOffset : Optional.empty();
+    }
+
+    static EventTags fromConfig(Config config) {
+        Config settings = config.getConfig("shopping-cart.event-tags");
+        AggregateEventShards<ShoppingCartEntity.Event> current = AggregateEventTag.sharded(ShoppingCartEntity.Event.class,
+                settings.getString("prefix"), settings.getInt("shards"));
+
+        Config migration = settings.getConfig("migration");
+        if (!migration.getBoolean("enabled")) {
+            return new EventTags(current, Optional.empty(), Optional.empty());
+        }
+        AggregateEventShards<ShoppingCartEntity.Event> previous = AggregateEventTag.sharded(ShoppingCartEntity.Event.class,
+                migration.getString("previous-prefix"), migration.getInt("previous-shards"));
+        Optional<Long> cutOverOffset = migration.hasPath("cut-over-offset")
+                ? Optional.of(migration.getLong("cut-over-offset"))
+                : Optional.empty();
+        return new EventTags(current, Optional.of(previous), cutOverOffset);
+    }
+
+    /**
+     * The tags of the events of the given cart.
+     */
+    Set<String> tagsFor(String cartId) {
+        if (!previous.isPresent()) {
+            return Collections.singleton(current.forEntityId(cartId).tag());
+        }
+        Set<String> tags = new HashSet<>(2);
+        tags.add(current.forEntityId(cartId).tag());
+        tags.add(previous.get().forEntityId(cartId).tag());
+        return tags;
+    }
+
+    /**
+     * The tags to process.
+     */
+    PSequence<AggregateEventTag<ShoppingCartEntity.Event>> allTags() {
+        if (!previous.isPresent()) {
+            return current.allTags();
+        } else if (!cutOverOffset.isPresent()) {
+            return previous.get().allTags();
+        } else {
+            return previous.get().allTags().plusAll(current.allTags());
+        }
+    }
+
+    /**
+     * The previous tags, which are processed until the cut-over offset while migrating.
+     */
+    PSequence<AggregateEventTag<ShoppingCartEntity.Event>> previousTags() {
+        return previous.map(AggregateEventShards::allTags).orElse(TreePVector.empty());
+    }
+
+    boolean isPrevious(AggregateEventTag<ShoppingCartEntity.Event> tag) {
+        return previous.isPresent() && previous.get().allTags().contains(tag);
+    }
+
+    Optional<Long> cutOverOffset() {
+        return cutOverOffset;
+    }
+
+    /**
+     * Whether the event at the given offset is processed through the given tag, or through the other tag it has
+     * while migrating.
+     */
+    boolean handles(AggregateEventTag<ShoppingCartEntity.Event> tag, Offset offset) {
+        if (!cutOverOffset.isPresent()) {
+            return true;
+        } else if (!(offset instanceof Offset.Sequence)) {
+            throw new IllegalStateException("The tags can only be migrated with sequence offsets, not " + offset);
+        }
+        long sequence = ((Offset.Sequence) offset).value();
+        return isPrevious(tag) ? sequence <= cutOverOffset.get() : sequence > cutOverOffset.get();
+    }
+}
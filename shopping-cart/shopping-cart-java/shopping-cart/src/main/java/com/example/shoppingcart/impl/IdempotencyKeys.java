@@ -0,0 +1,38 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.api.transport.RequestHeader;
+import com.typesafe.config.Config;
+
+import java.util.Optional;
+
+/**
+ * Reads the {@code Idempotency-Key} header of the requests that change a cart.
+ * <p>
+ * The keys are left out of the commands sent to the other nodes, and of the events and snapshots, by the
+ * {@link ShoppingCartSerializer} until {@code shopping-cart.serialization.write-version} is raised to the version that
+ * adds them. A retry would then reach its cart without its key, or after the cart forgot it, and be rejected, so the
+ * header is ignored until then rather than promising a safe retry.
+ */
+final class IdempotencyKeys {
+
+    private final boolean enabled;
+
+    IdempotencyKeys(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    static IdempotencyKeys fromConfig(Config config) {
+        return new IdempotencyKeys(ShoppingCartSerializer.writesIdempotencyKeys(
+                config.getInt("shopping-cart.serialization.write-version")));
+    }
+
+    /**
+     * The idempotency key of a request that changes a cart, if the client sent one and the keys are kept.
+     */
+    Optional<String> of(RequestHeader requestHeader) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        return requestHeader.getHeader("Idempotency-Key").map(String::trim).filter(key -> !key.isEmpty());
+    }
+}
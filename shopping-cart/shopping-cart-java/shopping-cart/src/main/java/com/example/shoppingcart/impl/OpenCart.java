@@ -0,0 +1,39 @@
+package com.example.shoppingcart.impl;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+
+/**
+ * A shopping cart that was created but is not checked out yet, kept by the {@link CartStatisticsProcessor} to know
+ * whether an item is the first one of its cart, and how long the cart took to be checked out.
+ */
+@Entity
+public class OpenCart {
+    /**
+     * The ID of the shopping cart.
+     */
+    @Id
+    private String id;
+
+    @NotNull
+    private Instant creationDate;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @NotNull
+    public Instant getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(@NotNull Instant creationDate) {
+        this.creationDate = creationDate;
+    }
+}
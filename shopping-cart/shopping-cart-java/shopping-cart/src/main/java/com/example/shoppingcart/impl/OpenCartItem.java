@@ -0,0 +1,69 @@
+package com.example.shoppingcart.impl;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * An item of a shopping cart that is not checked out yet, to find the open carts that contain an item.
+ */
+@Entity
+@IdClass(OpenCartItem.Key.class)
+@Table(indexes = {
+        // the primary key starts with the cart, which is what a checkout deletes
+        @Index(name = "opencartitem_itemid_cartid", columnList = "itemId, cartId")
+})
+public class OpenCartItem {
+
+    @Id
+    private String itemId;
+
+    @Id
+    private String cartId;
+
+    public String getItemId() {
+        return itemId;
+    }
+
+    public void setItemId(String itemId) {
+        this.itemId = itemId;
+    }
+
+    public String getCartId() {
+        return cartId;
+    }
+
+    public void setCartId(String cartId) {
+        this.cartId = cartId;
+    }
+
+    public static class Key implements Serializable {
+        private String itemId;
+        private String cartId;
+
+        public Key() {
+        }
+
+        public Key(String itemId, String cartId) {
+            this.itemId = itemId;
+            this.cartId = cartId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return Objects.equals(itemId, key.itemId) && Objects.equals(cartId, key.cartId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(itemId, cartId);
+        }
+    }
+}
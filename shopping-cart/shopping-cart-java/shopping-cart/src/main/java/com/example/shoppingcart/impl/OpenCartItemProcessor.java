@@ -0,0 +1,153 @@
+package com.example.shoppingcart.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the items of the open shopping carts, to find the carts that contain an item.
+ * <p>
+ * An item is indexed by {@link ShoppingCartEntity.ItemAdded}, and unindexed by {@link ShoppingCartEntity.ItemRemoved}
+ * or when its cart is checked out or expires. The events are written in batches, in which only the
+ * last change of each item of a cart is kept, so a cart that changes often within a batch is written once.
+ */
+public class OpenCartItemProcessor extends ReadSideProcessor<ShoppingCartEntity.Event> {
+
+    private static final String READ_SIDE_ID = "shopping-cart-open-items";
+
+    private final JpaReadSide jpaReadSide;
+    private final JpaSession jpaSession;
+    private final Config config;
+    private final EventTagMigration tagMigration;
+
+    @Inject
+    public OpenCartItemProcessor(JpaReadSide jpaReadSide, JpaSession jpaSession, Config config, EventTagMigration tagMigration) {
+        this.jpaReadSide = jpaReadSide;
+        this.jpaSession = jpaSession;
+        this.config = config;
+        this.tagMigration = tagMigration;
+    }
+
+    @Override
+    public ReadSideHandler<ShoppingCartEntity.Event> buildHandler() {
+        // only used to prepare the schema and to load the offsets
+        ReadSideHandler<ShoppingCartEntity.Event> jpaHandler =
+                jpaReadSide.<ShoppingCartEntity.Event>builder(READ_SIDE_ID).setGlobalPrepare(this::createSchema).build();
+        return tagMigration.wrap(READ_SIDE_ID, new Handler(jpaHandler));
+    }
+
+    private void createSchema(@SuppressWarnings("unused") EntityManager ignored) {
+        Persistence.generateSchema("default", ImmutableMap.of("hibernate.hbm2ddl.auto", "update"));
+    }
+
+    @Override
+    public PSequence<AggregateEventTag<ShoppingCartEntity.Event>> aggregateTags() {
+        return tagMigration.tags().allTags();
+    }
+
+    private final class Handler extends BatchedReadSideHandler {
+
+        private final Logger logger = LoggerFactory.getLogger(OpenCartItemProcessor.class);
+
+        Handler(ReadSideHandler<ShoppingCartEntity.Event> jpaHandler) {
+            super(jpaHandler, jpaSession, READ_SIDE_ID, config, config.getConfig("shopping-cart.open-cart-items"));
+        }
+
+        @Override
+        protected void write(EntityManager entityManager, List<ShoppingCartEntity.Event> events) {
+            // whether each item of a cart is in it after the batch, by cart
+            Map<String, Map<String, Boolean>> items = new LinkedHashMap<>();
+            List<String> closed = new ArrayList<>();
+            for (ShoppingCartEntity.Event event : events) {
+                if (event instanceof ShoppingCartEntity.ItemAdded) {
+                    ShoppingCartEntity.ItemAdded itemAdded = (ShoppingCartEntity.ItemAdded) event;
+                    items.computeIfAbsent(itemAdded.getShoppingCartId(), cartId -> new LinkedHashMap<>())
+                            .put(itemAdded.getItemId(), true);
+                } else if (event instanceof ShoppingCartEntity.ItemRemoved) {
+                    ShoppingCartEntity.ItemRemoved itemRemoved = (ShoppingCartEntity.ItemRemoved) event;
+                    items.computeIfAbsent(itemRemoved.getShoppingCartId(), cartId -> new LinkedHashMap<>())
+                            .put(itemRemoved.getItemId(), false);
+                } else if (event instanceof ShoppingCartEntity.CheckedOut) {
+                    String cartId = ((ShoppingCartEntity.CheckedOut) event).getShoppingCartId();
+                    items.remove(cartId);
+                    closed.add(cartId);
+                } else if (event instanceof ShoppingCartEntity.CartExpired) {
+                    String cartId = ((ShoppingCartEntity.CartExpired) event).getShoppingCartId();
+                    items.remove(cartId);
+                    closed.add(cartId);
+                }
+            }
+
+            List<String[]> added = new ArrayList<>();
+            List<String[]> removed = new ArrayList<>();
+            items.forEach((cartId, cartItems) -> cartItems.forEach((itemId, present) ->
+                    (present ? added : removed).add(new String[]{itemId, cartId})));
+
+            logger.debug("Writing a batch of " + events.size() + " events for tag " + tag().tag() + ": " + added.size()
+                    + " items added, " + removed.size() + " removed and " + closed.size() + " carts closed");
+            deleteCarts(entityManager, closed);
+            deleteItems(entityManager, removed);
+            insertItems(entityManager, added);
+        }
+
+        private void deleteCarts(EntityManager entityManager, List<String> cartIds) {
+            if (cartIds.isEmpty()) {
+                return;
+            }
+            entityManager.createQuery("DELETE FROM OpenCartItem i WHERE i.cartId IN :cartIds")
+                    .setParameter("cartIds", cartIds)
+                    .executeUpdate();
+        }
+
+        private void deleteItems(EntityManager entityManager, List<String[]> items) {
+            if (items.isEmpty()) {
+                return;
+            }
+            Query delete = entityManager.createNativeQuery(
+                    "DELETE FROM OpenCartItem WHERE (itemId, cartId) IN (" + rows(items.size()) + ")");
+            bind(delete, items);
+            delete.executeUpdate();
+        }
+
+        private void insertItems(EntityManager entityManager, List<String[]> items) {
+            if (items.isEmpty()) {
+                return;
+            }
+            Query insert = entityManager.createNativeQuery(
+                    "INSERT INTO OpenCartItem (itemId, cartId) VALUES " + rows(items.size()) + " ON CONFLICT DO NOTHING");
+            bind(insert, items);
+            insert.executeUpdate();
+        }
+
+        private String rows(int count) {
+            List<String> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                rows.add("(?, ?)");
+            }
+            return String.join(", ", rows);
+        }
+
+        private void bind(Query query, List<String[]> items) {
+            int position = 1;
+            for (String[] item : items) {
+                query.setParameter(position++, item[0]);
+                query.setParameter(position++, item[1]);
+            }
+        }
+    }
+}
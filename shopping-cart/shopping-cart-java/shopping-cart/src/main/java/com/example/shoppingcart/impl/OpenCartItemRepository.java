@@ -0,0 +1,56 @@
+package com.example.shoppingcart.impl;
+
+import akka.NotUsed;
+import akka.japi.Pair;
+import akka.stream.javadsl.Source;
+import com.lightbend.lagom.javadsl.persistence.ReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+@Singleton
+public class OpenCartItemRepository {
+
+    private final JpaSession jpaSession;
+
+    private final int pageSize;
+
+    @Inject
+    public OpenCartItemRepository(ReadSide readSide, JpaSession jpaSession, Config config) {
+        this.jpaSession = jpaSession;
+        this.pageSize = config.getInt("shopping-cart.open-cart-items.page-size");
+        readSide.register(OpenCartItemProcessor.class);
+    }
+
+    /**
+     * The ids of the open carts that contain the given item, in order, read one page of {@code page-size} ids at a
+     * time from the {@code (itemId, cartId)} index, each page starting after the last id of the previous one.
+     */
+    Source<String, NotUsed> findCartIds(String itemId) {
+        return Source.unfoldAsync(Optional.of(""), after -> {
+            if (!after.isPresent()) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+            return findPage(itemId, after.get()).thenApply(cartIds -> {
+                Optional<String> next = cartIds.size() < pageSize ? Optional.empty() : Optional.of(cartIds.get(cartIds.size() - 1));
+                return Optional.of(Pair.create(next, cartIds));
+            });
+        }).mapConcat(cartIds -> cartIds);
+    }
+
+    private CompletionStage<List<String>> findPage(String itemId, String after) {
+        return jpaSession.withTransaction(em -> em.createQuery(
+                "SELECT i.cartId FROM OpenCartItem i WHERE i.itemId = :itemId AND i.cartId > :after ORDER BY i.cartId", String.class)
+                .setParameter("itemId", itemId)
+                .setParameter("after", after)
+                .setMaxResults(pageSize)
+                .getResultList());
+    }
+
+}
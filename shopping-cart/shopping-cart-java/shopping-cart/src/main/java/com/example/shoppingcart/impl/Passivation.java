@@ -0,0 +1,116 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.typed.ActorRef;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+/**
+ * Decides when a {@link ShoppingCartEntity} is passivated, so that carts that are read a few times and then abandoned
+ * don't stay in memory until their shard is rebalanced.
+ * <p>
+ * An open cart is passivated after it hasn't received any command for {@code idle-timeout}, and a checked-out or
+ * expired cart after {@code checked-out-idle-timeout}, which is usually much shorter since it only answers reads. In addition, at
+ * most {@code max-active-entities} carts are kept active on each node: when another one is started, the least
+ * recently used one is passivated.
+ * <p>
+ * One instance is shared by all the carts of a node, so it is thread safe. The carts are tracked in a cache split
+ * into segments that are locked separately, so that the commands of different carts don't contend on a single lock,
+ * and the least recently used cart is chosen within the segment of the started one, so the order is approximate.
+ */
+final class Passivation {
+
+    private final Duration idleTimeout;
+    private final Duration checkedOutIdleTimeout;
+    private final int maxActiveEntities;
+    private final ShoppingCartMetrics metrics;
+
+    // the number of segments of the active carts, fewer when there are only a few carts per segment
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    // the active carts of this node, by cart id, passivated when evicted because there are too many of them
+    private final Cache<String, ActiveCart> activeCarts;
+
+    Passivation(Duration idleTimeout, Duration checkedOutIdleTimeout, int maxActiveEntities, ShoppingCartMetrics metrics) {
+        this.idleTimeout = idleTimeout;
+        this.checkedOutIdleTimeout = checkedOutIdleTimeout;
+        this.maxActiveEntities = maxActiveEntities;
+        this.metrics = metrics;
+        this.activeCarts = CacheBuilder.newBuilder()
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .maximumSize(Math.max(maxActiveEntities, 0))
+                .<String, ActiveCart>removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        ActiveCart evicted = notification.getValue();
+                        evicted.shard.tell(new ClusterSharding.Passivate<>(evicted.cart));
+                        metrics.increment("entities.passivated.least-recently-used");
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Reads the passivation settings from the {@code shopping-cart.passivation} section of the given config.
+     */
+    static Passivation fromConfig(Config config, ShoppingCartMetrics metrics) {
+        Config passivation = config.getConfig("shopping-cart.passivation");
+        return new Passivation(
+                passivation.getDuration("idle-timeout"),
+                passivation.getDuration("checked-out-idle-timeout"),
+                passivation.getInt("max-active-entities"),
+                metrics);
+    }
+
+    /**
+     * How long the given cart may stay idle before being passivated, zero if it is never passivated when idle.
+     */
+    Duration idleTimeout(ShoppingCartEntity.ShoppingCart shoppingCart) {
+        return shoppingCart.isOpen() ? idleTimeout : checkedOutIdleTimeout;
+    }
+
+    /**
+     * Registers a cart that has just been started on this node, passivating the least recently used cart if there
+     * are now too many of them.
+     */
+    void started(String cartId, ActorRef<ShoppingCartEntity.Command> cart, ActorRef<ClusterSharding.ShardCommand> shard) {
+        metrics.increment("entities.active");
+        if (maxActiveEntities <= 0) {
+            return;
+        }
+        activeCarts.put(cartId, new ActiveCart(cart, shard));
+    }
+
+    /**
+     * Marks the given cart as the most recently used one.
+     */
+    void used(String cartId) {
+        if (maxActiveEntities > 0) {
+            activeCarts.getIfPresent(cartId);
+        }
+    }
+
+    /**
+     * Unregisters a cart that has stopped, whatever the reason.
+     */
+    void stopped(String cartId, ActorRef<ShoppingCartEntity.Command> cart) {
+        metrics.decrement("entities.active");
+        if (maxActiveEntities > 0) {
+            // a cart that was already passivated may have been started again in the meantime
+            activeCarts.asMap().computeIfPresent(cartId, (id, activeCart) -> activeCart.cart.equals(cart) ? null : activeCart);
+        }
+    }
+
+    private static final class ActiveCart {
+        private final ActorRef<ShoppingCartEntity.Command> cart;
+        private final ActorRef<ClusterSharding.ShardCommand> shard;
+
+        private ActiveCart(ActorRef<ShoppingCartEntity.Command> cart, ActorRef<ClusterSharding.ShardCommand> shard) {
+            this.cart = cart;
+            this.shard = shard;
+        }
+    }
+}
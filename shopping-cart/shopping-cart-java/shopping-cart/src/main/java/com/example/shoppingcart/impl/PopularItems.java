@@ -0,0 +1,285 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.ActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+import akka.japi.Pair;
+import com.example.shoppingcart.api.PopularItemView;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.serialization.Jsonable;
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the items most often put in a cart during the last {@code window}, without any database.
+ * <p>
+ * Every {@link ShoppingCartEntity.ItemAdded} and {@link ShoppingCartEntity.ItemQuantityAdjusted} counts once for
+ * its item. The window is split in {@code slices}, each of them with a {@link CountMinSketch} of the items of that
+ * slice and a heap of its {@code top-k} items, so the memory used only depends on the settings, and the counts of
+ * a slice are dropped as a whole once it leaves the window. The counts are estimates, never below the real ones.
+ * <p>
+ * Each node only counts the items put in the carts it hosts, which hand their events once persisted to the actor of
+ * that node, so counting never leaves the node and the journal is never read. The popular items of the cluster are
+ * read by asking every node for its {@code top-k} items, found through the receptionist, and by summing their counts.
+ * An item is then missed if it is popular overall without being among the {@code top-k} items of any node, and the
+ * counts of a node that doesn't reply within {@code ask-timeout} are left out. A node that was just started only
+ * counts the items put in a cart since then, until it has run for the window.
+ */
+final class PopularItems {
+
+    static final ServiceKey<Command> SERVICE_KEY = ServiceKey.create(Command.class, "shopping-cart-popular-items");
+
+    private final Clock clock;
+    private final long sliceMillis;
+    private final int topK;
+    private final Slice[] slices;
+
+    PopularItems(Duration window, int slices, int topK, int sketchWidth, int sketchDepth, Clock clock) {
+        this.clock = clock;
+        this.sliceMillis = window.toMillis() / slices;
+        if (sliceMillis <= 0) {
+            throw new IllegalArgumentException("The window must be at least one millisecond per slice");
+        }
+        this.topK = topK;
+        this.slices = new Slice[slices];
+        for (int i = 0; i < slices; i++) {
+            this.slices[i] = new Slice(new CountMinSketch(sketchWidth, sketchDepth));
+        }
+    }
+
+    /**
+     * Starts the actor that counts the items put in the carts of this node, with the settings of the
+     * {@code shopping-cart.popular-items} section of the config.
+     */
+    static ActorRef<Command> start(ActorSystem system, Config config) {
+        Config settings = config.getConfig("shopping-cart.popular-items");
+        PopularItems popularItems = new PopularItems(settings.getDuration("window"), settings.getInt("slices"),
+                settings.getInt("top-k"), settings.getInt("sketch-width"), settings.getInt("sketch-depth"), Clock.systemUTC());
+        return Adapter.spawn(system, popularItems.behavior(), "shopping-cart-popular-items");
+    }
+
+    /**
+     * The actor that counts the items of this node, and tells its {@code top-k} items to the other nodes.
+     */
+    Behavior<Command> behavior() {
+        return Behaviors.setup(context -> {
+            context.getSystem().receptionist().tell(Receptionist.register(SERVICE_KEY, context.getSelf()));
+            return Behaviors.receive(Command.class)
+                    .onMessage(Count.class, count -> {
+                        count.events.forEach(this::record);
+                        return Behaviors.same();
+                    })
+                    .onMessage(GetTop.class, get -> {
+                        List<PopularItemView> items = new ArrayList<>();
+                        for (Pair<String, Long> item : top(topK)) {
+                            items.add(new PopularItemView(item.first(), item.second()));
+                        }
+                        get.replyTo.tell(new Top(items));
+                        return Behaviors.same();
+                    })
+                    .build();
+        });
+    }
+
+    /**
+     * The {@code limit} items counted the most by all the nodes during the window, from the most to the least
+     * popular, with their estimated counts.
+     */
+    static CompletionStage<List<PopularItemView>> topOfCluster(akka.actor.typed.ActorSystem<?> system, int limit,
+                                                              Duration askTimeout) {
+        return AskPattern.<Receptionist.Command, Receptionist.Listing>ask(system.receptionist(),
+                replyTo -> Receptionist.find(SERVICE_KEY, replyTo), askTimeout, system.scheduler())
+                .thenCompose(listing -> {
+                    List<CompletableFuture<List<PopularItemView>>> tops = new ArrayList<>();
+                    for (ActorRef<Command> node : listing.getServiceInstances(SERVICE_KEY)) {
+                        tops.add(AskPattern.<Command, Top>ask(node, GetTop::new, askTimeout, system.scheduler())
+                                // the counts of a node that doesn't reply are left out
+                                .handle((top, error) -> top == null ? Collections.<PopularItemView>emptyList() : top.items)
+                                .toCompletableFuture());
+                    }
+                    return CompletableFuture.allOf(tops.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(done -> merge(tops.stream().map(CompletableFuture::join).collect(Collectors.toList()), limit));
+                });
+    }
+
+    /**
+     * Sums the counts of the items of the given nodes, and keeps the {@code limit} most counted ones.
+     */
+    static List<PopularItemView> merge(List<List<PopularItemView>> tops, int limit) {
+        Map<String, Long> counts = new HashMap<>();
+        for (List<PopularItemView> top : tops) {
+            for (PopularItemView item : top) {
+                counts.merge(item.getItemId(), item.getCount(), Long::sum);
+            }
+        }
+        return counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .map(count -> new PopularItemView(count.getKey(), count.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    void record(ShoppingCartEntity.Event event) {
+        if (event instanceof ShoppingCartEntity.ItemAdded) {
+            ShoppingCartEntity.ItemAdded itemAdded = (ShoppingCartEntity.ItemAdded) event;
+            record(itemAdded.getItemId(), itemAdded.getEventTime());
+        } else if (event instanceof ShoppingCartEntity.ItemQuantityAdjusted) {
+            ShoppingCartEntity.ItemQuantityAdjusted adjusted = (ShoppingCartEntity.ItemQuantityAdjusted) event;
+            record(adjusted.getItemId(), adjusted.getEventTime());
+        }
+    }
+
+    synchronized void record(String itemId, Instant eventTime) {
+        long index = Math.floorDiv(eventTime.toEpochMilli(), sliceMillis);
+        if (index <= currentIndex() - slices.length) {
+            return;
+        }
+        Slice slice = slices[(int) Math.floorMod(index, (long) slices.length)];
+        if (slice.index > index) {
+            // its slot was already reused by a more recent slice
+            return;
+        } else if (slice.index < index) {
+            slice.reset(index);
+        }
+        slice.record(itemId, slice.sketch.add(itemId, 1), topK);
+    }
+
+    /**
+     * The {@code limit} items counted the most during the window, from the most to the least popular, with their
+     * estimated counts.
+     */
+    synchronized List<Pair<String, Long>> top(int limit) {
+        long oldest = currentIndex() - slices.length;
+        List<Slice> current = new ArrayList<>(slices.length);
+        Set<String> candidates = new HashSet<>();
+        for (Slice slice : slices) {
+            if (slice.index > oldest) {
+                current.add(slice);
+                candidates.addAll(slice.candidates.keySet());
+            }
+        }
+
+        List<Pair<String, Long>> counts = new ArrayList<>(candidates.size());
+        for (String itemId : candidates) {
+            long count = 0;
+            for (Slice slice : current) {
+                count += slice.sketch.estimate(itemId);
+            }
+            counts.add(Pair.create(itemId, count));
+        }
+        counts.sort(Comparator.<Pair<String, Long>>comparingLong(Pair::second).reversed().thenComparing(Pair::first));
+        return counts.subList(0, Math.min(limit, counts.size()));
+    }
+
+    private long currentIndex() {
+        return Math.floorDiv(clock.millis(), sliceMillis);
+    }
+
+    private static final class Candidate {
+        final String itemId;
+        long count;
+
+        Candidate(String itemId, long count) {
+            this.itemId = itemId;
+            this.count = count;
+        }
+    }
+
+    private static final class Slice {
+        final CountMinSketch sketch;
+        final Map<String, Candidate> candidates = new HashMap<>();
+        // the least counted candidate first, to be replaced by a more counted item
+        final PriorityQueue<Candidate> heap = new PriorityQueue<>(Comparator.comparingLong(candidate -> candidate.count));
+        long index = Long.MIN_VALUE;
+
+        Slice(CountMinSketch sketch) {
+            this.sketch = sketch;
+        }
+
+        void reset(long index) {
+            this.index = index;
+            sketch.clear();
+            candidates.clear();
+            heap.clear();
+        }
+
+        void record(String itemId, long estimate, int topK) {
+            Candidate candidate = candidates.get(itemId);
+            if (candidate != null) {
+                heap.remove(candidate);
+                candidate.count = estimate;
+                heap.add(candidate);
+            } else if (candidates.size() < topK) {
+                candidate = new Candidate(itemId, estimate);
+                candidates.put(itemId, candidate);
+                heap.add(candidate);
+            } else if (heap.peek().count < estimate) {
+                candidates.remove(heap.poll().itemId);
+                candidate = new Candidate(itemId, estimate);
+                candidates.put(itemId, candidate);
+                heap.add(candidate);
+            }
+        }
+    }
+
+    interface Command {}
+
+    /**
+     * The events of a cart of this node, once persisted. Only sent locally.
+     */
+    static final class Count implements Command {
+        final List<ShoppingCartEntity.Event> events;
+
+        Count(List<ShoppingCartEntity.Event> events) {
+            this.events = events;
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class GetTop implements Command, Jsonable {
+        public final ActorRef<Top> replyTo;
+
+        @JsonCreator
+        GetTop(ActorRef<Top> replyTo) {
+            this.replyTo = Preconditions.checkNotNull(replyTo, "replyTo");
+        }
+    }
+
+    /**
+     * The {@code top-k} items of a node.
+     */
+    @Value
+    @JsonDeserialize
+    static final class Top implements Jsonable {
+        public final List<PopularItemView> items;
+
+        @JsonCreator
+        Top(List<PopularItemView> items) {
+            this.items = Preconditions.checkNotNull(items, "items");
+        }
+    }
+}
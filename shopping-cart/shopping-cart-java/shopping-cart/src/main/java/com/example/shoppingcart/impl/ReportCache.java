@@ -0,0 +1,99 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.ActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+import com.example.shoppingcart.api.ShoppingCartReportView;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps the recently read shopping cart reports of this node in memory, in front of the {@link ReportRepository}.
+ * <p>
+ * At most {@code max-size} reports are kept, each of them for at most {@code time-to-live}. The
+ * {@link ShoppingCartReportProcessor} invalidates the report of a cart when it handles one of its events, but only
+ * on the node where it runs, so the reports cached on the other nodes may be stale for up to {@code time-to-live}.
+ * Reports that don't exist yet are not cached.
+ * <p>
+ * The {@code report-cache.hits}, {@code report-cache.misses} and {@code report-cache.evictions} counters are exposed
+ * through the {@link ShoppingCartMetrics}.
+ */
+@Singleton
+public class ReportCache {
+
+    private final Function<String, CompletionStage<ShoppingCartReport>> repository;
+    private final ShoppingCartMetrics metrics;
+    private final Cache<String, ShoppingCartReportView> reports;
+
+    // the reads of the reports missing from the cache, by cart id, forgotten when the report of the cart is
+    // invalidated, so that a report read before an invalidation of that cart is not cached
+    private final ConcurrentMap<String, Object> pendingReads = new ConcurrentHashMap<>();
+
+    @Inject
+    public ReportCache(ReportRepository reportRepository, Config config, ActorSystem system) {
+        this(reportRepository::findById, config.getConfig("shopping-cart.report.cache"),
+                ShoppingCartMetrics.get(Adapter.toTyped(system)));
+    }
+
+    ReportCache(Function<String, CompletionStage<ShoppingCartReport>> repository, Config cacheConfig, ShoppingCartMetrics metrics) {
+        this.repository = repository;
+        this.metrics = metrics;
+        Duration timeToLive = cacheConfig.getDuration("time-to-live");
+        this.reports = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.getLong("max-size"))
+                .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+                .<String, ShoppingCartReportView>removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        metrics.increment("report-cache.evictions");
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * The report of the given cart, or null if there is none yet.
+     */
+    CompletionStage<ShoppingCartReportView> findById(String cartId) {
+        ShoppingCartReportView cached = reports.getIfPresent(cartId);
+        if (cached != null) {
+            metrics.increment("report-cache.hits");
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        metrics.increment("report-cache.misses");
+        Object read = new Object();
+        pendingReads.put(cartId, read);
+        return repository.apply(cartId)
+                .thenApply(report -> report == null
+                        ? null
+                        : new ShoppingCartReportView(cartId, report.getCreationDate(), report.getCheckoutDate()))
+                .whenComplete((view, error) -> pendingReads.computeIfPresent(cartId, (id, pendingRead) -> {
+                    if (pendingRead != read) {
+                        // read again since then, the latest read caches the report
+                        return pendingRead;
+                    }
+                    if (view != null) {
+                        reports.put(cartId, view);
+                    }
+                    return null;
+                }));
+    }
+
+    /**
+     * Forgets the report of the given cart, after it changed.
+     */
+    void invalidate(String cartId) {
+        pendingReads.remove(cartId);
+        reports.invalidate(cartId);
+    }
+}
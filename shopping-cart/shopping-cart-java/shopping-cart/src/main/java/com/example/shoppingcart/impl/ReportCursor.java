@@ -0,0 +1,46 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * The position of the last report of a page, in the order of the time range queries: by date, then by cart id.
+ * <p>
+ * It is handed to the clients as an opaque string, so that the way it is encoded can change.
+ */
+@Value
+final class ReportCursor {
+    public final Instant date;
+    public final String id;
+
+    ReportCursor(Instant date, String id) {
+        this.date = date;
+        this.id = id;
+    }
+
+    String encode() {
+        String cursor = date + " " + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws BadRequest if the cursor was not encoded by {@link #encode()}
+     */
+    static ReportCursor decode(String encoded) {
+        try {
+            String cursor = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            int separator = cursor.indexOf(' ');
+            if (separator < 0) {
+                throw new BadRequest("Invalid cursor: " + encoded);
+            }
+            return new ReportCursor(Instant.parse(cursor.substring(0, separator)), cursor.substring(separator + 1));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new BadRequest("Invalid cursor: " + encoded);
+        }
+    }
+}
@@ -1,20 +1,52 @@
 package com.example.shoppingcart.impl;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import com.google.common.collect.Iterables;
 import com.lightbend.lagom.javadsl.persistence.ReadSide;
 import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
+import org.hibernate.Session;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.persistence.TypedQuery;
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletionStage;
 
 @Singleton
 public class ReportRepository {
 
+    /**
+     * The dates of the reports that can be queried by time range, each of them backed by an index on the date and id.
+     */
+    enum DateField {
+        CREATION("creationDate"),
+        CHECKOUT("checkoutDate");
+
+        private final String property;
+
+        DateField(String property) {
+            this.property = property;
+        }
+    }
+
     private final JpaSession jpaSession;
 
+    private final int findByIdsChunkSize;
+
     @Inject
-    public ReportRepository(ReadSide readSide, JpaSession jpaSession) {
+    public ReportRepository(ReadSide readSide, JpaSession jpaSession, Config config) {
         this.jpaSession = jpaSession;
+        this.findByIdsChunkSize = config.getInt("shopping-cart.report.find-by-ids-chunk-size");
         readSide.register(ShoppingCartReportProcessor.class);
     }
 
@@ -22,4 +54,71 @@ public class ReportRepository {
         return jpaSession.withTransaction(em -> em.find(ShoppingCartReport.class, cartId));
     }
 
+    /**
+     * The reports whose date is within {@code [from, to)}, ordered by that date and then by cart id, starting after
+     * the given cursor. The {@code (date, id)} index of the field is scanned from the cursor on, so every page costs
+     * the same whatever its position.
+     */
+    CompletionStage<List<ShoppingCartReport>> findByDate(DateField field, Instant from, Instant to, Optional<ReportCursor> after, int limit) {
+        String date = "r." + field.property;
+        return jpaSession.withTransaction(em -> {
+            TypedQuery<ShoppingCartReport> query;
+            if (after.isPresent()) {
+                // the redundant lower bound on the date lets the index scan start at the cursor
+                query = em.createQuery("SELECT r FROM ShoppingCartReport r"
+                        + " WHERE " + date + " >= :from AND " + date + " < :to AND " + date + " >= :afterDate"
+                        + " AND (" + date + " > :afterDate OR r.id > :afterId)"
+                        + " ORDER BY " + date + ", r.id", ShoppingCartReport.class)
+                        .setParameter("afterDate", after.get().getDate())
+                        .setParameter("afterId", after.get().getId());
+            } else {
+                query = em.createQuery("SELECT r FROM ShoppingCartReport r"
+                        + " WHERE " + date + " >= :from AND " + date + " < :to"
+                        + " ORDER BY " + date + ", r.id", ShoppingCartReport.class);
+            }
+            return query
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .setMaxResults(limit)
+                    .getResultList();
+        });
+    }
+
+    /**
+     * The reports of the given carts, read with one query per chunk of {@code find-by-ids-chunk-size} ids, so that
+     * only one chunk is held in memory at a time. Carts without a report are skipped.
+     */
+    Source<ShoppingCartReport, NotUsed> findByIds(Collection<String> cartIds) {
+        return Source.from(Iterables.partition(cartIds, findByIdsChunkSize))
+                .mapAsync(1, this::findChunk)
+                .mapConcat(reports -> reports);
+    }
+
+    private CompletionStage<List<ShoppingCartReport>> findChunk(List<String> cartIds) {
+        // a single array parameter, so that the statement is the same whatever the number of ids (PostgreSQL only)
+        return jpaSession.withTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT id, creationDate, checkoutDate FROM ShoppingCartReport WHERE id = ANY(?)")) {
+                Array ids = connection.createArrayOf("varchar", cartIds.toArray());
+                try {
+                    statement.setArray(1, ids);
+                    List<ShoppingCartReport> reports = new ArrayList<>(cartIds.size());
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            ShoppingCartReport report = new ShoppingCartReport();
+                            report.setId(resultSet.getString(1));
+                            report.setCreationDate(resultSet.getTimestamp(2).toInstant());
+                            Timestamp checkoutDate = resultSet.getTimestamp(3);
+                            report.setCheckoutDate(checkoutDate == null ? null : checkoutDate.toInstant());
+                            reports.add(report);
+                        }
+                    }
+                    return reports;
+                } finally {
+                    ids.free();
+                }
+            }
+        }));
+    }
+
 }
@@ -1,10 +1,22 @@
 package com.example.shoppingcart.impl;
 
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Adapter;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.EntityContext;
 import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
 import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.RecoveryCompleted;
+import akka.persistence.typed.SnapshotCompleted;
+import akka.persistence.typed.SnapshotFailed;
 import akka.persistence.typed.javadsl.*;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.example.shoppingcart.api.ShoppingCartItem;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
@@ -12,38 +24,106 @@ import com.lightbend.lagom.javadsl.persistence.AggregateEvent;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTagger;
-import com.lightbend.lagom.javadsl.persistence.AkkaTaggerAdapter;
 import com.lightbend.lagom.serialization.CompressedJsonable;
 import com.lightbend.lagom.serialization.Jsonable;
 import lombok.Value;
-import org.pcollections.HashTreePMap;
-import org.pcollections.PMap;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
 
 public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<ShoppingCartEntity.Command, ShoppingCartEntity.Event, ShoppingCartEntity.ShoppingCart> {
 
     private final String cartId;
+
+    private final EntityContext<Command> entityContext;
+
+    private final ActorContext<Command> context;
     
-    private final Function <Event, Set<String>> tagger;
+    private final Set<String> tags;
+
+    private final SnapshotPolicy snapshotPolicy;
+
+    private final Serialization serialization;
+
+    private final ShoppingCartMetrics metrics;
+
+    private final Passivation passivation;
+
+    private final CartChangeFeed changeFeed;
+
+    // counts the items put in the carts of this node
+    private final ActorRef<PopularItems.Command> popularItems;
+
+    // the most commands whose events are persisted together in group commit mode, 0 when it is disabled
+    private final int groupCommitMaxCommands;
+
+    private final EventHandler<ShoppingCart, Event> eventHandler;
+
+    // in group commit mode, the commands handled since the last batch of events was persisted, and their events
+    private final List<PendingReply> pendingReplies = new ArrayList<>();
+    private final List<Event> pendingEvents = new ArrayList<>();
+    // the state of the cart once the pending events are persisted
+    private ShoppingCart pendingState;
+    // whether commands were stashed until the pending events are persisted
+    private boolean stashing = false;
+
+    // used to measure how long the recovery of this cart takes
+    private final long startedAt = System.nanoTime();
+
+    // whether this cart took longer than allowed by the snapshot policy to recover
+    private boolean recoveredSlowly = false;
     
     static EntityTypeKey<Command> ENTITY_TYPE_KEY = EntityTypeKey.create(Command.class, "ShoppingCart");
     
-    private ShoppingCartEntity(EntityContext<Command> entityContext) {
+    private ShoppingCartEntity(EntityContext<Command> entityContext, SnapshotPolicy snapshotPolicy, Passivation passivation,
+                               CartChangeFeed changeFeed, ActorRef<PopularItems.Command> popularItems,
+                               int groupCommitMaxCommands, ActorContext<Command> context) {
         // PersistenceId needs a typeHint (or namespace) and entityId, we take then from the EntityContext
         super(PersistenceId.of(entityContext.getEntityTypeKey().name(), entityContext.getEntityId()));
         // we keep a copy of cartId because it's used in the events
         this.cartId = entityContext.getEntityId();
-        // tagger is constructed from adapter and needs EntityContext
-        this.tagger = AkkaTaggerAdapter.fromLagom(entityContext, Event.TAG);
+        this.entityContext = entityContext;
+        this.context = context;
+        // the tags may be migrated to another number of shards, see EventTags
+        this.tags = EventTags.fromConfig(context.getSystem().settings().config()).tagsFor(cartId);
+        this.snapshotPolicy = snapshotPolicy;
+        this.serialization = SerializationExtension.get(Adapter.toClassic(context.getSystem()));
+        this.metrics = ShoppingCartMetrics.get(context.getSystem());
+        this.passivation = passivation;
+        this.changeFeed = changeFeed;
+        this.popularItems = popularItems;
+        this.groupCommitMaxCommands = groupCommitMaxCommands;
+        this.eventHandler = eventHandler();
+    }
+
+    static Behavior<Command> create(EntityContext<Command> entityContext, SnapshotPolicy snapshotPolicy, Passivation passivation,
+                                    CartChangeFeed changeFeed, ActorRef<PopularItems.Command> popularItems) {
+        return create(entityContext, snapshotPolicy, passivation, changeFeed, popularItems, 0);
     }
 
-    static ShoppingCartEntity create(EntityContext<Command> entityContext) {
-        return new ShoppingCartEntity(entityContext);
+    /**
+     * @param groupCommitMaxCommands enables the group commit mode when greater than 0: the events of the commands
+     *                               that change the items of the cart, and that are received while the events of
+     *                               the previous ones are persisted, are persisted together, up to this many commands
+     *                               at a time.
+     */
+    static Behavior<Command> create(EntityContext<Command> entityContext, SnapshotPolicy snapshotPolicy, Passivation passivation,
+                                    CartChangeFeed changeFeed, ActorRef<PopularItems.Command> popularItems,
+                                    int groupCommitMaxCommands) {
+        return Behaviors.setup(context -> {
+            passivation.started(entityContext.getEntityId(), context.getSelf(), entityContext.getShard());
+            return new ShoppingCartEntity(entityContext, snapshotPolicy, passivation, changeFeed, popularItems,
+                    groupCommitMaxCommands, context);
+        });
     }
 
     //
@@ -51,51 +131,113 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     //
     interface Command<R> extends Jsonable {}
 
+    /**
+     * A command that changes the cart, which a client may retry with the same idempotency key. Once a command with
+     * a key was accepted, the commands with the same key are accepted again without changing the cart.
+     */
+    interface IdempotentCommand extends Command<Confirmation> {
+        Optional<String> getIdempotencyKey();
+
+        ActorRef<Confirmation> getReplyTo();
+    }
+
     @Value
     @JsonDeserialize
-    static final class AddItem implements Command<Confirmation>, CompressedJsonable {
+    static final class AddItem implements IdempotentCommand, CompressedJsonable {
         public final String itemId;
         public final int quantity;
+        public final Optional<String> idempotencyKey;
         public final ActorRef<Confirmation> replyTo;
 
         @JsonCreator
-        AddItem(String itemId, int quantity, ActorRef<Confirmation> replyTo) {
+        AddItem(String itemId, int quantity, Optional<String> idempotencyKey, ActorRef<Confirmation> replyTo) {
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
             this.quantity = quantity;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+            this.replyTo = replyTo;
+        }
+
+        AddItem(String itemId, int quantity, ActorRef<Confirmation> replyTo) {
+            this(itemId, quantity, Optional.empty(), replyTo);
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class AddItems implements IdempotentCommand, CompressedJsonable {
+        public final PSequence<ShoppingCartItem> items;
+        public final Optional<String> idempotencyKey;
+        public final ActorRef<Confirmation> replyTo;
+
+        @JsonCreator
+        AddItems(PSequence<ShoppingCartItem> items, Optional<String> idempotencyKey, ActorRef<Confirmation> replyTo) {
+            this.items = Preconditions.checkNotNull(items, "items");
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
             this.replyTo = replyTo;
         }
+
+        AddItems(PSequence<ShoppingCartItem> items, ActorRef<Confirmation> replyTo) {
+            this(items, Optional.empty(), replyTo);
+        }
     }
 
     @Value
     @JsonDeserialize
-    static final class RemoveItem implements Command<Confirmation> {
+    static final class RemoveItem implements IdempotentCommand {
         public final String itemId;
+        public final Optional<String> idempotencyKey;
         public final ActorRef<Confirmation> replyTo;
 
         @JsonCreator
-        RemoveItem(String itemId, ActorRef<Confirmation> replyTo) {
+        RemoveItem(String itemId, Optional<String> idempotencyKey, ActorRef<Confirmation> replyTo) {
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
             this.replyTo = replyTo;
         }
+
+        RemoveItem(String itemId, ActorRef<Confirmation> replyTo) {
+            this(itemId, Optional.empty(), replyTo);
+        }
     }
 
     @Value
     @JsonDeserialize
-    static final class AdjustItemQuantity implements Command<Confirmation>, CompressedJsonable {
+    static final class AdjustItemQuantity implements IdempotentCommand, CompressedJsonable {
         public final String itemId;
         public final int quantity;
+        public final Optional<String> idempotencyKey;
         public final ActorRef<Confirmation> replyTo;
 
         @JsonCreator
-        AdjustItemQuantity(String itemId, int quantity, ActorRef<Confirmation> replyTo) {
+        AdjustItemQuantity(String itemId, int quantity, Optional<String> idempotencyKey, ActorRef<Confirmation> replyTo) {
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
             this.quantity = quantity;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
             this.replyTo = replyTo;
         }
+
+        AdjustItemQuantity(String itemId, int quantity, ActorRef<Confirmation> replyTo) {
+            this(itemId, quantity, Optional.empty(), replyTo);
+        }
+    }
+
+    /**
+     * Sent by the actor to itself when it didn't receive any other command for the idle timeout of its state.
+     */
+    enum Idle implements Command<Void> {
+        INSTANCE
+    }
+
+    /**
+     * Sent by the actor to itself in group commit mode, to persist the events of the commands handled since the
+     * last batch.
+     */
+    enum Flush implements Command<Void> {
+        INSTANCE
     }
 
     static final class Get implements Command<Summary> {
-        private final ActorRef<Summary> replyTo;
+        public final ActorRef<Summary> replyTo;
 
         @JsonCreator
         Get(ActorRef<Summary> replyTo) {
@@ -103,11 +245,44 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         }
     }
 
-    static final class Checkout implements Command<Confirmation> {
-        private final ActorRef<Confirmation> replyTo;
+    static final class Checkout implements IdempotentCommand {
+        public final Optional<String> idempotencyKey;
+        public final ActorRef<Confirmation> replyTo;
 
         @JsonCreator
+        Checkout(Optional<String> idempotencyKey, ActorRef<Confirmation> replyTo) {
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+            this.replyTo = replyTo;
+        }
+
         Checkout(ActorRef<Confirmation> replyTo) {
+            this(Optional.empty(), replyTo);
+        }
+
+        @Override
+        public Optional<String> getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        @Override
+        public ActorRef<Confirmation> getReplyTo() {
+            return replyTo;
+        }
+    }
+
+    /**
+     * Sent by the {@link CartExpiry} to expire an open cart that was not used since the given time. Rejected if the
+     * cart was used since, which the expiry may not know yet.
+     */
+    @Value
+    @JsonDeserialize
+    static final class Expire implements Command<Confirmation> {
+        public final Instant idleSince;
+        public final ActorRef<Confirmation> replyTo;
+
+        @JsonCreator
+        Expire(Instant idleSince, ActorRef<Confirmation> replyTo) {
+            this.idleSince = Preconditions.checkNotNull(idleSince, "idleSince");
             this.replyTo = replyTo;
         }
     }
@@ -123,15 +298,41 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     @JsonDeserialize
     static final class Summary implements Reply {
 
+        /**
+         * The sequence number of summaries sent by nodes that didn't include it yet.
+         */
+        static final long UNKNOWN_SEQUENCE_NR = -1;
+
         public final Map<String, Integer> items;
         public final boolean checkedOut;
         public final Optional<Instant> checkoutDate;
+        /**
+         * The sequence number of the last event of the cart, which changes whenever the cart changes.
+         */
+        public final long sequenceNr;
 
         @JsonCreator
-        Summary(Map<String, Integer> items, boolean checkedOut, Optional<Instant> checkoutDate) {
+        Summary(Map<String, Integer> items, boolean checkedOut, Optional<Instant> checkoutDate, long sequenceNr) {
             this.items = items;
             this.checkedOut = checkedOut;
             this.checkoutDate = checkoutDate;
+            this.sequenceNr = sequenceNr;
+        }
+    }
+
+    /**
+     * Published to the {@link CartChangeFeed} after every change of a cart.
+     */
+    @Value
+    @JsonDeserialize
+    static final class CartChanged implements Jsonable {
+        public final String cartId;
+        public final Summary summary;
+
+        @JsonCreator
+        CartChanged(String cartId, Summary summary) {
+            this.cartId = Preconditions.checkNotNull(cartId, "cartId");
+            this.summary = Preconditions.checkNotNull(summary, "summary");
         }
     }
 
@@ -162,7 +363,9 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     //
     public interface Event extends Jsonable, AggregateEvent<Event> {
         /**
-         * The tag for shopping cart events, used for consuming the Journal event stream later.
+         * The tag for shopping cart events, used for consuming the Journal event stream later. The events are actually
+         * tagged according to the {@code shopping-cart.event-tags} section of the config, see {@link EventTags}, which
+         * matches this tag by default.
          */
         AggregateEventShards<Event> TAG = AggregateEventTag.sharded(Event.class, 10);
 
@@ -179,13 +382,23 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         public final String itemId;
         public final int quantity;
         public final Instant eventTime;
+        /**
+         * The idempotency key of the command that added the item. Only the last event of an {@link AddItems}
+         * carries it.
+         */
+        public final Optional<String> idempotencyKey;
 
         @JsonCreator
-        ItemAdded(String shoppingCartId, String itemId, int quantity, Instant eventTime) {
+        ItemAdded(String shoppingCartId, String itemId, int quantity, Instant eventTime, Optional<String> idempotencyKey) {
             this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
             this.quantity = quantity;
             this.eventTime = eventTime;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+        }
+
+        ItemAdded(String shoppingCartId, String itemId, int quantity, Instant eventTime) {
+            this(shoppingCartId, itemId, quantity, eventTime, Optional.empty());
         }
     }
 
@@ -195,12 +408,18 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         public final String shoppingCartId;
         public final String itemId;
         public final Instant eventTime;
+        public final Optional<String> idempotencyKey;
 
         @JsonCreator
-        ItemRemoved(String shoppingCartId, String itemId, Instant eventTime) {
+        ItemRemoved(String shoppingCartId, String itemId, Instant eventTime, Optional<String> idempotencyKey) {
             this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
             this.eventTime = eventTime;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+        }
+
+        ItemRemoved(String shoppingCartId, String itemId, Instant eventTime) {
+            this(shoppingCartId, itemId, eventTime, Optional.empty());
         }
     }
 
@@ -211,13 +430,19 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         public final String itemId;
         public final int quantity;
         public final Instant eventTime;
+        public final Optional<String> idempotencyKey;
 
         @JsonCreator
-        ItemQuantityAdjusted(String shoppingCartId, String itemId, int quantity, Instant eventTime) {
+        ItemQuantityAdjusted(String shoppingCartId, String itemId, int quantity, Instant eventTime, Optional<String> idempotencyKey) {
             this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.itemId = Preconditions.checkNotNull(itemId, "itemId");
             this.quantity = quantity;
             this.eventTime = eventTime;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+        }
+
+        ItemQuantityAdjusted(String shoppingCartId, String itemId, int quantity, Instant eventTime) {
+            this(shoppingCartId, itemId, quantity, eventTime, Optional.empty());
         }
     }
 
@@ -226,10 +451,35 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     static final class CheckedOut implements Event {
 
         public final String shoppingCartId;
+        /**
+         * The items of the cart when it was checked out. Empty for events persisted before the items were
+         * added to this event.
+         */
+        public final Optional<Map<String, Integer>> items;
         public final Instant eventTime;
+        public final Optional<String> idempotencyKey;
 
         @JsonCreator
-        CheckedOut(String shoppingCartId, Instant eventTime) {
+        CheckedOut(String shoppingCartId, Optional<Map<String, Integer>> items, Instant eventTime, Optional<String> idempotencyKey) {
+            this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
+            this.items = items == null ? Optional.empty() : items;
+            this.eventTime = eventTime;
+            this.idempotencyKey = idempotencyKey == null ? Optional.empty() : idempotencyKey;
+        }
+
+        CheckedOut(String shoppingCartId, Optional<Map<String, Integer>> items, Instant eventTime) {
+            this(shoppingCartId, items, eventTime, Optional.empty());
+        }
+    }
+
+    @Value
+    @JsonDeserialize
+    static final class CartExpired implements Event {
+        public final String shoppingCartId;
+        public final Instant eventTime;
+
+        @JsonCreator
+        CartExpired(String shoppingCartId, Instant eventTime) {
             this.shoppingCartId = Preconditions.checkNotNull(shoppingCartId, "shoppingCartId");
             this.eventTime = eventTime;
         }
@@ -242,23 +492,68 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     @JsonDeserialize
     static final class ShoppingCart implements CompressedJsonable {
 
-        public final PMap<String, Integer> items;
+        public final CartItems items;
         public final Optional<Instant> checkoutDate;
+        /**
+         * The time of the last event of the cart but its expiry. Empty for carts snapshotted before it was kept.
+         */
+        public final Optional<Instant> lastActivity;
+        public final Optional<Instant> expiryDate;
+        /**
+         * The idempotency keys of the last accepted commands that changed the cart, from the oldest to the most
+         * recent. At most {@link #MAX_RECENT_KEYS} are kept.
+         */
+        public final PSequence<String> recentKeys;
+
+        /**
+         * Kept small, as the keys are part of every snapshot. Clients only retry a command for a short while.
+         */
+        static final int MAX_RECENT_KEYS = 16;
 
         @JsonCreator
-        ShoppingCart(PMap<String, Integer> items, Instant checkoutDate) {
-            this.items = Preconditions.checkNotNull(items, "items");
+        ShoppingCart(Map<String, Integer> items, Instant checkoutDate, Instant lastActivity, Instant expiryDate,
+                     List<String> recentKeys) {
+            this.items = CartItems.from(Preconditions.checkNotNull(items, "items"));
             this.checkoutDate = Optional.ofNullable(checkoutDate);
+            this.lastActivity = Optional.ofNullable(lastActivity);
+            this.expiryDate = Optional.ofNullable(expiryDate);
+            this.recentKeys = recentKeys == null ? TreePVector.empty() : TreePVector.from(recentKeys);
+        }
+
+        ShoppingCart(Map<String, Integer> items, Instant checkoutDate) {
+            this(items, checkoutDate, null, null, null);
         }
 
         ShoppingCart removeItem(String itemId) {
-            PMap<String, Integer> newItems = items.minus(itemId);
-            return new ShoppingCart(newItems, null);
+            CartItems newItems = items.minus(itemId);
+            return new ShoppingCart(newItems, null, lastActivity.orElse(null), null, recentKeys);
         }
 
         ShoppingCart updateItem(String itemId, int quantity) {
-            PMap<String, Integer> newItems = items.plus(itemId, quantity);
-            return new ShoppingCart(newItems, null);
+            CartItems newItems = items.plus(itemId, quantity);
+            return new ShoppingCart(newItems, null, lastActivity.orElse(null), null, recentKeys);
+        }
+
+        ShoppingCart usedAt(Instant when) {
+            return new ShoppingCart(items, checkoutDate.orElse(null), when, expiryDate.orElse(null), recentKeys);
+        }
+
+        /**
+         * Remembers the key of an accepted command, forgetting the oldest key once there are too many.
+         */
+        ShoppingCart accepted(Optional<String> idempotencyKey) {
+            if (!idempotencyKey.isPresent() || recentKeys.contains(idempotencyKey.get())) {
+                return this;
+            }
+            PSequence<String> keys = recentKeys.plus(idempotencyKey.get());
+            if (keys.size() > MAX_RECENT_KEYS) {
+                keys = keys.minus(0);
+            }
+            return new ShoppingCart(items, checkoutDate.orElse(null), lastActivity.orElse(null), expiryDate.orElse(null), keys);
+        }
+
+        boolean hasAccepted(String idempotencyKey) {
+            return recentKeys.contains(idempotencyKey);
         }
 
         boolean isEmpty() {
@@ -270,18 +565,33 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         }
 
         ShoppingCart checkout(Instant when) {
-            return new ShoppingCart(items, when);
+            return new ShoppingCart(items, when, lastActivity.orElse(null), null, recentKeys);
+        }
+
+        ShoppingCart expire(Instant when) {
+            return new ShoppingCart(items, null, lastActivity.orElse(null), when, recentKeys);
         }
 
         boolean isOpen() {
-            return !this.isCheckedOut();
+            return !this.isCheckedOut() && !this.isExpired();
         }
 
         boolean isCheckedOut() {
             return this.checkoutDate.isPresent();
         }
 
-        public static final ShoppingCart EMPTY = new ShoppingCart(HashTreePMap.empty(), null);
+        boolean isExpired() {
+            return this.expiryDate.isPresent();
+        }
+
+        /**
+         * Whether the cart was not used after the given time, as far as it knows.
+         */
+        boolean isIdleSince(Instant since) {
+            return !lastActivity.isPresent() || !lastActivity.get().isAfter(since);
+        }
+
+        public static final ShoppingCart EMPTY = new ShoppingCart(CartItems.EMPTY, null);
     }
 
     @Override
@@ -291,12 +601,47 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
 
     @Override
     public RetentionCriteria retentionCriteria() {
-       return RetentionCriteria.snapshotEvery(100, 2);
+       return snapshotPolicy.retentionCriteria();
+    }
+
+    @Override
+    public boolean shouldSnapshot(ShoppingCart state, Event event, long sequenceNr) {
+        // Only called for the events that are not already snapshotted by the retention criteria
+        if (event instanceof CheckedOut || event instanceof CartExpired) {
+            // the last event of the cart, before which the CartExpiry deletes the events once snapshotted
+            metrics.increment("snapshot.triggered-by-closing");
+            return true;
+        } else if (!snapshotPolicy.isFrequentSnapshotDue(sequenceNr)) {
+            return false;
+        } else if (recoveredSlowly) {
+            metrics.increment("snapshot.triggered-by-recovery-time");
+            return true;
+        } else if (snapshotPolicy.exceedsStateSize(serialization.serialize(state).get().length)) {
+            metrics.increment("snapshot.triggered-by-state-size");
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public SignalHandler<ShoppingCart> signalHandler() {
+        return newSignalHandlerBuilder()
+                .onSignal(RecoveryCompleted.instance(), state -> {
+                    Duration recoveryTime = Duration.ofNanos(System.nanoTime() - startedAt);
+                    metrics.record("recovery-time", recoveryTime);
+                    recoveredSlowly = snapshotPolicy.exceedsRecoveryTime(recoveryTime);
+                    updateIdleTimeout(state);
+                })
+                .onSignal(SnapshotCompleted.class, (state, signal) -> metrics.increment("snapshot.completed"))
+                .onSignal(SnapshotFailed.class, (state, signal) -> metrics.increment("snapshot.failed"))
+                .onSignal(PostStop.instance(), state -> passivation.stopped(cartId, context.getSelf()))
+                .build();
     }
 
     @Override
     public Set<String> tagsFor(Event event) {
-        return tagger.apply(event);
+        return tags;
     }
 
     @Override
@@ -304,64 +649,223 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
         CommandHandlerWithReplyBuilder<Command, Event, ShoppingCart> builder = newCommandHandlerWithReplyBuilder();
         builder.forState(ShoppingCart::isOpen)
                 .onCommand(AddItem.class, this::onAddItem)
+                .onCommand(AddItems.class, this::onAddItems)
                 .onCommand(RemoveItem.class, this::onRemoveItem)
                 .onCommand(AdjustItemQuantity.class, this::onAdjustItemQuantity)
-                .onCommand(Checkout.class, this::onCheckout);
+                .onCommand(Checkout.class, this::onCheckout)
+                .onCommand(Expire.class, this::onExpire);
 
         builder.forState(ShoppingCart::isCheckedOut)
                 .onCommand(AddItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot add an item to a checked-out cart")))
+                .onCommand(AddItems.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot add items to a checked-out cart")))
                 .onCommand(RemoveItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot remove an item to a checked-out cart")))
                 .onCommand(AdjustItemQuantity.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot adjust item quantity in a checked-out cart")))
-                .onCommand(Checkout.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot checkout a checked-out cart")));
+                .onCommand(Checkout.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot checkout a checked-out cart")))
+                .onCommand(Expire.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot expire a checked-out cart")));
+
+        builder.forState(ShoppingCart::isExpired)
+                .onCommand(AddItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot add an item to an expired cart")))
+                .onCommand(AddItems.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot add items to an expired cart")))
+                .onCommand(RemoveItem.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot remove an item from an expired cart")))
+                .onCommand(AdjustItemQuantity.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot adjust item quantity in an expired cart")))
+                .onCommand(Checkout.class, cmd -> Effect().reply(cmd.replyTo, new Rejected("Cannot checkout an expired cart")))
+                // Expire is idempotent
+                .onCommand(Expire.class, (shoppingCart, cmd) -> Effect().reply(cmd.replyTo, new Accepted(toSummary(shoppingCart))));
+
+        builder.forAnyState()
+                .onCommand(Get.class, this::onGet)
+                .onCommand(Idle.class, this::onIdle);
+
+        CommandHandlerWithReply<Command, Event, ShoppingCart> commandHandler = builder.build();
+        return (persistedState, cmd) -> {
+            if (cmd == Flush.INSTANCE) {
+                return flush();
+            }
+            if (!pendingReplies.isEmpty() && (stashing || !isGroupable(cmd))) {
+                // handled once the pending events are persisted, in the order they were received
+                stashing = true;
+                return Effect().stash();
+            }
+            if (cmd != Idle.INSTANCE) {
+                passivation.used(cartId);
+            }
+            ShoppingCart shoppingCart = pendingReplies.isEmpty() ? persistedState : pendingState;
+            if (cmd instanceof IdempotentCommand) {
+                IdempotentCommand idempotentCmd = (IdempotentCommand) cmd;
+                if (idempotentCmd.getIdempotencyKey().map(shoppingCart::hasAccepted).orElse(false)) {
+                    // a retry of a command that was already accepted
+                    metrics.increment("idempotency.replayed");
+                    return reply(idempotentCmd.getReplyTo(), shoppingCart, Collections.emptyList(), null);
+                }
+            }
+            return commandHandler.apply(shoppingCart, cmd);
+        };
+    }
 
-        builder.forAnyState().onCommand(Get.class, this::onGet);
-        return builder.build();
+    private boolean isGroupable(Command<?> cmd) {
+        return groupCommitMaxCommands > 0 && (cmd instanceof AddItem || cmd instanceof AddItems
+                || cmd instanceof RemoveItem || cmd instanceof AdjustItemQuantity);
+    }
+
+    /**
+     * Persists the given events of a command, and accepts it with the state they lead to, or replies with the given
+     * confirmation when there are none. In group commit mode, the events of the commands that change the items of
+     * the cart are persisted by the next {@link Flush} instead, and so is the reply sent, if any event is pending.
+     *
+     * @param confirmation the reply to a command that doesn't change the cart, or null to accept it
+     */
+    private ReplyEffect<Event, ShoppingCart> reply(ActorRef<Confirmation> replyTo, ShoppingCart shoppingCart, List<Event> events,
+                                                   Confirmation confirmation) {
+        boolean grouped = groupCommitMaxCommands > 0;
+        if (events.isEmpty() && (!grouped || pendingReplies.isEmpty())) {
+            return Effect().reply(replyTo, confirmation != null ? confirmation : new Accepted(toSummary(shoppingCart)));
+        } else if (!grouped) {
+            return Effect()
+                    .persist(events)
+                    .thenRun(this::publishChange)
+                    .thenRun(persisted -> popularItems.tell(new PopularItems.Count(events)))
+                    .thenReply(replyTo, s -> new Accepted(toSummary(s)));
+        }
+
+        ShoppingCart updated = shoppingCart;
+        for (Event event : events) {
+            updated = eventHandler.apply(updated, event);
+        }
+        if (pendingReplies.isEmpty()) {
+            // handled after the commands already received
+            context.getSelf().tell(Flush.INSTANCE);
+        }
+        pendingReplies.add(new PendingReply(replyTo, confirmation, updated, events.size()));
+        pendingEvents.addAll(events);
+        pendingState = updated;
+        return pendingReplies.size() < groupCommitMaxCommands ? Effect().noReply() : flush();
+    }
+
+    private ReplyEffect<Event, ShoppingCart> flush() {
+        if (pendingReplies.isEmpty()) {
+            // already persisted when the batch was full
+            return Effect().noReply();
+        }
+        List<PendingReply> replies = new ArrayList<>(pendingReplies);
+        List<Event> events = new ArrayList<>(pendingEvents);
+        pendingReplies.clear();
+        pendingEvents.clear();
+        pendingState = null;
+        stashing = false;
+        metrics.increment("group-commit.batches");
+
+        long sequenceNr = lastSequenceNumber(context);
+        return Effect()
+                .persist(events)
+                .thenRun(this::publishChange)
+                .thenRun(persisted -> popularItems.tell(new PopularItems.Count(events)))
+                .thenRun(persisted -> {
+                    long replySequenceNr = sequenceNr;
+                    for (PendingReply reply : replies) {
+                        metrics.increment("group-commit.commands");
+                        replySequenceNr += reply.eventCount;
+                        reply.replyTo.tell(reply.confirmation != null ? reply.confirmation
+                                : new Accepted(toSummary(reply.state, replySequenceNr)));
+                    }
+                })
+                .thenNoReply()
+                .thenUnstashAll();
     }
 
     private ReplyEffect<Event, ShoppingCart> onAddItem(ShoppingCart shoppingCart, AddItem cmd) {
         if (shoppingCart.hasItem(cmd.getItemId())) {
-            return Effect().reply(cmd.replyTo, new Rejected("Item was already added to this shopping cart"));
+            return reject(cmd.replyTo, shoppingCart, "Item was already added to this shopping cart");
         } else if (cmd.getQuantity() <= 0) {
-            return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero"));
+            return reject(cmd.replyTo, shoppingCart, "Quantity must be greater than zero");
         } else {
-            return Effect()
-                    .persist(new ItemAdded(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now()))
-                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return accept(cmd.replyTo, shoppingCart,
+                    new ItemAdded(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now(), cmd.getIdempotencyKey()));
         }
     }
 
+    private ReplyEffect<Event, ShoppingCart> onAddItems(ShoppingCart shoppingCart, AddItems cmd) {
+        if (cmd.getItems().isEmpty()) {
+            return reject(cmd.replyTo, shoppingCart, "At least one item must be added");
+        }
+
+        // All items are validated up front so that the batch is either persisted as a whole or rejected as a whole
+        Set<String> itemIds = new HashSet<>();
+        List<Event> events = new ArrayList<>(cmd.getItems().size());
+        Instant now = Instant.now();
+        for (ShoppingCartItem item : cmd.getItems()) {
+            if (shoppingCart.hasItem(item.getItemId()) || !itemIds.add(item.getItemId())) {
+                return reject(cmd.replyTo, shoppingCart, "Item " + item.getItemId() + " was already added to this shopping cart");
+            } else if (item.getQuantity() <= 0) {
+                return reject(cmd.replyTo, shoppingCart, "Quantity must be greater than zero");
+            }
+            // the key is only kept once all the items are added
+            Optional<String> idempotencyKey = events.size() == cmd.getItems().size() - 1 ? cmd.getIdempotencyKey() : Optional.empty();
+            events.add(new ItemAdded(cartId, item.getItemId(), item.getQuantity(), now, idempotencyKey));
+        }
+
+        return reply(cmd.replyTo, shoppingCart, events, null);
+    }
+
     private ReplyEffect<Event, ShoppingCart> onRemoveItem(ShoppingCart shoppingCart, RemoveItem cmd) {
         if (shoppingCart.hasItem(cmd.getItemId())) {
-            return Effect()
-                    .persist(new ItemRemoved(cartId, cmd.getItemId(), Instant.now()))
-                    .thenReply(cmd.replyTo, updatedShoppingCart -> new Accepted(toSummary(updatedShoppingCart)));
+            return accept(cmd.replyTo, shoppingCart, new ItemRemoved(cartId, cmd.getItemId(), Instant.now(), cmd.getIdempotencyKey()));
         } else {
             // Remove is idempotent, so we can just return the summary here
-            return Effect().reply(cmd.replyTo, new Accepted(toSummary(shoppingCart)));
+            return reply(cmd.replyTo, shoppingCart, Collections.emptyList(), null);
         }
     }
 
     private ReplyEffect<Event, ShoppingCart> onAdjustItemQuantity(ShoppingCart shoppingCart, AdjustItemQuantity cmd) {
         if (cmd.getQuantity() <= 0) {
-            return Effect().reply(cmd.replyTo, new Rejected("Quantity must be greater than zero"));
+            return reject(cmd.replyTo, shoppingCart, "Quantity must be greater than zero");
         } else if (shoppingCart.hasItem(cmd.getItemId())) {
-            return Effect()
-                    .persist(new ItemQuantityAdjusted(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now()))
-                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return accept(cmd.replyTo, shoppingCart,
+                    new ItemQuantityAdjusted(cartId, cmd.getItemId(), cmd.getQuantity(), Instant.now(), cmd.getIdempotencyKey()));
         } else {
-            return Effect().reply(cmd.replyTo, new Rejected("Item not found in shopping cart"));
+            return reject(cmd.replyTo, shoppingCart, "Item not found in shopping cart");
         }
     }
 
+    private ReplyEffect<Event, ShoppingCart> accept(ActorRef<Confirmation> replyTo, ShoppingCart shoppingCart, Event event) {
+        return reply(replyTo, shoppingCart, Collections.singletonList(event), null);
+    }
+
+    private ReplyEffect<Event, ShoppingCart> reject(ActorRef<Confirmation> replyTo, ShoppingCart shoppingCart, String reason) {
+        return reply(replyTo, shoppingCart, Collections.emptyList(), new Rejected(reason));
+    }
+
     private ReplyEffect<Event, ShoppingCart> onGet(ShoppingCart shoppingCart, Get cmd) {
         return Effect().reply(cmd.replyTo, toSummary(shoppingCart));
     }
 
+    private ReplyEffect<Event, ShoppingCart> onIdle(ShoppingCart shoppingCart, Idle cmd) {
+        metrics.increment(shoppingCart.isOpen() ? "entities.passivated.idle" : "entities.passivated.checked-out");
+        entityContext.getShard().tell(new ClusterSharding.Passivate<>(context.getSelf()));
+        return Effect().noReply();
+    }
+
     private ReplyEffect<Event, ShoppingCart> onCheckout(ShoppingCart shoppingCart, Checkout cmd) {
         if (shoppingCart.isEmpty()) {
             return Effect().reply(cmd.replyTo, new Rejected("Cannot checkout empty shopping cart"));
         } else {
-            return Effect().persist(new CheckedOut(cartId, Instant.now())).thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+            return Effect()
+                    .persist(new CheckedOut(cartId, Optional.of(shoppingCart.getItems()), Instant.now(), cmd.getIdempotencyKey()))
+                    // checked-out carts are passivated sooner
+                    .thenRun(this::updateIdleTimeout)
+                    .thenRun(this::publishChange)
+                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
+        }
+    }
+
+    private ReplyEffect<Event, ShoppingCart> onExpire(ShoppingCart shoppingCart, Expire cmd) {
+        if (!shoppingCart.isIdleSince(cmd.getIdleSince())) {
+            return Effect().reply(cmd.replyTo, new Rejected("The cart was used since " + cmd.getIdleSince()));
+        } else {
+            return Effect()
+                    .persist(new CartExpired(cartId, Instant.now()))
+                    .thenRun(this::updateIdleTimeout)
+                    .thenRun(this::publishChange)
+                    .thenReply(cmd.replyTo, s -> new Accepted(toSummary(s)));
         }
     }
 
@@ -369,14 +873,54 @@ public class ShoppingCartEntity extends EventSourcedBehaviorWithEnforcedReplies<
     public EventHandler<ShoppingCart, Event> eventHandler() {
         return newEventHandlerBuilder()
                 .forAnyState()
-                .onEvent(ItemAdded.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity()))
-                .onEvent(ItemRemoved.class, (shoppingCart, evt) -> shoppingCart.removeItem(evt.getItemId()))
-                .onEvent(ItemQuantityAdjusted.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity()))
-                .onEvent(CheckedOut.class, (shoppingCart, evt) -> shoppingCart.checkout(evt.getEventTime()))
+                .onEvent(ItemAdded.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity())
+                        .usedAt(evt.getEventTime()).accepted(evt.getIdempotencyKey()))
+                .onEvent(ItemRemoved.class, (shoppingCart, evt) -> shoppingCart.removeItem(evt.getItemId())
+                        .usedAt(evt.getEventTime()).accepted(evt.getIdempotencyKey()))
+                .onEvent(ItemQuantityAdjusted.class, (shoppingCart, evt) -> shoppingCart.updateItem(evt.getItemId(), evt.getQuantity())
+                        .usedAt(evt.getEventTime()).accepted(evt.getIdempotencyKey()))
+                .onEvent(CheckedOut.class, (shoppingCart, evt) -> shoppingCart.checkout(evt.getEventTime())
+                        .usedAt(evt.getEventTime()).accepted(evt.getIdempotencyKey()))
+                .onEvent(CartExpired.class, (shoppingCart, evt) -> shoppingCart.expire(evt.getEventTime()))
                 .build();
     }
 
+    private void publishChange(ShoppingCart shoppingCart) {
+        changeFeed.publish(cartId, toSummary(shoppingCart));
+    }
+
+    private void updateIdleTimeout(ShoppingCart shoppingCart) {
+        Duration idleTimeout = passivation.idleTimeout(shoppingCart);
+        if (idleTimeout.isZero()) {
+            context.cancelReceiveTimeout();
+        } else {
+            context.setReceiveTimeout(idleTimeout, Idle.INSTANCE);
+        }
+    }
+
     private Summary toSummary(ShoppingCart shoppingCart) {
-        return new Summary(shoppingCart.getItems(), shoppingCart.isCheckedOut(), shoppingCart.getCheckoutDate());
+        return toSummary(shoppingCart, lastSequenceNumber(context));
+    }
+
+    private Summary toSummary(ShoppingCart shoppingCart, long sequenceNr) {
+        return new Summary(shoppingCart.getItems(), shoppingCart.isCheckedOut(), shoppingCart.getCheckoutDate(), sequenceNr);
+    }
+
+    /**
+     * The reply to a command whose events are pending in group commit mode.
+     */
+    private static final class PendingReply {
+        final ActorRef<Confirmation> replyTo;
+        // the reply to a command that didn't change the cart, or null to accept it with the state it led to
+        final Confirmation confirmation;
+        final ShoppingCart state;
+        final int eventCount;
+
+        PendingReply(ActorRef<Confirmation> replyTo, Confirmation confirmation, ShoppingCart state, int eventCount) {
+            this.replyTo = replyTo;
+            this.confirmation = confirmation;
+            this.state = state;
+            this.eventCount = eventCount;
+        }
     }
 }
@@ -0,0 +1,115 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per node counters and timers of the shopping cart service.
+ * <p>
+ * They are registered in JMX as {@code com.example.shoppingcart:type=ShoppingCartMetrics,system=<actor system name>}
+ * so that they can be read with any JMX tool or exporter.
+ */
+public class ShoppingCartMetrics implements Extension, ShoppingCartMetricsMXBean {
+
+    public static final ExtensionId<ShoppingCartMetrics> ID = new ExtensionId<ShoppingCartMetrics>() {
+        @Override
+        public ShoppingCartMetrics createExtension(ActorSystem<?> system) {
+            return new ShoppingCartMetrics(system);
+        }
+    };
+
+    public static ShoppingCartMetrics get(ActorSystem<?> system) {
+        return ID.apply(system);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private ShoppingCartMetrics(ActorSystem<?> system) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.example.shoppingcart:type=ShoppingCartMetrics,system=" + ObjectName.quote(system.name()));
+            server.registerMBean(this, name);
+            system.getWhenTerminated().thenRun(() -> {
+                try {
+                    server.unregisterMBean(name);
+                } catch (Exception e) {
+                    logger.debug("Could not unregister shopping cart metrics", e);
+                }
+            });
+        } catch (Exception e) {
+            logger.warn("Could not register shopping cart metrics in JMX", e);
+        }
+    }
+
+    /**
+     * Increments the counter with the given name.
+     */
+    void increment(String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * Decrements the counter with the given name, for counters that track a current amount.
+     */
+    void decrement(String name) {
+        counter(name).decrement();
+    }
+
+    /**
+     * Records a measurement in the timer with the given name.
+     */
+    void record(String name, Duration duration) {
+        timers.computeIfAbsent(name, n -> new Timer()).record(duration);
+    }
+
+    private LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        timers.forEach((name, timer) -> {
+            result.put(name + ".count", timer.count.sum());
+            result.put(name + ".total-ms", timer.totalMicros.sum() / 1000);
+            result.put(name + ".max-ms", timer.maxMicros.get() / 1000);
+        });
+        return result;
+    }
+
+    private static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+        void record(Duration duration) {
+            long micros = duration.toNanos() / 1000;
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+        }
+    }
+}
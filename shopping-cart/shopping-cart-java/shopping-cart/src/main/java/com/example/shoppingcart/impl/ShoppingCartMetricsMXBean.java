@@ -0,0 +1,14 @@
+package com.example.shoppingcart.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ShoppingCartMetrics}.
+ */
+public interface ShoppingCartMetricsMXBean {
+
+    /**
+     * All counters by name. Timers are reported as their count, total and max in milliseconds.
+     */
+    Map<String, Long> getCounters();
+}
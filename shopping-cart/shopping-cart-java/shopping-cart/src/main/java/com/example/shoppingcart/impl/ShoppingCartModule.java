@@ -12,5 +12,10 @@ public class ShoppingCartModule extends AbstractModule implements ServiceGuiceSu
     protected void configure() {
         bindService(ShoppingCartService.class, ShoppingCartServiceImpl.class);
         bind(ReportRepository.class);
+        bind(ReportCache.class);
+        bind(CartStatisticsRepository.class);
+        bind(OpenCartItemRepository.class);
+        bind(CartActivityRepository.class);
+        bind(EventTagMigration.class);
     }
 }
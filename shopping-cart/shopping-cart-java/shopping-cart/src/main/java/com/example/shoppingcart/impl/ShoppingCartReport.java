@@ -2,10 +2,17 @@ package com.example.shoppingcart.impl;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import java.time.Instant;
 import javax.validation.constraints.NotNull;
 
 @Entity
+@Table(indexes = {
+        // used by the time range queries, which are ordered by date and then by id
+        @Index(name = "shoppingcartreport_creationdate_id", columnList = "creationDate, id"),
+        @Index(name = "shoppingcartreport_checkoutdate_id", columnList = "checkoutDate, id")
+})
 public class ShoppingCartReport {
     /**
      * The ID of the shopping cart.
@@ -4,6 +4,8 @@ import com.google.common.collect.ImmutableMap;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
 import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
 import com.lightbend.lagom.javadsl.persistence.jpa.JpaReadSide;
+import com.lightbend.lagom.javadsl.persistence.jpa.JpaSession;
+import com.typesafe.config.Config;
 import org.pcollections.PSequence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,19 +16,37 @@ import javax.persistence.Persistence;
 
 public class ShoppingCartReportProcessor extends ReadSideProcessor<ShoppingCartEntity.Event> {
 
+    private static final String READ_SIDE_ID = "shopping-cart-report";
+
     private final JpaReadSide jpaReadSide;
+    private final JpaSession jpaSession;
+    private final Config config;
+    private final ReportCache reportCache;
+    private final EventTagMigration tagMigration;
     final private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Inject
-    public ShoppingCartReportProcessor(JpaReadSide jpaReadSide) {
+    public ShoppingCartReportProcessor(JpaReadSide jpaReadSide, JpaSession jpaSession, Config config, ReportCache reportCache,
+                                       EventTagMigration tagMigration) {
         this.jpaReadSide = jpaReadSide;
+        this.jpaSession = jpaSession;
+        this.config = config;
+        this.reportCache = reportCache;
+        this.tagMigration = tagMigration;
     }
 
     @Override
     public ReadSideHandler<ShoppingCartEntity.Event> buildHandler() {
-        return jpaReadSide.<ShoppingCartEntity.Event>builder("shopping-cart-report").setGlobalPrepare(this::createSchema)
-                .setEventHandler(ShoppingCartEntity.ItemAdded.class, this::createReport)
-                .setEventHandler(ShoppingCartEntity.CheckedOut.class, this::addCheckoutTime).build();
+        ReadSideHandler<ShoppingCartEntity.Event> jpaHandler =
+                jpaReadSide.<ShoppingCartEntity.Event>builder(READ_SIDE_ID).setGlobalPrepare(this::createSchema)
+                        .setEventHandler(ShoppingCartEntity.ItemAdded.class, this::createReport)
+                        .setEventHandler(ShoppingCartEntity.CheckedOut.class, this::addCheckoutTime)
+                        .setEventHandler(ShoppingCartEntity.CartExpired.class, this::deleteReport).build();
+        if (config.getBoolean("shopping-cart.report.batching")) {
+            return tagMigration.wrap(READ_SIDE_ID, new BatchedReportHandler(jpaHandler, jpaSession, READ_SIDE_ID, config, reportCache));
+        } else {
+            return tagMigration.wrap(READ_SIDE_ID, jpaHandler);
+        }
     }
 
     private void createSchema(@SuppressWarnings("unused") EntityManager ignored) {
@@ -43,6 +63,9 @@ public class ShoppingCartReportProcessor extends ReadSideProcessor<ShoppingCartE
             report.setCreationDate(evt.eventTime);
             entityManager.persist(report);
         }
+        // invalidated before the transaction is committed, so a report read in between may stay cached until
+        // its time-to-live, which the batched mode avoids
+        reportCache.invalidate(evt.shoppingCartId);
     }
 
     private void addCheckoutTime(EntityManager entityManager, ShoppingCartEntity.CheckedOut evt) {
@@ -53,8 +76,19 @@ public class ShoppingCartReportProcessor extends ReadSideProcessor<ShoppingCartE
             logger.debug("Adding checkout time (" + evt.eventTime + ") for CartID: " + evt.shoppingCartId);
             report.setCheckoutDate(evt.eventTime);
             entityManager.persist(report);
+            reportCache.invalidate(evt.shoppingCartId);
         } else {
-            throw new RuntimeException("Didn't find cart for checkout. CartID: " + evt.shoppingCartId);
+            // a read side started or rebuilt after the history of the cart was deleted only sees its last events
+            logger.warn("Didn't find cart for checkout, skipping it. CartID: " + evt.shoppingCartId);
+        }
+    }
+
+    private void deleteReport(EntityManager entityManager, ShoppingCartEntity.CartExpired evt) {
+        logger.debug("Deleting the report of expired CartID: " + evt.shoppingCartId);
+        ShoppingCartReport report = findReport(entityManager, evt.shoppingCartId);
+        if (report != null) {
+            entityManager.remove(report);
+            reportCache.invalidate(evt.shoppingCartId);
         }
     }
 
@@ -64,7 +98,7 @@ public class ShoppingCartReportProcessor extends ReadSideProcessor<ShoppingCartE
 
     @Override
     public PSequence<AggregateEventTag<ShoppingCartEntity.Event>> aggregateTags() {
-        return ShoppingCartEntity.Event.TAG.allTags();
+        return tagMigration.tags().allTags();
     }
 
 }
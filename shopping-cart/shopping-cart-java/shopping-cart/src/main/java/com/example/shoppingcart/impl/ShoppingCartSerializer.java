@@ -0,0 +1,439 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorRefResolver;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.SerializerWithStringManifest;
+import com.example.shoppingcart.api.ShoppingCartItem;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Compact binary serializer for the {@link ShoppingCartEntity} commands, replies, events and state.
+ * <p>
+ * Every payload starts with a format version byte, followed by the fields of the message in a fixed order,
+ * without any field names. Payloads written with older versions of the format can always be read.
+ * <p>
+ * A node can't read the versions added after its build, so every message is written with the oldest version that
+ * holds its fields, and never with a version above {@code shopping-cart.serialization.write-version}. The fields
+ * added by a higher version are then left out. A build adding a version is first rolled out with the previous
+ * version configured, so that every node reads the new one before any node writes it. Journal rows
+ * and snapshots that were written as JSON before this serializer was bound keep their original serializer id, so Akka still hands them to the Jackson serializer when they are read.
+ */
+public class ShoppingCartSerializer extends SerializerWithStringManifest {
+
+    /**
+     * The serializer id stored alongside every journal row and snapshot. It must never change.
+     */
+    static final int IDENTIFIER = 1000100;
+
+    private static final byte VERSION_1 = 1;
+    // adds the items to CheckedOut
+    private static final byte VERSION_2 = 2;
+    // adds the sequence number to Summary
+    private static final byte VERSION_3 = 3;
+    // adds the last activity and the expiry date to ShoppingCart
+    private static final byte VERSION_4 = 4;
+    // adds the idempotency keys to the commands and events that change a cart, and the recent keys to ShoppingCart
+    private static final byte VERSION_5 = 5;
+    private static final byte CURRENT_VERSION = VERSION_5;
+
+    private static final String ADD_ITEM_MANIFEST = "AI";
+    private static final String ADD_ITEMS_MANIFEST = "AIS";
+    private static final String REMOVE_ITEM_MANIFEST = "RI";
+    private static final String ADJUST_ITEM_QUANTITY_MANIFEST = "AQ";
+    private static final String GET_MANIFEST = "G";
+    private static final String CHECKOUT_MANIFEST = "C";
+    private static final String EXPIRE_MANIFEST = "E";
+    private static final String SUMMARY_MANIFEST = "S";
+    private static final String ACCEPTED_MANIFEST = "A";
+    private static final String REJECTED_MANIFEST = "R";
+    private static final String CART_CHANGED_MANIFEST = "CC";
+    private static final String ITEM_ADDED_MANIFEST = "IA";
+    private static final String ITEM_REMOVED_MANIFEST = "IR";
+    private static final String ITEM_QUANTITY_ADJUSTED_MANIFEST = "IQ";
+    private static final String CHECKED_OUT_MANIFEST = "CO";
+    private static final String CART_EXPIRED_MANIFEST = "CE";
+    private static final String SHOPPING_CART_MANIFEST = "SC";
+
+    private final ActorRefResolver actorRefResolver;
+    private final byte writeVersion;
+
+    public ShoppingCartSerializer(ExtendedActorSystem system) {
+        this(system, system.settings().config().getInt("shopping-cart.serialization.write-version"));
+    }
+
+    ShoppingCartSerializer(ExtendedActorSystem system, int writeVersion) {
+        if (writeVersion < VERSION_1 || writeVersion > CURRENT_VERSION) {
+            throw new IllegalArgumentException("The write version must be between " + VERSION_1 + " and " + CURRENT_VERSION);
+        }
+        this.actorRefResolver = ActorRefResolver.get(Adapter.toTyped(system));
+        this.writeVersion = (byte) writeVersion;
+    }
+
+    /**
+     * Whether the idempotency keys are kept by the messages written with the given write version.
+     */
+    static boolean writesIdempotencyKeys(int writeVersion) {
+        return writeVersion >= VERSION_5;
+    }
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof ShoppingCartEntity.AddItem) return ADD_ITEM_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.AddItems) return ADD_ITEMS_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.RemoveItem) return REMOVE_ITEM_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.AdjustItemQuantity) return ADJUST_ITEM_QUANTITY_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Get) return GET_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Checkout) return CHECKOUT_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Expire) return EXPIRE_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Summary) return SUMMARY_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Accepted) return ACCEPTED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.Rejected) return REJECTED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.CartChanged) return CART_CHANGED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.ItemAdded) return ITEM_ADDED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.ItemRemoved) return ITEM_REMOVED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.ItemQuantityAdjusted) return ITEM_QUANTITY_ADJUSTED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.CheckedOut) return CHECKED_OUT_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.CartExpired) return CART_EXPIRED_MANIFEST;
+        else if (o instanceof ShoppingCartEntity.ShoppingCart) return SHOPPING_CART_MANIFEST;
+        else throw new IllegalArgumentException("Can't serialize object of type " + o.getClass() + " in " + getClass().getName());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte version = (byte) Math.min(oldestVersion(o), writeVersion);
+            out.writeByte(version);
+            if (o instanceof ShoppingCartEntity.AddItem) {
+                ShoppingCartEntity.AddItem cmd = (ShoppingCartEntity.AddItem) o;
+                out.writeUTF(cmd.getItemId());
+                out.writeInt(cmd.getQuantity());
+                writeActorRef(out, cmd.getReplyTo());
+                writeIdempotencyKey(out, cmd.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.AddItems) {
+                ShoppingCartEntity.AddItems cmd = (ShoppingCartEntity.AddItems) o;
+                out.writeInt(cmd.getItems().size());
+                for (ShoppingCartItem item : cmd.getItems()) {
+                    out.writeUTF(item.getItemId());
+                    out.writeInt(item.getQuantity());
+                }
+                writeActorRef(out, cmd.getReplyTo());
+                writeIdempotencyKey(out, cmd.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.RemoveItem) {
+                ShoppingCartEntity.RemoveItem cmd = (ShoppingCartEntity.RemoveItem) o;
+                out.writeUTF(cmd.getItemId());
+                writeActorRef(out, cmd.getReplyTo());
+                writeIdempotencyKey(out, cmd.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.AdjustItemQuantity) {
+                ShoppingCartEntity.AdjustItemQuantity cmd = (ShoppingCartEntity.AdjustItemQuantity) o;
+                out.writeUTF(cmd.getItemId());
+                out.writeInt(cmd.getQuantity());
+                writeActorRef(out, cmd.getReplyTo());
+                writeIdempotencyKey(out, cmd.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.Get) {
+                writeActorRef(out, ((ShoppingCartEntity.Get) o).replyTo);
+            } else if (o instanceof ShoppingCartEntity.Checkout) {
+                ShoppingCartEntity.Checkout cmd = (ShoppingCartEntity.Checkout) o;
+                writeActorRef(out, cmd.getReplyTo());
+                writeIdempotencyKey(out, cmd.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.Expire) {
+                ShoppingCartEntity.Expire cmd = (ShoppingCartEntity.Expire) o;
+                writeInstant(out, cmd.getIdleSince());
+                writeActorRef(out, cmd.getReplyTo());
+            } else if (o instanceof ShoppingCartEntity.Summary) {
+                writeSummary(out, (ShoppingCartEntity.Summary) o, version);
+            } else if (o instanceof ShoppingCartEntity.Accepted) {
+                writeSummary(out, ((ShoppingCartEntity.Accepted) o).getSummary(), version);
+            } else if (o instanceof ShoppingCartEntity.Rejected) {
+                out.writeUTF(((ShoppingCartEntity.Rejected) o).getReason());
+            } else if (o instanceof ShoppingCartEntity.CartChanged) {
+                ShoppingCartEntity.CartChanged changed = (ShoppingCartEntity.CartChanged) o;
+                out.writeUTF(changed.getCartId());
+                writeSummary(out, changed.getSummary(), version);
+            } else if (o instanceof ShoppingCartEntity.ItemAdded) {
+                ShoppingCartEntity.ItemAdded evt = (ShoppingCartEntity.ItemAdded) o;
+                out.writeUTF(evt.getShoppingCartId());
+                out.writeUTF(evt.getItemId());
+                out.writeInt(evt.getQuantity());
+                writeInstant(out, evt.getEventTime());
+                writeIdempotencyKey(out, evt.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.ItemRemoved) {
+                ShoppingCartEntity.ItemRemoved evt = (ShoppingCartEntity.ItemRemoved) o;
+                out.writeUTF(evt.getShoppingCartId());
+                out.writeUTF(evt.getItemId());
+                writeInstant(out, evt.getEventTime());
+                writeIdempotencyKey(out, evt.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.ItemQuantityAdjusted) {
+                ShoppingCartEntity.ItemQuantityAdjusted evt = (ShoppingCartEntity.ItemQuantityAdjusted) o;
+                out.writeUTF(evt.getShoppingCartId());
+                out.writeUTF(evt.getItemId());
+                out.writeInt(evt.getQuantity());
+                writeInstant(out, evt.getEventTime());
+                writeIdempotencyKey(out, evt.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.CheckedOut) {
+                ShoppingCartEntity.CheckedOut evt = (ShoppingCartEntity.CheckedOut) o;
+                out.writeUTF(evt.getShoppingCartId());
+                if (version >= VERSION_2) {
+                    out.writeBoolean(evt.getItems().isPresent());
+                    if (evt.getItems().isPresent()) {
+                        writeItems(out, evt.getItems().get());
+                    }
+                }
+                writeInstant(out, evt.getEventTime());
+                writeIdempotencyKey(out, evt.getIdempotencyKey(), version);
+            } else if (o instanceof ShoppingCartEntity.CartExpired) {
+                ShoppingCartEntity.CartExpired evt = (ShoppingCartEntity.CartExpired) o;
+                out.writeUTF(evt.getShoppingCartId());
+                writeInstant(out, evt.getEventTime());
+            } else if (o instanceof ShoppingCartEntity.ShoppingCart) {
+                ShoppingCartEntity.ShoppingCart state = (ShoppingCartEntity.ShoppingCart) o;
+                writeItems(out, state.getItems());
+                writeOptionalInstant(out, state.getCheckoutDate());
+                if (version >= VERSION_4) {
+                    writeOptionalInstant(out, state.getLastActivity());
+                    writeOptionalInstant(out, state.getExpiryDate());
+                }
+                if (version >= VERSION_5) {
+                    out.writeInt(state.getRecentKeys().size());
+                    for (String key : state.getRecentKeys()) {
+                        out.writeUTF(key);
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Can't serialize object of type " + o.getClass() + " in " + getClass().getName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The oldest version of the format that holds all the fields of the given message.
+     */
+    private static byte oldestVersion(Object o) {
+        if (o instanceof ShoppingCartEntity.AddItem) return keyVersion(((ShoppingCartEntity.AddItem) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.AddItems) return keyVersion(((ShoppingCartEntity.AddItems) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.RemoveItem) return keyVersion(((ShoppingCartEntity.RemoveItem) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.AdjustItemQuantity) return keyVersion(((ShoppingCartEntity.AdjustItemQuantity) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.Checkout) return keyVersion(((ShoppingCartEntity.Checkout) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.Summary) return summaryVersion((ShoppingCartEntity.Summary) o);
+        else if (o instanceof ShoppingCartEntity.Accepted) return summaryVersion(((ShoppingCartEntity.Accepted) o).getSummary());
+        else if (o instanceof ShoppingCartEntity.CartChanged) return summaryVersion(((ShoppingCartEntity.CartChanged) o).getSummary());
+        else if (o instanceof ShoppingCartEntity.ItemAdded) return keyVersion(((ShoppingCartEntity.ItemAdded) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.ItemRemoved) return keyVersion(((ShoppingCartEntity.ItemRemoved) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.ItemQuantityAdjusted) return keyVersion(((ShoppingCartEntity.ItemQuantityAdjusted) o).getIdempotencyKey());
+        else if (o instanceof ShoppingCartEntity.CheckedOut) {
+            ShoppingCartEntity.CheckedOut evt = (ShoppingCartEntity.CheckedOut) o;
+            return evt.getIdempotencyKey().isPresent() ? VERSION_5 : evt.getItems().isPresent() ? VERSION_2 : VERSION_1;
+        } else if (o instanceof ShoppingCartEntity.ShoppingCart) {
+            ShoppingCartEntity.ShoppingCart state = (ShoppingCartEntity.ShoppingCart) o;
+            if (!state.getRecentKeys().isEmpty()) return VERSION_5;
+            else if (state.getLastActivity().isPresent() || state.getExpiryDate().isPresent()) return VERSION_4;
+            else return VERSION_1;
+        }
+        else return VERSION_1;
+    }
+
+    private static byte keyVersion(Optional<String> idempotencyKey) {
+        return idempotencyKey.isPresent() ? VERSION_5 : VERSION_1;
+    }
+
+    private static byte summaryVersion(ShoppingCartEntity.Summary summary) {
+        return summary.getSequenceNr() != ShoppingCartEntity.Summary.UNKNOWN_SEQUENCE_NR ? VERSION_3 : VERSION_1;
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte version = in.readByte();
+            if (version < VERSION_1 || version > CURRENT_VERSION) {
+                throw new NotSerializableException("Unknown version [" + version + "] of manifest [" + manifest + "] in " + getClass().getName());
+            }
+            switch (manifest) {
+                case ADD_ITEM_MANIFEST: {
+                    String itemId = in.readUTF();
+                    int quantity = in.readInt();
+                    ActorRef<ShoppingCartEntity.Confirmation> replyTo = readActorRef(in);
+                    return new ShoppingCartEntity.AddItem(itemId, quantity, readIdempotencyKey(in, version), replyTo);
+                }
+                case ADD_ITEMS_MANIFEST: {
+                    int size = in.readInt();
+                    List<ShoppingCartItem> items = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        items.add(new ShoppingCartItem(in.readUTF(), in.readInt()));
+                    }
+                    PSequence<ShoppingCartItem> sequence = TreePVector.from(items);
+                    ActorRef<ShoppingCartEntity.Confirmation> replyTo = readActorRef(in);
+                    return new ShoppingCartEntity.AddItems(sequence, readIdempotencyKey(in, version), replyTo);
+                }
+                case REMOVE_ITEM_MANIFEST: {
+                    String itemId = in.readUTF();
+                    ActorRef<ShoppingCartEntity.Confirmation> replyTo = readActorRef(in);
+                    return new ShoppingCartEntity.RemoveItem(itemId, readIdempotencyKey(in, version), replyTo);
+                }
+                case ADJUST_ITEM_QUANTITY_MANIFEST: {
+                    String itemId = in.readUTF();
+                    int quantity = in.readInt();
+                    ActorRef<ShoppingCartEntity.Confirmation> replyTo = readActorRef(in);
+                    return new ShoppingCartEntity.AdjustItemQuantity(itemId, quantity, readIdempotencyKey(in, version), replyTo);
+                }
+                case GET_MANIFEST:
+                    return new ShoppingCartEntity.Get(readActorRef(in));
+                case CHECKOUT_MANIFEST: {
+                    ActorRef<ShoppingCartEntity.Confirmation> replyTo = readActorRef(in);
+                    return new ShoppingCartEntity.Checkout(readIdempotencyKey(in, version), replyTo);
+                }
+                case EXPIRE_MANIFEST:
+                    return new ShoppingCartEntity.Expire(readInstant(in), readActorRef(in));
+                case SUMMARY_MANIFEST:
+                    return readSummary(in, version);
+                case ACCEPTED_MANIFEST:
+                    return new ShoppingCartEntity.Accepted(readSummary(in, version));
+                case REJECTED_MANIFEST:
+                    return new ShoppingCartEntity.Rejected(in.readUTF());
+                case CART_CHANGED_MANIFEST:
+                    return new ShoppingCartEntity.CartChanged(in.readUTF(), readSummary(in, version));
+                case ITEM_ADDED_MANIFEST:
+                    return new ShoppingCartEntity.ItemAdded(in.readUTF(), in.readUTF(), in.readInt(), readInstant(in),
+                            readIdempotencyKey(in, version));
+                case ITEM_REMOVED_MANIFEST:
+                    return new ShoppingCartEntity.ItemRemoved(in.readUTF(), in.readUTF(), readInstant(in),
+                            readIdempotencyKey(in, version));
+                case ITEM_QUANTITY_ADJUSTED_MANIFEST:
+                    return new ShoppingCartEntity.ItemQuantityAdjusted(in.readUTF(), in.readUTF(), in.readInt(), readInstant(in),
+                            readIdempotencyKey(in, version));
+                case CHECKED_OUT_MANIFEST: {
+                    String shoppingCartId = in.readUTF();
+                    Optional<Map<String, Integer>> items =
+                            version >= VERSION_2 && in.readBoolean() ? Optional.of(readItems(in)) : Optional.empty();
+                    return new ShoppingCartEntity.CheckedOut(shoppingCartId, items, readInstant(in), readIdempotencyKey(in, version));
+                }
+                case CART_EXPIRED_MANIFEST:
+                    return new ShoppingCartEntity.CartExpired(in.readUTF(), readInstant(in));
+                case SHOPPING_CART_MANIFEST: {
+                    Map<String, Integer> items = readItems(in);
+                    Instant checkoutDate = readOptionalInstant(in).orElse(null);
+                    if (version < VERSION_4) {
+                        return new ShoppingCartEntity.ShoppingCart(items, checkoutDate);
+                    }
+                    Instant lastActivity = readOptionalInstant(in).orElse(null);
+                    Instant expiryDate = readOptionalInstant(in).orElse(null);
+                    List<String> recentKeys = new ArrayList<>();
+                    if (version >= VERSION_5) {
+                        int size = in.readInt();
+                        for (int i = 0; i < size; i++) {
+                            recentKeys.add(in.readUTF());
+                        }
+                    }
+                    return new ShoppingCartEntity.ShoppingCart(items, checkoutDate, lastActivity, expiryDate, recentKeys);
+                }
+                default:
+                    throw new NotSerializableException("Unknown manifest [" + manifest + "] in " + getClass().getName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeActorRef(DataOutputStream out, ActorRef<?> ref) throws IOException {
+        out.writeUTF(actorRefResolver.toSerializationFormat(ref));
+    }
+
+    private <T> ActorRef<T> readActorRef(DataInputStream in) throws IOException {
+        return actorRefResolver.resolveActorRef(in.readUTF());
+    }
+
+    private void writeOptionalString(DataOutputStream out, Optional<String> string) throws IOException {
+        out.writeBoolean(string.isPresent());
+        if (string.isPresent()) {
+            out.writeUTF(string.get());
+        }
+    }
+
+    private void writeIdempotencyKey(DataOutputStream out, Optional<String> idempotencyKey, byte version) throws IOException {
+        if (version >= VERSION_5) {
+            writeOptionalString(out, idempotencyKey);
+        }
+    }
+
+    private Optional<String> readIdempotencyKey(DataInputStream in, byte version) throws IOException {
+        return version >= VERSION_5 && in.readBoolean() ? Optional.of(in.readUTF()) : Optional.empty();
+    }
+
+    private void writeSummary(DataOutputStream out, ShoppingCartEntity.Summary summary, byte version) throws IOException {
+        writeItems(out, summary.getItems());
+        out.writeBoolean(summary.isCheckedOut());
+        writeOptionalInstant(out, summary.getCheckoutDate());
+        if (version >= VERSION_3) {
+            out.writeLong(summary.getSequenceNr());
+        }
+    }
+
+    private ShoppingCartEntity.Summary readSummary(DataInputStream in, byte version) throws IOException {
+        Map<String, Integer> items = readItems(in);
+        boolean checkedOut = in.readBoolean();
+        Optional<Instant> checkoutDate = readOptionalInstant(in);
+        long sequenceNr = version >= VERSION_3 ? in.readLong() : ShoppingCartEntity.Summary.UNKNOWN_SEQUENCE_NR;
+        return new ShoppingCartEntity.Summary(items, checkedOut, checkoutDate, sequenceNr);
+    }
+
+    private void writeItems(DataOutputStream out, Map<String, Integer> items) throws IOException {
+        out.writeInt(items.size());
+        for (Map.Entry<String, Integer> item : items.entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeInt(item.getValue());
+        }
+    }
+
+    private Map<String, Integer> readItems(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, Integer> items = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            items.put(in.readUTF(), in.readInt());
+        }
+        return items;
+    }
+
+    private void writeInstant(DataOutputStream out, Instant instant) throws IOException {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    private Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private void writeOptionalInstant(DataOutputStream out, Optional<Instant> instant) throws IOException {
+        out.writeBoolean(instant.isPresent());
+        if (instant.isPresent()) {
+            writeInstant(out, instant.get());
+        }
+    }
+
+    private Optional<Instant> readOptionalInstant(DataInputStream in) throws IOException {
+        return in.readBoolean() ? Optional.of(readInstant(in)) : Optional.empty();
+    }
+}
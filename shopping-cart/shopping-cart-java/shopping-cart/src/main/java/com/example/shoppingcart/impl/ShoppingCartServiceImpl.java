@@ -2,23 +2,38 @@ package com.example.shoppingcart.impl;
 
 import akka.Done;
 import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.Entity;
 import akka.cluster.sharding.typed.javadsl.EntityRef;
 import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
 import com.example.shoppingcart.api.*;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.typesafe.config.Config;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.transport.BadRequest;
 import com.lightbend.lagom.javadsl.api.transport.NotFound;
+import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
 import com.lightbend.lagom.javadsl.broker.TopicProducer;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.lightbend.lagom.javadsl.server.HeaderServiceCall;
+import org.pcollections.TreePVector;
 
 import javax.inject.Inject;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Implementation of the {@link ShoppingCartService}.
@@ -29,23 +44,87 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
 
     private final ReportRepository reportRepository;
 
+    private final ReportCache reportCache;
+
+    private final CartStatisticsRepository statisticsRepository;
+
+    private final OpenCartItemRepository openCartItemRepository;
+
     private final ClusterSharding clusterSharing;
 
+    private final SingleFlight<String, ShoppingCartEntity.Summary> getCoalescing;
+
+    private final CartChangeFeed changeFeed;
+
+    private final akka.actor.typed.ActorSystem<Void> typedSystem;
+
+    private final int popularItemsTopK;
+
+    private final Duration popularItemsAskTimeout;
+
+    private final IdempotencyKeys idempotencyKeys;
+
+    private final EventTagMigration tagMigration;
+
+    private final Materializer materializer;
+
+    private final int batchGetParallelism;
+
+    private final int batchGetMaxIds;
+
+    private final int reportPageDefaultSize;
+
+    private final int reportPageMaxSize;
+
+    private final Duration statisticsMaxRange;
+
     @Inject
     public ShoppingCartServiceImpl(ClusterSharding clusterSharing,
                                    PersistentEntityRegistry persistentEntityRegistry,
-                                   ReportRepository reportRepository) {
+                                   ReportRepository reportRepository,
+                                   ReportCache reportCache,
+                                   CartStatisticsRepository statisticsRepository,
+                                   OpenCartItemRepository openCartItemRepository,
+                                   CartActivityRepository cartActivityRepository,
+                                   EventTagMigration tagMigration,
+                                   Config config,
+                                   ActorSystem system,
+                                   Materializer materializer) {
         this.clusterSharing = clusterSharing;
         this.persistentEntityRegistry = persistentEntityRegistry;
         this.reportRepository = reportRepository;
+        this.reportCache = reportCache;
+        this.statisticsRepository = statisticsRepository;
+        this.openCartItemRepository = openCartItemRepository;
+        this.tagMigration = tagMigration;
+        this.materializer = materializer;
+
+        this.typedSystem = Adapter.toTyped(system);
+        ShoppingCartMetrics metrics = ShoppingCartMetrics.get(typedSystem);
+        SnapshotPolicy snapshotPolicy = SnapshotPolicy.fromConfig(config);
+        Passivation passivation = Passivation.fromConfig(config, metrics);
+        int groupCommitMaxCommands = config.getInt("shopping-cart.group-commit.max-commands");
+        this.getCoalescing = SingleFlight.fromConfig(config, "shopping-cart.get-coalescing", metrics, "get.coalescing");
+        this.changeFeed = CartChangeFeed.start(system, config);
+        ActorRef<PopularItems.Command> popularItems = PopularItems.start(system, config);
+        this.popularItemsTopK = config.getInt("shopping-cart.popular-items.top-k");
+        this.popularItemsAskTimeout = config.getDuration("shopping-cart.popular-items.ask-timeout");
+        this.idempotencyKeys = IdempotencyKeys.fromConfig(config);
+        this.batchGetParallelism = config.getInt("shopping-cart.batch-get.parallelism");
+        this.batchGetMaxIds = config.getInt("shopping-cart.batch-get.max-ids");
+        this.reportPageDefaultSize = config.getInt("shopping-cart.report.page.default-size");
+        this.reportPageMaxSize = config.getInt("shopping-cart.report.page.max-size");
+        this.statisticsMaxRange = config.getDuration("shopping-cart.statistics.max-range");
 
         // register entity on shard
         this.clusterSharing.init(
                 Entity.of(
                         ShoppingCartEntity.ENTITY_TYPE_KEY,
-                        ShoppingCartEntity::create
+                        entityContext -> ShoppingCartEntity.create(entityContext, snapshotPolicy, passivation, changeFeed, popularItems,
+                                groupCommitMaxCommands)
                 )
         );
+        CartExpiry.start(system, clusterSharing, cartActivityRepository, config, materializer);
     }
 
     private EntityRef<ShoppingCartEntity.Command> entityRef(String id) {
@@ -56,71 +135,231 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
 
     @Override
     public ServiceCall<NotUsed, ShoppingCartView> get(String id) {
-        return request ->
-                entityRef(id)
-                        .ask(ShoppingCartEntity.Get::new, askTimeout)
-                        .thenApply(summary -> asShoppingCartView(id, summary));
+        // concurrent reads of the same cart share a single ask
+        return HeaderServiceCall.of((requestHeader, request) ->
+                getCoalescing
+                        .load(id, () -> entityRef(id).ask(ShoppingCartEntity.Get::new, askTimeout))
+                        .thenApply(summary -> {
+                            if (summary.getSequenceNr() == ShoppingCartEntity.Summary.UNKNOWN_SEQUENCE_NR) {
+                                return Pair.create(ResponseHeader.OK, asShoppingCartView(id, summary));
+                            }
+                            String etag = "\"" + summary.getSequenceNr() + "\"";
+                            // no-cache lets an edge cache keep the view as long as it revalidates it with the ETag
+                            ResponseHeader responseHeader = ResponseHeader.OK
+                                    .withHeader("ETag", etag)
+                                    .withHeader("Cache-Control", "no-cache");
+                            if (requestHeader.getHeader("If-None-Match").map(ifNoneMatch -> matches(ifNoneMatch, etag)).orElse(false)) {
+                                // the body of a 304 is never sent, so the items are not even converted
+                                return Pair.create(responseHeader.withStatus(304),
+                                        new ShoppingCartView(id, Collections.emptyList(), Optional.empty()));
+                            }
+                            return Pair.create(responseHeader, asShoppingCartView(id, summary));
+                        }));
+    }
+
+    @Override
+    public ServiceCall<List<String>, List<ShoppingCartLookup>> batchGet() {
+        return ids -> {
+            if (ids.size() > batchGetMaxIds) {
+                throw new BadRequest("At most " + batchGetMaxIds + " shopping carts can be read at once");
+            }
+            // the asks of different carts are pipelined by the sharding layer, a failed one doesn't fail the others
+            return Source.from(ids)
+                    .mapAsync(batchGetParallelism, id ->
+                            getCoalescing
+                                    .load(id, () -> entityRef(id).ask(ShoppingCartEntity.Get::new, askTimeout))
+                                    .handle((summary, error) -> error == null
+                                            ? ShoppingCartLookup.found(asShoppingCartView(id, summary))
+                                            : ShoppingCartLookup.failed(id, describe(error))))
+                    .runWith(Sink.seq(), materializer);
+        };
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<ShoppingCartView, NotUsed>> changes(String id) {
+        // the cart is asked directly rather than through the coalescing, which could join an ask sent before the
+        // subscription
+        return request -> changeFeed.follow(id,
+                () -> entityRef(id).<ShoppingCartEntity.Summary>ask(ShoppingCartEntity.Get::new, askTimeout), materializer)
+                .thenApply(changes -> changes.map(summary -> asShoppingCartView(id, summary)));
+    }
+
+    /**
+     * Whether the value of an If-None-Match header matches the given entity tag, with the weak comparison.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public ServiceCall<NotUsed, ShoppingCartReportView> getReport(String id) {
-        return request -> reportRepository.findById(id).thenApply(report -> {
+        return request -> reportCache.findById(id).thenApply(report -> {
             if (report != null)
-                return new ShoppingCartReportView(id, report.getCreationDate(), report.getCheckoutDate());
+                return report;
             else
                 throw new NotFound("Couldn't find a shopping cart report for '" + id + "'");
         });
     }
 
+    @Override
+    public ServiceCall<NotUsed, ShoppingCartReportPage> findReports(String by, Instant from, Instant to, Optional<String> after,
+                                                                    Optional<Integer> limit) {
+        return request -> {
+            ReportRepository.DateField field;
+            if (by.equals("creation")) {
+                field = ReportRepository.DateField.CREATION;
+            } else if (by.equals("checkout")) {
+                field = ReportRepository.DateField.CHECKOUT;
+            } else {
+                throw new BadRequest("Reports can only be listed by creation or checkout, not by " + by);
+            }
+            int pageSize = limit.orElse(reportPageDefaultSize);
+            if (pageSize <= 0 || pageSize > reportPageMaxSize) {
+                throw new BadRequest("The limit must be between 1 and " + reportPageMaxSize);
+            }
+
+            // one more report than the page size tells whether there is a next page
+            return reportRepository.findByDate(field, from, to, after.map(ReportCursor::decode), pageSize + 1).thenApply(reports -> {
+                List<ShoppingCartReport> page = reports.subList(0, Math.min(pageSize, reports.size()));
+                List<ShoppingCartReportView> views = new ArrayList<>(page.size());
+                for (ShoppingCartReport report : page) {
+                    views.add(new ShoppingCartReportView(report.getId(), report.getCreationDate(), report.getCheckoutDate()));
+                }
+                Optional<String> next = Optional.empty();
+                if (reports.size() > pageSize) {
+                    ShoppingCartReport last = page.get(page.size() - 1);
+                    Instant date = field == ReportRepository.DateField.CREATION ? last.getCreationDate() : last.getCheckoutDate();
+                    next = Optional.of(new ReportCursor(date, last.getId()).encode());
+                }
+                return new ShoppingCartReportPage(views, next);
+            });
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, List<CartStatisticsView>> getStatistics(Instant from, Instant to) {
+        return request -> {
+            if (!from.isBefore(to) || Duration.between(from, to).compareTo(statisticsMaxRange) > 0) {
+                throw new BadRequest("The time range must not be empty nor longer than " + statisticsMaxRange);
+            }
+            return statisticsRepository.findByMinute(from, to).thenApply(buckets -> {
+                List<CartStatisticsView> views = new ArrayList<>(buckets.size());
+                for (CartStatisticsBucket bucket : buckets) {
+                    Optional<Long> averageTimeToCheckout = bucket.getTimedCheckouts() == 0 ? Optional.empty()
+                            : Optional.of(bucket.getTimeToCheckoutMillis() / bucket.getTimedCheckouts());
+                    views.add(new CartStatisticsView(bucket.getMinute(), bucket.getCreated(), bucket.getCheckedOut(),
+                            averageTimeToCheckout));
+                }
+                return views;
+            });
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, List<PopularItemView>> getPopularItems(Optional<Integer> limit) {
+        return request -> {
+            int count = limit.orElse(10);
+            if (count <= 0 || count > popularItemsTopK) {
+                throw new BadRequest("The limit must be between 1 and " + popularItemsTopK);
+            }
+            return PopularItems.topOfCluster(typedSystem, count, popularItemsAskTimeout);
+        };
+    }
+
+    @Override
+    public ServiceCall<NotUsed, Source<String, NotUsed>> getOpenCartsContaining(String itemId) {
+        return request -> CompletableFuture.completedFuture(openCartItemRepository.findCartIds(itemId));
+    }
+
+    @Override
+    public ServiceCall<List<String>, Source<ShoppingCartReportView, NotUsed>> getReports() {
+        // read straight from the database, reconciliation jobs would only evict the reports that are read often
+        return ids -> CompletableFuture.completedFuture(
+                reportRepository.findByIds(ids)
+                        .map(report -> new ShoppingCartReportView(report.getId(), report.getCreationDate(), report.getCheckoutDate())));
+    }
+
     @Override
     public ServiceCall<ShoppingCartItem, Done> addItem(String cartId) {
-        return item ->
+        return HeaderServiceCall.of((requestHeader, item) ->
+                entityRef(cartId)
+                .<ShoppingCartEntity.Confirmation>ask(replyTo ->
+                        new ShoppingCartEntity.AddItem(item.getItemId(), item.getQuantity(), idempotencyKeys.of(requestHeader), replyTo), askTimeout)
+                .thenApply(this::handleConfirmation)
+                .thenApply(accepted -> Pair.create(ResponseHeader.OK, Done.getInstance())));
+    }
+
+    @Override
+    public ServiceCall<List<ShoppingCartItem>, ShoppingCartView> addItems(String cartId) {
+        return HeaderServiceCall.of((requestHeader, items) ->
                 entityRef(cartId)
                 .<ShoppingCartEntity.Confirmation>ask(replyTo ->
-                        new ShoppingCartEntity.AddItem(item.getItemId(), item.getQuantity(), replyTo), askTimeout)
+                        new ShoppingCartEntity.AddItems(TreePVector.from(items), idempotencyKeys.of(requestHeader), replyTo), askTimeout)
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> Done.getInstance());
+                .thenApply(accepted -> Pair.create(ResponseHeader.OK, asShoppingCartView(cartId, accepted.getSummary()))));
     }
 
     @Override
     public ServiceCall<NotUsed, ShoppingCartView> removeItem(String cartId, String itemId) {
-        return request ->
+        return HeaderServiceCall.of((requestHeader, request) ->
             entityRef(cartId)
                 .<ShoppingCartEntity.Confirmation>ask(replyTo ->
-                    new ShoppingCartEntity.RemoveItem(itemId, replyTo), askTimeout)
+                    new ShoppingCartEntity.RemoveItem(itemId, idempotencyKeys.of(requestHeader), replyTo), askTimeout)
                     .thenApply(this::handleConfirmation)
-                    .thenApply(accepted -> asShoppingCartView(cartId, accepted.getSummary()));
+                    .thenApply(accepted -> Pair.create(ResponseHeader.OK, asShoppingCartView(cartId, accepted.getSummary()))));
     }
 
     @Override
     public ServiceCall<Quantity, ShoppingCartView> adjustItemQuantity(String cartId, String itemId) {
-        return quantity ->
+        return HeaderServiceCall.of((requestHeader, quantity) ->
             entityRef(cartId)
                 .<ShoppingCartEntity.Confirmation>ask(replyTo ->
-                        new ShoppingCartEntity.AdjustItemQuantity(itemId, quantity.getQuantity(), replyTo), askTimeout)
+                        new ShoppingCartEntity.AdjustItemQuantity(itemId, quantity.getQuantity(), idempotencyKeys.of(requestHeader), replyTo), askTimeout)
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> asShoppingCartView(cartId, accepted.getSummary()));
+                .thenApply(accepted -> Pair.create(ResponseHeader.OK, asShoppingCartView(cartId, accepted.getSummary()))));
     }
 
     @Override
     public ServiceCall<NotUsed, Done> checkout(String cartId) {
-        return request -> entityRef(cartId).ask(ShoppingCartEntity.Checkout::new, askTimeout)
+        return HeaderServiceCall.of((requestHeader, request) ->
+                entityRef(cartId)
+                .<ShoppingCartEntity.Confirmation>ask(replyTo ->
+                        new ShoppingCartEntity.Checkout(idempotencyKeys.of(requestHeader), replyTo), askTimeout)
                 .thenApply(this::handleConfirmation)
-                .thenApply(accepted -> Done.getInstance());
+                .thenApply(accepted -> Pair.create(ResponseHeader.OK, Done.getInstance())));
     }
 
     @Override
     public Topic<ShoppingCartView> shoppingCartTopic() {
         // We want to publish all the shards of the shopping cart events
-        return TopicProducer.taggedStreamWithOffset(ShoppingCartEntity.Event.TAG.allTags(), (tag, offset) ->
+        return TopicProducer.taggedStreamWithOffset(tagMigration.tags().allTags(), (tag, offset) ->
                 // Load the event stream for the passed in shard tag
                 persistentEntityRegistry.eventStream(tag, offset)
+                        // While the tags are migrated, the events are published through one of their two tags
+                        .via(tagMigration.filter("topicProducer-" + TOPIC_NAME, tag))
                         // We only want to publish checkout events
                         .filter(pair -> pair.first() instanceof ShoppingCartEntity.CheckedOut)
                         // Now we want to convert from the persisted event to the published event.
-                        // To do this, we need to load the current shopping cart state.
+                        // The event carries the items of the cart, except for events persisted before
+                        // it did, for which we need to load the current shopping cart state.
                         .mapAsync(4, eventAndOffset -> {
                             ShoppingCartEntity.CheckedOut checkedOut = (ShoppingCartEntity.CheckedOut) eventAndOffset.first();
+                            if (checkedOut.getItems().isPresent()) {
+                                ShoppingCartView view = asShoppingCartView(checkedOut.getShoppingCartId(),
+                                        checkedOut.getItems().get(), Optional.of(checkedOut.getEventTime()));
+                                return CompletableFuture.completedFuture(Pair.create(view, eventAndOffset.second()));
+                            }
                             return entityRef(checkedOut.getShoppingCartId()).ask(ShoppingCartEntity.Get::new, askTimeout)
                                     .thenApply(summary -> Pair.create(asShoppingCartView(checkedOut.getShoppingCartId(), summary),
                                             eventAndOffset.second()));
@@ -144,11 +383,15 @@ public class ShoppingCartServiceImpl implements ShoppingCartService {
     }
 
     private ShoppingCartView asShoppingCartView(String id, ShoppingCartEntity.Summary summary) {
+        return asShoppingCartView(id, summary.getItems(), summary.getCheckoutDate());
+    }
+
+    private ShoppingCartView asShoppingCartView(String id, Map<String, Integer> cartItems, Optional<Instant> checkoutDate) {
         List<ShoppingCartItem> items = new ArrayList<>();
-        for (Map.Entry<String, Integer> item : summary.getItems().entrySet()) {
+        for (Map.Entry<String, Integer> item : cartItems.entrySet()) {
             items.add(new ShoppingCartItem(item.getKey(), item.getValue()));
         }
-        return new ShoppingCartView(id, items, summary.getCheckoutDate());
+        return new ShoppingCartView(id, items, checkoutDate);
     }
 
 }
@@ -0,0 +1,92 @@
+package com.example.shoppingcart.impl;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key, so that callers asking for a key that is already being loaded share
+ * the result of that load instead of starting another one.
+ * <p>
+ * Only loads that are in flight are shared, a load started after the previous one completed always sees the latest
+ * value. At most {@code max-in-flight} keys are tracked, loads of other keys are not coalesced when that many are
+ * already in flight.
+ * <p>
+ * The {@code <metrics-prefix>.hits} counter is incremented for every caller that joins a load in flight,
+ * {@code <metrics-prefix>.misses} for every load that is started and {@code <metrics-prefix>.bypassed} for every
+ * load that is not coalesced because too many loads are in flight.
+ */
+final class SingleFlight<K, V> {
+
+    private final int maxInFlight;
+    private final ShoppingCartMetrics metrics;
+    private final String metricsPrefix;
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    SingleFlight(int maxInFlight, ShoppingCartMetrics metrics, String metricsPrefix) {
+        this.maxInFlight = maxInFlight;
+        this.metrics = metrics;
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    /**
+     * Reads the settings from the given section of the config, for instance {@code shopping-cart.get-coalescing}.
+     */
+    static <K, V> SingleFlight<K, V> fromConfig(Config config, String path, ShoppingCartMetrics metrics, String metricsPrefix) {
+        return new SingleFlight<>(config.getConfig(path).getInt("max-in-flight"), metrics, metricsPrefix);
+    }
+
+    /**
+     * Returns the result of the load of the given key that is in flight, or starts a new one.
+     */
+    CompletionStage<V> load(K key, Supplier<CompletionStage<V>> loader) {
+        CompletableFuture<V> existing = inFlight.get(key);
+        if (existing != null) {
+            metrics.increment(metricsPrefix + ".hits");
+            return existing;
+        } else if (inFlight.size() >= maxInFlight) {
+            metrics.increment(metricsPrefix + ".bypassed");
+            return loader.get();
+        }
+
+        CompletableFuture<V> result = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            metrics.increment(metricsPrefix + ".hits");
+            return existing;
+        }
+
+        metrics.increment(metricsPrefix + ".misses");
+        CompletionStage<V> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException e) {
+            loading = failed(e);
+        }
+        loading.whenComplete((value, error) -> {
+            // removed before completing, so that callers arriving from now on start a fresh load
+            inFlight.remove(key, result);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> CompletionStage<V> failed(Throwable error) {
+        CompletableFuture<V> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.shoppingcart.impl;
+
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+
+/**
+ * Decides when a {@link ShoppingCartEntity} takes a snapshot.
+ * <p>
+ * Every cart is snapshotted every {@code every-n-events} events, which also deletes snapshots older than the last
+ * {@code keep-n-snapshots}. Carts that are expensive to recover, because their serialized state is larger than
+ * {@code max-state-size} or because their last recovery took longer than {@code max-recovery-time}, are
+ * additionally snapshotted every {@code frequent-every-n-events} events. This way tiny carts are rarely
+ * snapshotted, and large or slow carts are recovered quickly after a rebalance or a restart.
+ */
+final class SnapshotPolicy {
+
+    private final int everyNEvents;
+    private final int keepNSnapshots;
+    private final int frequentEveryNEvents;
+    private final long maxStateSize;
+    private final Duration maxRecoveryTime;
+
+    SnapshotPolicy(int everyNEvents, int keepNSnapshots, int frequentEveryNEvents, long maxStateSize, Duration maxRecoveryTime) {
+        this.everyNEvents = everyNEvents;
+        this.keepNSnapshots = keepNSnapshots;
+        this.frequentEveryNEvents = frequentEveryNEvents;
+        this.maxStateSize = maxStateSize;
+        this.maxRecoveryTime = maxRecoveryTime;
+    }
+
+    /**
+     * Reads the policy from the {@code shopping-cart.snapshot} section of the given config.
+     */
+    static SnapshotPolicy fromConfig(Config config) {
+        Config snapshot = config.getConfig("shopping-cart.snapshot");
+        return new SnapshotPolicy(
+                snapshot.getInt("every-n-events"),
+                snapshot.getInt("keep-n-snapshots"),
+                snapshot.getInt("frequent-every-n-events"),
+                snapshot.getBytes("max-state-size"),
+                snapshot.getDuration("max-recovery-time"));
+    }
+
+    RetentionCriteria retentionCriteria() {
+        return everyNEvents > 0 ? RetentionCriteria.snapshotEvery(everyNEvents, keepNSnapshots) : RetentionCriteria.disabled();
+    }
+
+    /**
+     * Whether a cart that is expensive to recover should be snapshotted after the event with the given sequence number.
+     */
+    boolean isFrequentSnapshotDue(long sequenceNr) {
+        return frequentEveryNEvents > 0 && sequenceNr % frequentEveryNEvents == 0;
+    }
+
+    boolean exceedsStateSize(long serializedStateSize) {
+        return serializedStateSize > maxStateSize;
+    }
+
+    boolean exceedsRecoveryTime(Duration recoveryTime) {
+        return recoveryTime.compareTo(maxRecoveryTime) > 0;
+    }
+}
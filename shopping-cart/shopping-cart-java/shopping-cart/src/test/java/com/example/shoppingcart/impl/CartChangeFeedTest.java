@@ -0,0 +1,186 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.AbstractActor;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
+import akka.Done;
+import akka.NotUsed;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CartChangeFeedTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private final Materializer materializer = Materializer.matFromSystem(Adapter.toClassic(testKit.system()));
+
+    private final TestProbe<Object> mediator = testKit.createTestProbe();
+
+    private final CartChangeFeed changeFeed = changeFeed(16);
+
+    /**
+     * Stands for the distributed pub sub mediator, which needs a cluster, and acknowledges the subscriptions.
+     */
+    private static final class Mediator extends AbstractActor {
+        private final ActorRef<Object> probe;
+
+        Mediator(ActorRef<Object> probe) {
+            this.probe = probe;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DistributedPubSubMediator.Subscribe.class, subscribe -> {
+                        probe.tell(subscribe);
+                        getSender().tell(new DistributedPubSubMediator.SubscribeAck(subscribe), getSelf());
+                    })
+                    .matchAny(probe::tell)
+                    .build();
+        }
+    }
+
+    private CartChangeFeed changeFeed(int bufferSize) {
+        ActorRef<Object> probe = mediator.ref();
+        // a classic actor, to reply to the sender of the subscriptions
+        akka.actor.ActorRef acknowledging = ((ExtendedActorSystem) Adapter.toClassic(testKit.system()))
+                .systemActorOf(Props.create(Mediator.class, () -> new Mediator(probe)), "mediator-" + UUID.randomUUID());
+        return new CartChangeFeed(testKit::spawn, acknowledging, bufferSize, Duration.ofSeconds(3),
+                Duration.ofMillis(500));
+    }
+
+    @Test
+    public void shouldDeliverTheChangesOfTheFollowedCart() throws Exception {
+        CompletionStage<List<ShoppingCartEntity.Summary>> received =
+                changeFeed.subscribe("cart").take(2).runWith(Sink.seq(), materializer);
+        mediator.awaitAssert(() -> {
+            Assert.assertEquals(1, changeFeed.subscribers("cart"));
+            return null;
+        });
+
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("other", summary(1)));
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(1)));
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(2)));
+
+        Assert.assertEquals(Arrays.asList(summary(1), summary(2)), received.toCompletableFuture().get(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldOnlySubscribeToTheTopicOfACartWhileItIsFollowed() throws Exception {
+        Pair<CompletionStage<Done>, Source<ShoppingCartEntity.Summary, NotUsed>> first =
+                changeFeed.subscribe("cart").preMaterialize(materializer);
+        Pair<CompletionStage<Done>, Source<ShoppingCartEntity.Summary, NotUsed>> second =
+                changeFeed.subscribe("cart").preMaterialize(materializer);
+
+        DistributedPubSubMediator.Subscribe subscribe = mediator.expectMessageClass(DistributedPubSubMediator.Subscribe.class);
+        Assert.assertEquals(CartChangeFeed.topic("cart"), subscribe.topic());
+        first.first().toCompletableFuture().get(3, TimeUnit.SECONDS);
+        second.first().toCompletableFuture().get(3, TimeUnit.SECONDS);
+
+        first.second().runWith(Sink.cancelled(), materializer);
+        mediator.expectNoMessage(Duration.ofMillis(200));
+        second.second().runWith(Sink.cancelled(), materializer);
+        DistributedPubSubMediator.Unsubscribe unsubscribe = mediator.expectMessageClass(DistributedPubSubMediator.Unsubscribe.class);
+        Assert.assertEquals(CartChangeFeed.topic("cart"), unsubscribe.topic());
+    }
+
+    @Test
+    public void shouldPublishTheChangesOfACartToItsOwnTopic() {
+        changeFeed.publish("cart", summary(1));
+
+        DistributedPubSubMediator.Publish publish = mediator.expectMessageClass(DistributedPubSubMediator.Publish.class);
+        Assert.assertEquals(CartChangeFeed.topic("cart"), publish.topic());
+        Assert.assertEquals(new ShoppingCartEntity.CartChanged("cart", summary(1)), publish.msg());
+    }
+
+    @Test
+    public void shouldFollowACartFromItsCurrentStateOnceSubscribed() throws Exception {
+        // the cart is first read at 2, and then changes to 4 on another node before the subscription reaches it
+        AtomicLong sequenceNr = new AtomicLong(2);
+        CompletionStage<List<ShoppingCartEntity.Summary>> received = changeFeed
+                .follow("cart", () -> CompletableFuture.completedFuture(summary(sequenceNr.get())), materializer)
+                .thenCompose(changes -> changes.take(3).runWith(Sink.seq(), materializer));
+        mediator.expectMessageClass(DistributedPubSubMediator.Subscribe.class);
+        mediator.awaitAssert(() -> {
+            Assert.assertEquals(1, changeFeed.subscribers("cart"));
+            return null;
+        });
+
+        // already read
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(2)));
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(3)));
+        sequenceNr.set(4);
+        // older than the cart read again
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(3)));
+
+        Assert.assertEquals(Arrays.asList(summary(2), summary(3), summary(4)),
+                received.toCompletableFuture().get(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldForgetClientsThatAreGone() throws Exception {
+        CompletionStage<List<ShoppingCartEntity.Summary>> received =
+                changeFeed.subscribe("cart").take(1).runWith(Sink.seq(), materializer);
+        mediator.awaitAssert(() -> {
+            Assert.assertEquals(1, changeFeed.subscribers("cart"));
+            return null;
+        });
+
+        changeFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(1)));
+        received.toCompletableFuture().get(3, TimeUnit.SECONDS);
+
+        mediator.awaitAssert(() -> {
+            Assert.assertEquals(0, changeFeed.subscribers("cart"));
+            return null;
+        });
+    }
+
+    @Test
+    public void shouldEndTheChangesOfAClientThatFallsBehind() throws Exception {
+        CartChangeFeed smallFeed = changeFeed(2);
+        // materialized without any demand, like a client that doesn't read its changes
+        Pair<CompletionStage<Done>, Source<ShoppingCartEntity.Summary, NotUsed>> subscription =
+                smallFeed.subscribe("cart").preMaterialize(materializer);
+
+        for (int sequenceNr = 1; sequenceNr <= 100; sequenceNr++) {
+            smallFeed.deliver(new ShoppingCartEntity.CartChanged("cart", summary(sequenceNr)));
+        }
+
+        // the stream completes after the buffered changes instead of going on without the dropped ones
+        List<ShoppingCartEntity.Summary> received = subscription.second().runWith(Sink.seq(), materializer)
+                .toCompletableFuture().get(3, TimeUnit.SECONDS);
+        Assert.assertTrue(received.size() < 100);
+        for (int i = 0; i < received.size(); i++) {
+            Assert.assertEquals(summary(i + 1), received.get(i));
+        }
+        mediator.awaitAssert(() -> {
+            Assert.assertEquals(0, smallFeed.subscribers("cart"));
+            return null;
+        });
+    }
+
+    private ShoppingCartEntity.Summary summary(long sequenceNr) {
+        return new ShoppingCartEntity.Summary(CartItems.EMPTY.plus("item", (int) sequenceNr), false, Optional.empty(), sequenceNr);
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+import org.pcollections.HashTreePMap;
+import org.pcollections.PMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class CartItemsTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Test
+    public void shouldKeepItemsSortedById() {
+        CartItems items = CartItems.EMPTY.plus("c", 3).plus("a", 1).plus("b", 2);
+
+        Assert.assertEquals(new ArrayList<>(items.keySet()), Arrays.asList("a", "b", "c"));
+        Assert.assertEquals(3, items.size());
+        Assert.assertEquals(2, (int) items.get("b"));
+    }
+
+    @Test
+    public void shouldUpdateAndRemoveItemsWithoutChangingTheOriginal() {
+        CartItems items = CartItems.EMPTY.plus("a", 1).plus("b", 2);
+
+        CartItems updated = items.plus("a", 5);
+        CartItems removed = items.minus("a");
+
+        Assert.assertEquals(1, (int) items.get("a"));
+        Assert.assertEquals(5, (int) updated.get("a"));
+        Assert.assertFalse(removed.containsKey("a"));
+        Assert.assertTrue(removed.containsKey("b"));
+        Assert.assertSame(items, items.minus("unknown"));
+    }
+
+    @Test
+    public void shouldBeEqualToAnyMapWithTheSameItems() {
+        PMap<String, Integer> pmap = HashTreePMap.<String, Integer>empty().plus("a", 1).plus("b", 2);
+        CartItems items = CartItems.from(pmap);
+
+        Assert.assertEquals(pmap, items);
+        Assert.assertEquals(items, pmap);
+        Assert.assertEquals(pmap.hashCode(), items.hashCode());
+    }
+
+    @Test
+    public void shouldReadSnapshotsWrittenWithThePersistentMap() {
+        // This is what a ShoppingCart snapshot looked like when the items were kept in a HashTreePMap
+        String json = "{\"items\":{\"a\":1,\"b\":2},\"checkoutDate\":null}";
+
+        Serialization serialization = SerializationExtension.get(Adapter.toClassic(testKit.system()));
+        ShoppingCartEntity.ShoppingCart cart = ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1).updateItem("b", 2);
+        Serializer serializer = serialization.findSerializerFor(cart);
+        String manifest = Serializers.manifestFor(serializer, cart);
+
+        ShoppingCartEntity.ShoppingCart restored = (ShoppingCartEntity.ShoppingCart) serialization
+                .deserialize(json.getBytes(StandardCharsets.UTF_8), serializer.identifier(), manifest)
+                .get();
+
+        Assert.assertEquals(cart, restored);
+        // the items are still written the same way, followed by the fields added since
+        Assert.assertEquals("{\"items\":{\"a\":1,\"b\":2},\"checkoutDate\":null,\"lastActivity\":null,\"expiryDate\":null,\"recentKeys\":[]}",
+                new String(serialization.serialize(cart).get(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldUseLessMemoryThanThePersistentMap() {
+        for (int size : new int[]{1, 10, 100, 1000}) {
+            PMap<String, Integer> pmap = HashTreePMap.empty();
+            CartItems items = CartItems.EMPTY;
+            List<String> itemIds = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                String itemId = ("item-" + i).intern();
+                itemIds.add(itemId);
+                pmap = pmap.plus(itemId, i);
+                items = items.plus(itemId, i);
+            }
+
+            // Item ids are shared by every cart, so they are not part of the footprint of a single cart
+            long itemIdsSize = GraphLayout.parseInstance(itemIds.toArray()).totalSize();
+            long pmapSize = GraphLayout.parseInstance(pmap).totalSize() - itemIdsSize - boxedSize(pmap);
+            long itemsSize = GraphLayout.parseInstance(items).totalSize() - itemIdsSize;
+
+            logger.info("{} items: HashTreePMap {} bytes, CartItems {} bytes", size, pmapSize, itemsSize);
+            Assert.assertTrue("CartItems should be smaller than HashTreePMap for " + size + " items", itemsSize < pmapSize);
+        }
+    }
+
+    /**
+     * Small Integers come from the Integer cache, so they don't count towards the map footprint.
+     */
+    private long boxedSize(Map<String, Integer> map) {
+        return map.values().stream()
+                .filter(quantity -> quantity >= -128 && quantity <= 127)
+                .mapToLong(quantity -> GraphLayout.parseInstance(quantity).totalSize())
+                .sum();
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.Offset;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+
+public class EventTagsTest {
+
+    private final AggregateEventShards<ShoppingCartEntity.Event> previous =
+            AggregateEventTag.sharded(ShoppingCartEntity.Event.class, "previous", 10);
+    private final AggregateEventShards<ShoppingCartEntity.Event> current =
+            AggregateEventTag.sharded(ShoppingCartEntity.Event.class, "current", 20);
+
+    @Test
+    public void shouldTagTheEventsWithTheDefaultTagByDefault() {
+        EventTags tags = EventTags.fromConfig(ConfigFactory.load());
+
+        Assert.assertEquals(ShoppingCartEntity.Event.TAG.allTags(), tags.allTags());
+        Assert.assertEquals(Collections.singleton(ShoppingCartEntity.Event.TAG.forEntityId("123").tag()), tags.tagsFor("123"));
+        Assert.assertTrue(tags.handles(ShoppingCartEntity.Event.TAG.forEntityId("123"), Offset.sequence(1)));
+    }
+
+    @Test
+    public void shouldTagTheEventsWithBothTagsWhileMigrating() {
+        EventTags tags = new EventTags(current, Optional.of(previous), Optional.empty());
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(current.forEntityId("123").tag(), previous.forEntityId("123").tag())),
+                tags.tagsFor("123"));
+    }
+
+    @Test
+    public void shouldOnlyProcessThePreviousTagsUntilTheCutOver() {
+        EventTags tags = new EventTags(current, Optional.of(previous), Optional.empty());
+
+        Assert.assertEquals(previous.allTags(), tags.allTags());
+        Assert.assertTrue(tags.handles(previous.forEntityId("123"), Offset.sequence(1000)));
+    }
+
+    @Test
+    public void shouldSplitTheEventsAtTheCutOverOffset() {
+        EventTags tags = new EventTags(current, Optional.of(previous), Optional.of(100L));
+
+        Assert.assertEquals(30, tags.allTags().size());
+        Assert.assertTrue(tags.handles(previous.forEntityId("123"), Offset.sequence(100)));
+        Assert.assertFalse(tags.handles(previous.forEntityId("123"), Offset.sequence(101)));
+        Assert.assertFalse(tags.handles(current.forEntityId("123"), Offset.sequence(100)));
+        Assert.assertTrue(tags.handles(current.forEntityId("123"), Offset.sequence(101)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNewTagsNamedLikeThePreviousOnes() {
+        new EventTags(AggregateEventTag.sharded(ShoppingCartEntity.Event.class, "previous", 20), Optional.of(previous),
+                Optional.empty());
+    }
+}
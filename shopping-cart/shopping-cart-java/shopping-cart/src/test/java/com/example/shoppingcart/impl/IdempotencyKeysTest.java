@@ -0,0 +1,30 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.api.transport.RequestHeader;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Optional;
+
+public class IdempotencyKeysTest {
+
+    private final RequestHeader retry = RequestHeader.DEFAULT.withHeader("Idempotency-Key", " 7c1e ");
+
+    @Test
+    public void shouldIgnoreTheKeysWithTheShippedWriteVersion() {
+        IdempotencyKeys keys = IdempotencyKeys.fromConfig(ConfigFactory.load());
+
+        Assert.assertEquals(Optional.empty(), keys.of(retry));
+    }
+
+    @Test
+    public void shouldReadTheKeysOnceTheWriteVersionKeepsThem() {
+        IdempotencyKeys keys = IdempotencyKeys.fromConfig(
+                ConfigFactory.parseString("shopping-cart.serialization.write-version = 5").withFallback(ConfigFactory.load()));
+
+        Assert.assertEquals(Optional.of("7c1e"), keys.of(retry));
+        Assert.assertEquals(Optional.empty(), keys.of(RequestHeader.DEFAULT.withHeader("Idempotency-Key", " ")));
+        Assert.assertEquals(Optional.empty(), keys.of(RequestHeader.DEFAULT));
+    }
+}
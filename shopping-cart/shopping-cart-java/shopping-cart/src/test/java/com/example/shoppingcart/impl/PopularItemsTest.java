@@ -0,0 +1,117 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.japi.Pair;
+import com.example.shoppingcart.api.PopularItemView;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PopularItemsTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private Instant now = Instant.parse("2020-03-01T12:00:00Z");
+
+    private final Clock clock = new Clock() {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    };
+
+    private final PopularItems popularItems = new PopularItems(Duration.ofMinutes(10), 10, 2, 256, 4, clock);
+
+    @Test
+    public void shouldListTheMostCountedItemsFirst() {
+        record("abc", 1);
+        record("def", 3);
+        record("ghi", 2);
+
+        Assert.assertEquals(Arrays.asList(Pair.create("def", 3L), Pair.create("ghi", 2L)), popularItems.top(2));
+    }
+
+    @Test
+    public void shouldSumTheCountsOfTheWholeWindow() {
+        record("abc", 2);
+        now = now.plus(Duration.ofMinutes(5));
+        record("abc", 1);
+
+        Assert.assertEquals(Collections.singletonList(Pair.create("abc", 3L)), popularItems.top(10));
+    }
+
+    @Test
+    public void shouldForgetTheItemsThatLeftTheWindow() {
+        record("abc", 2);
+        now = now.plus(Duration.ofMinutes(10));
+        record("def", 1);
+
+        Assert.assertEquals(Collections.singletonList(Pair.create("def", 1L)), popularItems.top(10));
+    }
+
+    @Test
+    public void shouldIgnoreEventsOlderThanTheWindow() {
+        popularItems.record("abc", now.minus(Duration.ofMinutes(11)));
+
+        Assert.assertTrue(popularItems.top(10).isEmpty());
+    }
+
+    @Test
+    public void shouldSumTheCountsOfTheNodes() {
+        PopularItems otherNode = new PopularItems(Duration.ofMinutes(10), 10, 2, 256, 4, clock);
+        ActorRef<PopularItems.Command> first = testKit.spawn(popularItems.behavior());
+        ActorRef<PopularItems.Command> second = testKit.spawn(otherNode.behavior());
+        first.tell(new PopularItems.Count(Arrays.asList(itemAdded("abc"), itemAdded("def"), itemAdded("def"))));
+        second.tell(new PopularItems.Count(Arrays.asList(itemAdded("abc"), itemAdded("abc"), itemAdded("ghi"))));
+
+        TestProbe<Object> probe = testKit.createTestProbe();
+        probe.awaitAssert(() -> {
+            // bounded by the timeout of the asks
+            List<PopularItemView> top = PopularItems.topOfCluster(testKit.system(), 2, Duration.ofSeconds(1))
+                    .toCompletableFuture().join();
+            Assert.assertEquals(Arrays.asList(new PopularItemView("abc", 3), new PopularItemView("def", 2)), top);
+            return null;
+        });
+    }
+
+    @Test
+    public void shouldMergeTheTopItemsOfTheNodes() {
+        List<PopularItemView> merged = PopularItems.merge(Arrays.asList(
+                Arrays.asList(new PopularItemView("abc", 5), new PopularItemView("def", 1)),
+                Arrays.asList(new PopularItemView("ghi", 4), new PopularItemView("def", 4))), 2);
+
+        Assert.assertEquals(Arrays.asList(new PopularItemView("abc", 5), new PopularItemView("def", 5)), merged);
+    }
+
+    private ShoppingCartEntity.ItemAdded itemAdded(String itemId) {
+        return new ShoppingCartEntity.ItemAdded("cart", itemId, 1, now);
+    }
+
+    private void record(String itemId, int times) {
+        for (int i = 0; i < times; i++) {
+            popularItems.record(itemId, now);
+        }
+    }
+}
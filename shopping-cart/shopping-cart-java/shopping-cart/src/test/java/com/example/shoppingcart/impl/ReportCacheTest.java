@@ -0,0 +1,130 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import com.example.shoppingcart.api.ShoppingCartReportView;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReportCacheTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private final ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+
+    private final Config cacheConfig = ConfigFactory.parseString("max-size = 2, time-to-live = 1 minute");
+
+    // stands for the database
+    private final Map<String, ShoppingCartReport> database = new HashMap<>();
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final ReportCache reportCache = new ReportCache(cartId -> {
+        reads.incrementAndGet();
+        return CompletableFuture.completedFuture(database.get(cartId));
+    }, cacheConfig, metrics);
+
+    private final Instant creationDate = Instant.parse("2020-03-01T10:15:30Z");
+
+    @Test
+    public void shouldReadAReportOnlyOnce() throws Exception {
+        store("cart", null);
+        long hitsBefore = metrics.count("report-cache.hits");
+
+        ShoppingCartReportView first = reportCache.findById("cart").toCompletableFuture().get();
+        ShoppingCartReportView second = reportCache.findById("cart").toCompletableFuture().get();
+
+        Assert.assertEquals(new ShoppingCartReportView("cart", creationDate, null), first);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(hitsBefore + 1, metrics.count("report-cache.hits"));
+    }
+
+    @Test
+    public void shouldReadAReportAgainOnceInvalidated() throws Exception {
+        store("cart", null);
+        reportCache.findById("cart").toCompletableFuture().get();
+
+        Instant checkoutDate = creationDate.plusSeconds(30);
+        store("cart", checkoutDate);
+        reportCache.invalidate("cart");
+
+        Assert.assertEquals(new ShoppingCartReportView("cart", creationDate, checkoutDate),
+                reportCache.findById("cart").toCompletableFuture().get());
+        Assert.assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void shouldNotCacheAReportReadBeforeAnInvalidation() throws Exception {
+        CompletableFuture<ShoppingCartReport> reading = new CompletableFuture<>();
+        ReportCache cache = new ReportCache(cartId -> {
+            reads.incrementAndGet();
+            return reads.get() == 1 ? reading : CompletableFuture.completedFuture(database.get(cartId));
+        }, cacheConfig, metrics);
+        store("cart", null);
+        CompletionStage<ShoppingCartReportView> stale = cache.findById("cart");
+
+        Instant checkoutDate = creationDate.plusSeconds(30);
+        cache.invalidate("cart");
+        reading.complete(database.get("cart"));
+        store("cart", checkoutDate);
+
+        Assert.assertEquals(new ShoppingCartReportView("cart", creationDate, null), stale.toCompletableFuture().get());
+        Assert.assertEquals(new ShoppingCartReportView("cart", creationDate, checkoutDate),
+                cache.findById("cart").toCompletableFuture().get());
+    }
+
+    @Test
+    public void shouldCacheAReportReadBeforeAnInvalidationOfAnotherCart() throws Exception {
+        CompletableFuture<ShoppingCartReport> reading = new CompletableFuture<>();
+        ReportCache cache = new ReportCache(cartId -> {
+            reads.incrementAndGet();
+            return reading;
+        }, cacheConfig, metrics);
+        store("cart", null);
+        CompletionStage<ShoppingCartReportView> read = cache.findById("cart");
+
+        cache.invalidate("other");
+        reading.complete(database.get("cart"));
+
+        Assert.assertEquals(new ShoppingCartReportView("cart", creationDate, null), read.toCompletableFuture().get());
+        Assert.assertEquals(read.toCompletableFuture().get(), cache.findById("cart").toCompletableFuture().get());
+        Assert.assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void shouldNotCacheMissingReports() throws Exception {
+        Assert.assertNull(reportCache.findById("cart").toCompletableFuture().get());
+        store("cart", null);
+
+        Assert.assertNotNull(reportCache.findById("cart").toCompletableFuture().get());
+    }
+
+    @Test
+    public void shouldEvictReportsBeyondTheMaximumSize() throws Exception {
+        long evictionsBefore = metrics.count("report-cache.evictions");
+        for (String cartId : new String[]{"first", "second", "third"}) {
+            store(cartId, null);
+            reportCache.findById(cartId).toCompletableFuture().get();
+        }
+
+        Assert.assertEquals(evictionsBefore + 1, metrics.count("report-cache.evictions"));
+    }
+
+    private void store(String cartId, Instant checkoutDate) {
+        ShoppingCartReport report = new ShoppingCartReport();
+        report.setId(cartId);
+        report.setCreationDate(creationDate);
+        report.setCheckoutDate(checkoutDate);
+        database.put(cartId, report);
+    }
+}
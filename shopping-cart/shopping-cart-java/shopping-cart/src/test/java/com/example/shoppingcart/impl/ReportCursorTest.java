@@ -0,0 +1,22 @@
+package com.example.shoppingcart.impl;
+
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+
+public class ReportCursorTest {
+
+    @Test
+    public void shouldDecodeAnEncodedCursor() {
+        ReportCursor cursor = new ReportCursor(Instant.parse("2020-03-01T12:34:56.789Z"), "cart with spaces");
+
+        Assert.assertEquals(cursor, ReportCursor.decode(cursor.encode()));
+    }
+
+    @Test(expected = BadRequest.class)
+    public void shouldRejectAnInvalidCursor() {
+        ReportCursor.decode("not a cursor");
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.shoppingcart.impl;
 
+import akka.stream.javadsl.Sink;
 import com.lightbend.lagom.javadsl.persistence.Offset;
 import com.lightbend.lagom.javadsl.persistence.ReadSide;
 import com.lightbend.lagom.javadsl.testkit.ReadSideTestDriver;
@@ -10,10 +11,17 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.bind;
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
@@ -90,13 +98,139 @@ public class ShoppingCartReportTest {
         feed(new ShoppingCartEntity.ItemAdded(cartId, "abc", 1, eventTime));
 
         Instant checkeoutTime = Instant.now().plusSeconds(30);
-        feed(new ShoppingCartEntity.CheckedOut(cartId, checkeoutTime));
+        feed(new ShoppingCartEntity.CheckedOut(cartId, Optional.of(Collections.singletonMap("abc", 1)), checkeoutTime));
 
         ShoppingCartReport report = Await.result(reportRepository.findById(cartId));
         assertEquals("creation date is same as event time", eventTime, report.getCreationDate());
         assertEquals("checkout date is same as checkout date", checkeoutTime, report.getCheckoutDate());
     }
 
+    @Test
+    public void findSeveralReportsAtOnce() throws InterruptedException, ExecutionException, TimeoutException {
+        String firstCartId = UUID.randomUUID().toString();
+        String secondCartId = UUID.randomUUID().toString();
+        Instant eventTime = Instant.now();
+        feed(new ShoppingCartEntity.ItemAdded(firstCartId, "abc", 1, eventTime));
+        feed(new ShoppingCartEntity.ItemAdded(secondCartId, "abc", 1, eventTime));
+
+        List<ShoppingCartReport> reports = Await.result(reportRepository
+                .findByIds(Arrays.asList(firstCartId, UUID.randomUUID().toString(), secondCartId))
+                .runWith(Sink.seq(), testServer.materializer()));
+
+        Set<String> ids = reports.stream().map(ShoppingCartReport::getId).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList(firstCartId, secondCartId)), ids);
+    }
+
+    @Test
+    public void findReportsPageByPageWithinATimeRange() throws InterruptedException, ExecutionException, TimeoutException {
+        // a range of its own, since the other tests create reports now
+        Instant from = Instant.parse("2001-01-01T00:00:00Z");
+        String firstCartId = "a-" + UUID.randomUUID();
+        String secondCartId = "b-" + UUID.randomUUID();
+        String thirdCartId = UUID.randomUUID().toString();
+        feed(new ShoppingCartEntity.ItemAdded(firstCartId, "abc", 1, from));
+        feed(new ShoppingCartEntity.ItemAdded(secondCartId, "abc", 1, from));
+        feed(new ShoppingCartEntity.ItemAdded(thirdCartId, "abc", 1, from.plusSeconds(60)));
+        Instant to = from.plusSeconds(3600);
+
+        List<ShoppingCartReport> firstPage = Await.result(reportRepository
+                .findByDate(ReportRepository.DateField.CREATION, from, to, Optional.empty(), 2));
+        assertEquals(Arrays.asList(firstCartId, secondCartId),
+                firstPage.stream().map(ShoppingCartReport::getId).collect(Collectors.toList()));
+
+        ReportCursor cursor = new ReportCursor(from, secondCartId);
+        List<ShoppingCartReport> secondPage = Await.result(reportRepository
+                .findByDate(ReportRepository.DateField.CREATION, from, to, Optional.of(cursor), 2));
+        assertEquals(Collections.singletonList(thirdCartId),
+                secondPage.stream().map(ShoppingCartReport::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void countCartsCreatedAndCheckedOutPerMinute() throws InterruptedException, ExecutionException, TimeoutException {
+        CartStatisticsRepository statisticsRepository = testServer.injector().instanceOf(CartStatisticsRepository.class);
+        // a range of its own, since the other tests create carts now
+        Instant minute = Instant.parse("2002-02-02T02:02:00Z");
+        String firstCartId = UUID.randomUUID().toString();
+        String secondCartId = UUID.randomUUID().toString();
+        // created before the read side started, or whose history was deleted
+        String unknownCartId = UUID.randomUUID().toString();
+        feed(new ShoppingCartEntity.ItemAdded(firstCartId, "abc", 1, minute.plusSeconds(10)));
+        feed(new ShoppingCartEntity.ItemAdded(firstCartId, "def", 1, minute.plusSeconds(20)));
+        feed(new ShoppingCartEntity.ItemAdded(secondCartId, "abc", 1, minute.plusSeconds(30)));
+        feed(new ShoppingCartEntity.CheckedOut(firstCartId, Optional.empty(), minute.plusSeconds(70)));
+        feed(new ShoppingCartEntity.CheckedOut(secondCartId, Optional.empty(), minute.plusSeconds(110)));
+        feed(new ShoppingCartEntity.CheckedOut(unknownCartId, Optional.empty(), minute.plusSeconds(115)));
+
+        List<CartStatisticsBucket> buckets = Await.result(statisticsRepository.findByMinute(minute, minute.plusSeconds(3600)));
+        assertEquals(2, buckets.size());
+        assertEquals(minute, buckets.get(0).getMinute());
+        assertEquals(2, buckets.get(0).getCreated());
+        assertEquals(0, buckets.get(0).getCheckedOut());
+        assertEquals(minute.plusSeconds(60), buckets.get(1).getMinute());
+        assertEquals(0, buckets.get(1).getCreated());
+        assertEquals(3, buckets.get(1).getCheckedOut());
+        assertEquals(2, buckets.get(1).getTimedCheckouts());
+        assertEquals(60_000 + 80_000, buckets.get(1).getTimeToCheckoutMillis());
+    }
+
+    @Test
+    public void findTheOpenCartsContainingAnItem() throws InterruptedException, ExecutionException, TimeoutException {
+        OpenCartItemRepository openCartItemRepository = testServer.injector().instanceOf(OpenCartItemRepository.class);
+        String itemId = UUID.randomUUID().toString();
+        String openCartId = UUID.randomUUID().toString();
+        String removedCartId = UUID.randomUUID().toString();
+        String checkedOutCartId = UUID.randomUUID().toString();
+        Instant eventTime = Instant.now();
+        feed(new ShoppingCartEntity.ItemAdded(openCartId, itemId, 1, eventTime));
+        feed(new ShoppingCartEntity.ItemAdded(removedCartId, itemId, 1, eventTime));
+        feed(new ShoppingCartEntity.ItemRemoved(removedCartId, itemId, eventTime));
+        feed(new ShoppingCartEntity.ItemAdded(checkedOutCartId, itemId, 1, eventTime));
+        feed(new ShoppingCartEntity.CheckedOut(checkedOutCartId, Optional.empty(), eventTime));
+
+        List<String> cartIds = Await.result(openCartItemRepository.findCartIds(itemId)
+                .runWith(Sink.seq(), testServer.materializer()));
+        assertEquals(Collections.singletonList(openCartId), cartIds);
+    }
+
+    @Test
+    public void skipTheCheckoutOfAnUnknownCart() throws InterruptedException, ExecutionException, TimeoutException {
+        // as seen by a read side started after the history of the cart was deleted
+        String cartId = UUID.randomUUID().toString();
+        feed(new ShoppingCartEntity.CheckedOut(cartId, Optional.empty(), Instant.now()));
+
+        assertNull("no report is created", Await.result(reportRepository.findById(cartId)));
+    }
+
+    @Test
+    public void deleteTheReportOfAnExpiredCart() throws InterruptedException, ExecutionException, TimeoutException {
+        String cartId = UUID.randomUUID().toString();
+        Instant eventTime = Instant.now();
+        feed(new ShoppingCartEntity.ItemAdded(cartId, "abc", 1, eventTime));
+        feed(new ShoppingCartEntity.CartExpired(cartId, eventTime.plusSeconds(60)));
+
+        assertNull("the report is deleted", Await.result(reportRepository.findById(cartId)));
+    }
+
+    @Test
+    public void trackTheActivityOfTheCarts() throws InterruptedException, ExecutionException, TimeoutException {
+        CartActivityRepository activityRepository = testServer.injector().instanceOf(CartActivityRepository.class);
+        // long ago, so that these carts are the first idle and closed ones
+        Instant eventTime = Instant.parse("1990-01-01T00:00:00Z");
+        String idleCartId = UUID.randomUUID().toString();
+        String checkedOutCartId = UUID.randomUUID().toString();
+        feed(new ShoppingCartEntity.ItemAdded(idleCartId, "abc", 1, eventTime));
+        feed(new ShoppingCartEntity.ItemAdded(checkedOutCartId, "abc", 1, eventTime));
+        feed(new ShoppingCartEntity.CheckedOut(checkedOutCartId, Optional.empty(), eventTime.plusSeconds(60)));
+
+        assertEquals(Collections.singletonList(idleCartId),
+                Await.result(activityRepository.findIdleSince(eventTime.plusSeconds(1), 10)));
+        assertEquals(Collections.singletonList(checkedOutCartId),
+                Await.result(activityRepository.findClosedBefore(eventTime.plusSeconds(120), 10)));
+
+        Await.result(activityRepository.deleteHistory(checkedOutCartId));
+        assertEquals(Collections.emptyList(), Await.result(activityRepository.findClosedBefore(eventTime.plusSeconds(120), 10)));
+    }
+
 
     private void feed(ShoppingCartEntity.Event event) throws InterruptedException, ExecutionException, TimeoutException {
         Await.result(testDriver.feed(event, Offset.sequence(offset.getAndIncrement())));
@@ -0,0 +1,184 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.typed.javadsl.Adapter;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+import com.example.shoppingcart.api.ShoppingCartItem;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.pcollections.TreePVector;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+
+public class ShoppingCartSerializerTest {
+
+    /**
+     * Identifiers of the Jackson serializers that wrote the journal rows and snapshots before the binary format.
+     */
+    private static final int JACKSON_JSON_IDENTIFIER = 31;
+    private static final int JACKSON_JSON_COMPRESSED_IDENTIFIER = 1000005;
+
+    // application.conf holds the serialization bindings
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(
+            ConfigFactory.parseString("shopping-cart.serialization.write-version = 5").withFallback(ConfigFactory.load()));
+
+    private final Serialization serialization = SerializationExtension.get(Adapter.toClassic(testKit.system()));
+
+    private final Instant eventTime = Instant.parse("2020-03-01T10:15:30.123456789Z");
+
+    @Test
+    public void shouldRoundTripEvents() {
+        assertRoundTrip(new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime));
+        assertRoundTrip(new ShoppingCartEntity.ItemRemoved("cart", "item", eventTime));
+        assertRoundTrip(new ShoppingCartEntity.ItemQuantityAdjusted("cart", "item", 5, eventTime));
+        assertRoundTrip(new ShoppingCartEntity.CheckedOut("cart", Optional.empty(), eventTime));
+        assertRoundTrip(new ShoppingCartEntity.CheckedOut("cart", Optional.of(CartItems.EMPTY.plus("a", 1).plus("b", 2)), eventTime));
+        assertRoundTrip(new ShoppingCartEntity.CartExpired("cart", eventTime));
+        assertRoundTrip(new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime, Optional.of("key")));
+        assertRoundTrip(new ShoppingCartEntity.ItemRemoved("cart", "item", eventTime, Optional.of("key")));
+        assertRoundTrip(new ShoppingCartEntity.ItemQuantityAdjusted("cart", "item", 5, eventTime, Optional.of("key")));
+        assertRoundTrip(new ShoppingCartEntity.CheckedOut("cart", Optional.of(CartItems.EMPTY.plus("a", 1)), eventTime, Optional.of("key")));
+    }
+
+    @Test
+    public void shouldRoundTripState() {
+        assertRoundTrip(ShoppingCartEntity.ShoppingCart.EMPTY);
+        assertRoundTrip(ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("b", 2).updateItem("a", 1).checkout(eventTime));
+        assertRoundTrip(ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1).usedAt(eventTime).expire(eventTime.plusSeconds(60)));
+        assertRoundTrip(ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1).accepted(Optional.of("a")).accepted(Optional.of("b")));
+    }
+
+    @Test
+    public void shouldReadEventsWithoutIdempotencyKey() {
+        // ItemRemoved as written by the fourth version of the binary format, before it carried the idempotency key
+        byte[] version4 = new byte[]{4, 0, 4, 'c', 'a', 'r', 't', 0, 4, 'i', 't', 'e', 'm', 0, 0, 0, 0, 94, 91, -117, 66, 7, 91, -51, 21};
+        Object event = serialization.deserialize(version4, ShoppingCartSerializer.IDENTIFIER, "IR").get();
+
+        Assert.assertEquals(new ShoppingCartEntity.ItemRemoved("cart", "item", eventTime), event);
+    }
+
+    @Test
+    public void shouldReadStatesWithoutActivity() {
+        // ShoppingCart as written by the third version of the binary format, before it kept its last activity
+        byte[] version3 = new byte[]{3, 0, 0, 0, 1, 0, 1, 'a', 0, 0, 0, 1, 0};
+        Object state = serialization.deserialize(version3, ShoppingCartSerializer.IDENTIFIER, "SC").get();
+
+        Assert.assertEquals(ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1), state);
+    }
+
+    @Test
+    public void shouldRoundTripCommandsAndReplies() {
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+        TestProbe<ShoppingCartEntity.Summary> getProbe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        assertRoundTrip(new ShoppingCartEntity.AddItem("item", 2, probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.AddItems(
+                TreePVector.from(Arrays.asList(new ShoppingCartItem("a", 1), new ShoppingCartItem("b", 2))), probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.RemoveItem("item", probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.AdjustItemQuantity("item", 3, probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.Expire(eventTime, probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.AddItem("item", 2, Optional.of("key"), probe.ref()));
+        assertRoundTrip(new ShoppingCartEntity.AdjustItemQuantity("item", 3, Optional.of("key"), probe.ref()));
+
+        ShoppingCartEntity.Get get = (ShoppingCartEntity.Get) roundTrip(new ShoppingCartEntity.Get(getProbe.ref()));
+        Assert.assertEquals(getProbe.ref(), get.replyTo);
+        ShoppingCartEntity.Checkout checkout = (ShoppingCartEntity.Checkout) roundTrip(new ShoppingCartEntity.Checkout(probe.ref()));
+        Assert.assertEquals(probe.ref(), checkout.replyTo);
+        checkout = (ShoppingCartEntity.Checkout) roundTrip(new ShoppingCartEntity.Checkout(Optional.of("key"), probe.ref()));
+        Assert.assertEquals(Optional.of("key"), checkout.getIdempotencyKey());
+
+        ShoppingCartEntity.Summary summary = new ShoppingCartEntity.Summary(
+                CartItems.EMPTY.plus("a", 1), true, Optional.of(eventTime), 7);
+        assertRoundTrip(summary);
+        assertRoundTrip(new ShoppingCartEntity.Accepted(summary));
+        assertRoundTrip(new ShoppingCartEntity.Rejected("Cannot checkout empty shopping cart"));
+        assertRoundTrip(new ShoppingCartEntity.CartChanged("cart", summary));
+    }
+
+    @Test
+    public void shouldWriteTheOldestVersionHoldingTheFields() {
+        Assert.assertEquals(1, serialization.serialize(new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime)).get()[0]);
+        Assert.assertEquals(5, serialization.serialize(
+                new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime, Optional.of("key"))).get()[0]);
+        Assert.assertEquals(4, serialization.serialize(
+                ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1).usedAt(eventTime)).get()[0]);
+    }
+
+    @Test
+    public void shouldNotWriteAVersionAboveTheConfiguredOne() throws Exception {
+        ShoppingCartSerializer serializer = new ShoppingCartSerializer((ExtendedActorSystem) Adapter.toClassic(testKit.system()), 4);
+        ShoppingCartEntity.ItemAdded event = new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime, Optional.of("key"));
+
+        byte[] bytes = serializer.toBinary(event);
+
+        // read as a node of the previous build would, without the idempotency key
+        Assert.assertEquals(4, bytes[0]);
+        Assert.assertEquals(new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime), serializer.fromBinary(bytes, "IA"));
+    }
+
+    @Test
+    public void shouldReadEventsWrittenAsJson() {
+        String json = "{\"shoppingCartId\":\"cart\",\"itemId\":\"item\",\"quantity\":2,\"eventTime\":\"2020-03-01T10:15:30.123456789Z\"}";
+
+        Object event = serialization.deserialize(json.getBytes(StandardCharsets.UTF_8), JACKSON_JSON_IDENTIFIER,
+                ShoppingCartEntity.ItemAdded.class.getName()).get();
+
+        Assert.assertEquals(new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime), event);
+    }
+
+    @Test
+    public void shouldReadCheckedOutEventsWithoutItems() {
+        // CheckedOut as written by the first version of the binary format, before it carried the items
+        byte[] version1 = new byte[]{1, 0, 4, 'c', 'a', 'r', 't', 0, 0, 0, 0, 94, 91, -117, 66, 7, 91, -51, 21};
+        Object event = serialization.deserialize(version1, ShoppingCartSerializer.IDENTIFIER, "CO").get();
+
+        Assert.assertEquals(new ShoppingCartEntity.CheckedOut("cart", Optional.empty(), eventTime), event);
+
+        String json = "{\"shoppingCartId\":\"cart\",\"eventTime\":\"2020-03-01T10:15:30.123456789Z\"}";
+        Object jsonEvent = serialization.deserialize(json.getBytes(StandardCharsets.UTF_8), JACKSON_JSON_IDENTIFIER,
+                ShoppingCartEntity.CheckedOut.class.getName()).get();
+
+        Assert.assertEquals(new ShoppingCartEntity.CheckedOut("cart", Optional.empty(), eventTime), jsonEvent);
+    }
+
+    @Test
+    public void shouldReadSnapshotsWrittenAsJson() {
+        String json = "{\"items\":{\"a\":1,\"b\":2},\"checkoutDate\":\"2020-03-01T10:15:30.123456789Z\"}";
+
+        Object state = serialization.deserialize(json.getBytes(StandardCharsets.UTF_8), JACKSON_JSON_COMPRESSED_IDENTIFIER,
+                ShoppingCartEntity.ShoppingCart.class.getName()).get();
+
+        Assert.assertEquals(ShoppingCartEntity.ShoppingCart.EMPTY.updateItem("a", 1).updateItem("b", 2).checkout(eventTime), state);
+    }
+
+    @Test
+    public void shouldBeSmallerThanJson() {
+        ShoppingCartEntity.ItemAdded event = new ShoppingCartEntity.ItemAdded("cart", "item", 2, eventTime);
+        Serializer json = serialization.serializerByIdentity().apply(JACKSON_JSON_IDENTIFIER);
+
+        Assert.assertTrue(serialization.serialize(event).get().length < json.toBinary(event).length);
+    }
+
+    private void assertRoundTrip(Object message) {
+        Assert.assertEquals(message, roundTrip(message));
+    }
+
+    private Object roundTrip(Object message) {
+        Serializer serializer = serialization.findSerializerFor(message);
+        Assert.assertEquals(ShoppingCartSerializer.IDENTIFIER, serializer.identifier());
+
+        byte[] bytes = serializer.toBinary(message);
+        return serialization.deserialize(bytes, serializer.identifier(), Serializers.manifestFor(serializer, message)).get();
+    }
+}
@@ -4,6 +4,7 @@ import akka.Done;
 import akka.japi.Pair;
 import com.example.shoppingcart.api.Quantity;
 import com.example.shoppingcart.api.ShoppingCartItem;
+import com.example.shoppingcart.api.ShoppingCartLookup;
 import com.example.shoppingcart.api.ShoppingCartService;
 import com.example.shoppingcart.api.ShoppingCartView;
 import com.lightbend.lagom.javadsl.api.transport.ResponseHeader;
@@ -13,6 +14,8 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -49,6 +52,50 @@ public class ShoppingCartServiceTest {
         Assert.assertEquals(responseHeader.status(), ResponseHeader.OK.status());
     }
 
+    @Test
+    public void shouldAddSeveralItems() {
+        String cartId = randomId();
+        String firstItemId = randomId();
+        String secondItemId = randomId();
+
+        List<ShoppingCartItem> items = Arrays.asList(new ShoppingCartItem(firstItemId, 2), new ShoppingCartItem(secondItemId, 1));
+        Pair<ResponseHeader, ShoppingCartView> result = Await.result(shoppingCartService.addItems(cartId).withResponseHeader().invoke(items));
+        ResponseHeader responseHeader = result.first();
+        ShoppingCartView cartView = result.second();
+
+        Assert.assertEquals(responseHeader.status(), ResponseHeader.OK.status());
+        Assert.assertTrue(cartView.hasItem(firstItemId));
+        Assert.assertTrue(cartView.hasItem(secondItemId));
+    }
+
+    @Test
+    public void shouldChangeTheETagWhenTheCartChanges() {
+        String cartId = randomId();
+
+        Pair<ResponseHeader, ShoppingCartView> before = Await.result(shoppingCartService.get(cartId).withResponseHeader().invoke());
+        Await.result(shoppingCartService.addItem(cartId).invoke(new ShoppingCartItem(randomId(), 2)));
+        Pair<ResponseHeader, ShoppingCartView> after = Await.result(shoppingCartService.get(cartId).withResponseHeader().invoke());
+
+        Assert.assertEquals(Optional.of("\"0\""), before.first().getHeader("ETag"));
+        Assert.assertEquals(Optional.of("\"1\""), after.first().getHeader("ETag"));
+    }
+
+    @Test
+    public void shouldGetSeveralCarts() {
+        String firstCartId = randomId();
+        String secondCartId = randomId();
+        String itemId = randomId();
+        Await.result(shoppingCartService.addItem(firstCartId).invoke(new ShoppingCartItem(itemId, 2)));
+
+        List<ShoppingCartLookup> lookups = Await.result(shoppingCartService.batchGet().invoke(Arrays.asList(firstCartId, secondCartId)));
+
+        Assert.assertEquals(2, lookups.size());
+        Assert.assertEquals(firstCartId, lookups.get(0).getId());
+        Assert.assertTrue(lookups.get(0).getCart().get().hasItem(itemId));
+        Assert.assertEquals(secondCartId, lookups.get(1).getId());
+        Assert.assertTrue(lookups.get(1).getCart().get().getItems().isEmpty());
+    }
+
     @Test
     public void shouldRemoveAnItem() {
         String cartId = randomId();
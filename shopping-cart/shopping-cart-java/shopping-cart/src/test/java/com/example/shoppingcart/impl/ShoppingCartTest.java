@@ -3,11 +3,21 @@ package com.example.shoppingcart.impl;
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
 import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.Adapter;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.EntityContext;
+import com.typesafe.config.ConfigFactory;
+import com.example.shoppingcart.api.ShoppingCartItem;
 import org.junit.Assert;
 import org.junit.ClassRule;
 import org.junit.Test;
+import org.pcollections.TreePVector;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
 import java.util.UUID;
 
 public class ShoppingCartTest {
@@ -21,20 +31,52 @@ public class ShoppingCartTest {
                     + UUID.randomUUID().toString()
                     + "\" \n";
 
-    private static final String config = inmemConfig + snapshotConfig;
+    // the events only keep their idempotency keys once the version 5 of the binary format is written
+    private static final String serializationConfig = "shopping-cart.serialization.write-version = 5 \n";
+
+    private static final String config = inmemConfig + snapshotConfig + serializationConfig;
 
     @ClassRule
-    public static final TestKitJunitResource testKit = new TestKitJunitResource(config);
+    public static final TestKitJunitResource testKit = new TestKitJunitResource(
+            ConfigFactory.parseString(config).withFallback(ConfigFactory.load()));
+
+    private final SnapshotPolicy snapshotPolicy = SnapshotPolicy.fromConfig(testKit.system().settings().config());
+
+    private final Passivation passivation =
+            Passivation.fromConfig(testKit.system().settings().config(), ShoppingCartMetrics.get(testKit.system()));
+
+    // stands for the distributed pub sub mediator, which needs a cluster
+    private final TestProbe<Object> mediator = testKit.createTestProbe();
+
+    private final CartChangeFeed changeFeed = new CartChangeFeed(testKit::spawn,
+            Adapter.toClassic(mediator.ref()), 16, Duration.ofSeconds(3), Duration.ofSeconds(2));
+
+    // stands for the popular items of this node
+    private final TestProbe<PopularItems.Command> popularItems = testKit.createTestProbe();
 
     private String randomId() {
         return UUID.randomUUID().toString();
     }
 
     private ActorRef<ShoppingCartEntity.Command> createTestCart(String cartId) {
+        return createTestCart(cartId, snapshotPolicy);
+    }
+
+    private ActorRef<ShoppingCartEntity.Command> createTestCart(String cartId, SnapshotPolicy snapshotPolicy) {
         // Unit testing the Aggregate requires an EntityContext but starting
         // a complete Akka Cluster or sharding the actors is not requried.
         // The actorRef to the shard can be null as it won't be used.
-        return testKit.spawn(ShoppingCartEntity.create(new EntityContext<>(ShoppingCartEntity.ENTITY_TYPE_KEY, cartId, null)));
+        return testKit.spawn(ShoppingCartEntity.create(new EntityContext<>(ShoppingCartEntity.ENTITY_TYPE_KEY, cartId, null), snapshotPolicy, passivation, changeFeed, popularItems.ref()));
+    }
+
+    private ActorRef<ShoppingCartEntity.Command> createTestCart(String cartId, int groupCommitMaxCommands) {
+        return testKit.spawn(ShoppingCartEntity.create(new EntityContext<>(ShoppingCartEntity.ENTITY_TYPE_KEY, cartId, null),
+                snapshotPolicy, passivation, changeFeed, popularItems.ref(), groupCommitMaxCommands));
+    }
+
+    private ActorRef<ShoppingCartEntity.Command> createTestCart(String cartId, Passivation passivation,
+                                                                ActorRef<ClusterSharding.ShardCommand> shard) {
+        return testKit.spawn(ShoppingCartEntity.create(new EntityContext<>(ShoppingCartEntity.ENTITY_TYPE_KEY, cartId, shard), snapshotPolicy, passivation, changeFeed, popularItems.ref()));
     }
     
     @Test
@@ -50,6 +92,103 @@ public class ShoppingCartTest {
         Assert.assertTrue(accepted.getSummary().getItems().containsKey(itemId));
     }
 
+    @Test
+    public void shouldReturnTheSequenceNumberInTheSummary() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId());
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+        TestProbe<ShoppingCartEntity.Summary> getProbe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.Get(getProbe.ref()));
+        Assert.assertEquals(0, getProbe.receiveMessage().getSequenceNr());
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItems(
+                TreePVector.from(Arrays.asList(new ShoppingCartItem(randomId(), 1), new ShoppingCartItem(randomId(), 3))),
+                probe.ref()));
+        ShoppingCartEntity.Accepted accepted = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+        Assert.assertEquals(2, accepted.getSummary().getSequenceNr());
+
+        shoppingCart.tell(new ShoppingCartEntity.Get(getProbe.ref()));
+        Assert.assertEquals(2, getProbe.receiveMessage().getSequenceNr());
+    }
+
+    @Test
+    public void shouldPublishTheChangesOfTheCart() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        DistributedPubSubMediator.Publish publish = mediator.expectMessageClass(DistributedPubSubMediator.Publish.class);
+        ShoppingCartEntity.CartChanged changed = (ShoppingCartEntity.CartChanged) publish.msg();
+        Assert.assertEquals(CartChangeFeed.topic(cartId), publish.topic());
+        Assert.assertEquals(cartId, changed.getCartId());
+        Assert.assertEquals(10, (int) changed.getSummary().getItems().get(itemId));
+        Assert.assertEquals(1, changed.getSummary().getSequenceNr());
+
+        PopularItems.Count count = popularItems.expectMessageClass(PopularItems.Count.class);
+        Assert.assertEquals(itemId, ((ShoppingCartEntity.ItemAdded) count.events.get(0)).getItemId());
+    }
+
+    @Test
+    public void shouldAddSeveralItemsAtOnce() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        String firstItemId = randomId();
+        String secondItemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItems(
+                TreePVector.from(Arrays.asList(new ShoppingCartItem(firstItemId, 1), new ShoppingCartItem(secondItemId, 3))),
+                probe.ref()));
+
+        ShoppingCartEntity.Accepted accepted = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+        Assert.assertEquals(1, (int) accepted.getSummary().getItems().get(firstItemId));
+        Assert.assertEquals(3, (int) accepted.getSummary().getItems().get(secondItemId));
+    }
+
+    @Test
+    public void shouldRejectTheWholeBatchWhenOneItemIsInvalid() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        // First add an item
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        // Then add a batch containing the same item again
+        String anotherItemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItems(
+                TreePVector.from(Arrays.asList(new ShoppingCartItem(anotherItemId, 1), new ShoppingCartItem(itemId, 3))),
+                probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+
+        // And check that no item of the batch was added
+        TestProbe<ShoppingCartEntity.Summary> getProbe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+        shoppingCart.tell(new ShoppingCartEntity.Get(getProbe.ref()));
+        ShoppingCartEntity.Summary summary = getProbe.receiveMessage();
+        Assert.assertFalse(summary.getItems().containsKey(anotherItemId));
+        Assert.assertEquals(10, (int) summary.getItems().get(itemId));
+    }
+
+    @Test
+    public void shouldRejectABatchWithDuplicatedItems() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItems(
+                TreePVector.from(Arrays.asList(new ShoppingCartItem(itemId, 1), new ShoppingCartItem(itemId, 2))),
+                probe.ref()));
+
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
     @Test
     public void shouldRemoveAnItem() {
         String cartId = randomId();
@@ -223,6 +362,53 @@ public class ShoppingCartTest {
         probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
     }
 
+    @Test
+    public void shouldExpireAnIdleCart() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId());
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.Expire(Instant.now(), probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        // expiring is idempotent, but the cart can't be changed anymore
+        shoppingCart.tell(new ShoppingCartEntity.Expire(Instant.now(), probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+        shoppingCart.tell(new ShoppingCartEntity.Checkout(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldNotExpireACartUsedSinceTheGivenTime() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId());
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+        Instant idleSince = Instant.now().minusSeconds(60);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.Expire(idleSince, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldNotExpireACheckedOutCart() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId());
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shoppingCart.tell(new ShoppingCartEntity.Checkout(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.Expire(Instant.now(), probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
     @Test
     public void shouldFailWhenTryingToCheckOutAShoppingCartThatIsCheckedOutAlready() {
         String cartId = randomId();
@@ -253,4 +439,216 @@ public class ShoppingCartTest {
         shoppingCart.tell(new ShoppingCartEntity.Checkout(probe.ref()));
         probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
     }
+
+    @Test
+    public void shouldAcceptARetriedAddItemWithTheSameIdempotencyKey() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, Optional.of("key-1"), probe.ref()));
+        ShoppingCartEntity.Accepted accepted = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+
+        // the retry doesn't change the cart
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, Optional.of("key-1"), probe.ref()));
+        Assert.assertEquals(accepted, probe.receiveMessage());
+
+        // without the key, or with another one, the item was already added
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, Optional.of("key-2"), probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldAcceptARetriedCheckoutWithTheSameIdempotencyKeyAfterARestart() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shoppingCart.tell(new ShoppingCartEntity.Checkout(Optional.of("checkout"), probe.ref()));
+        ShoppingCartEntity.Accepted accepted = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+
+        // the keys are recovered from the events
+        testKit.stop(shoppingCart);
+        ActorRef<ShoppingCartEntity.Command> restarted = createTestCart(cartId);
+        restarted.tell(new ShoppingCartEntity.Checkout(Optional.of("checkout"), probe.ref()));
+        Assert.assertEquals(accepted, probe.receiveMessage());
+
+        restarted.tell(new ShoppingCartEntity.Checkout(Optional.of("another checkout"), probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldOnlyRememberTheMostRecentIdempotencyKeys() {
+        ShoppingCartEntity.ShoppingCart cart = ShoppingCartEntity.ShoppingCart.EMPTY;
+        for (int i = 0; i <= ShoppingCartEntity.ShoppingCart.MAX_RECENT_KEYS; i++) {
+            cart = cart.accepted(Optional.of("key-" + i));
+        }
+
+        Assert.assertEquals(ShoppingCartEntity.ShoppingCart.MAX_RECENT_KEYS, cart.getRecentKeys().size());
+        Assert.assertFalse(cart.hasAccepted("key-0"));
+        Assert.assertTrue(cart.hasAccepted("key-1"));
+        Assert.assertTrue(cart.hasAccepted("key-" + ShoppingCartEntity.ShoppingCart.MAX_RECENT_KEYS));
+    }
+
+    @Test
+    public void shouldReplyToEachCommandPersistedInTheSameBatch() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), 10);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 1, probe.ref()));
+        for (int quantity = 2; quantity <= 5; quantity++) {
+            shoppingCart.tell(new ShoppingCartEntity.AdjustItemQuantity(itemId, quantity, probe.ref()));
+        }
+        // validated against the pending changes
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 1, probe.ref()));
+
+        for (int sequenceNr = 1; sequenceNr <= 5; sequenceNr++) {
+            ShoppingCartEntity.Accepted accepted = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+            Assert.assertEquals(sequenceNr, accepted.getSummary().getSequenceNr());
+            Assert.assertEquals(sequenceNr, (int) accepted.getSummary().getItems().get(itemId));
+        }
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldHandleOtherCommandsOnceThePendingChangesArePersisted() {
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), 10);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+        TestProbe<ShoppingCartEntity.Summary> getProbe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        String itemId = randomId();
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(itemId, 1, probe.ref()));
+        shoppingCart.tell(new ShoppingCartEntity.AdjustItemQuantity(itemId, 2, probe.ref()));
+        shoppingCart.tell(new ShoppingCartEntity.Get(getProbe.ref()));
+        shoppingCart.tell(new ShoppingCartEntity.Checkout(probe.ref()));
+        shoppingCart.tell(new ShoppingCartEntity.AdjustItemQuantity(itemId, 3, probe.ref()));
+
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        Assert.assertEquals(2, (int) getProbe.receiveMessage().getItems().get(itemId));
+        ShoppingCartEntity.Accepted checkedOut = (ShoppingCartEntity.Accepted) probe.receiveMessage();
+        Assert.assertTrue(checkedOut.getSummary().isCheckedOut());
+        probe.expectMessageClass(ShoppingCartEntity.Rejected.class);
+    }
+
+    @Test
+    public void shouldRecoverTheChangesPersistedInBatches() {
+        String cartId = randomId();
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(cartId, 2);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+        TestProbe<ShoppingCartEntity.Summary> getProbe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        for (int i = 0; i < 5; i++) {
+            shoppingCart.tell(new ShoppingCartEntity.AddItem("item-" + i, i + 1, probe.ref()));
+        }
+        for (int i = 0; i < 5; i++) {
+            probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        }
+
+        testKit.stop(shoppingCart);
+        createTestCart(cartId).tell(new ShoppingCartEntity.Get(getProbe.ref()));
+        ShoppingCartEntity.Summary summary = getProbe.receiveMessage();
+        Assert.assertEquals(5, summary.getItems().size());
+        Assert.assertEquals(5, summary.getSequenceNr());
+    }
+
+    @Test
+    public void shouldSnapshotLargeCartsMoreOften() {
+        ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+        long snapshotsBefore = metrics.count("snapshot.triggered-by-state-size");
+
+        // Every state is larger than zero bytes, so a snapshot is due every two events
+        SnapshotPolicy policy = new SnapshotPolicy(100, 2, 2, 0, Duration.ofMinutes(1));
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), policy);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        Assert.assertEquals(snapshotsBefore + 1, metrics.count("snapshot.triggered-by-state-size"));
+    }
+
+    @Test
+    public void shouldNotSnapshotSmallCartsBeforeTheEventCountIsReached() {
+        ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+        long snapshotsBefore = metrics.count("snapshot.triggered-by-state-size");
+
+        SnapshotPolicy policy = new SnapshotPolicy(100, 2, 2, 1024 * 1024, Duration.ofMinutes(1));
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), policy);
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 10, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        Assert.assertEquals(snapshotsBefore, metrics.count("snapshot.triggered-by-state-size"));
+    }
+
+    @Test
+    public void shouldPassivateIdleCarts() {
+        ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+        long passivatedBefore = metrics.count("entities.passivated.idle");
+
+        Passivation passivation = new Passivation(Duration.ofMillis(200), Duration.ofMinutes(1), 0, metrics);
+        TestProbe<ClusterSharding.ShardCommand> shard = testKit.createTestProbe(ClusterSharding.ShardCommand.class);
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), passivation, shard.ref());
+        TestProbe<ShoppingCartEntity.Summary> probe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.Get(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Summary.class);
+
+        shard.expectMessage(new ClusterSharding.Passivate<>(shoppingCart));
+        Assert.assertEquals(passivatedBefore + 1, metrics.count("entities.passivated.idle"));
+    }
+
+    @Test
+    public void shouldPassivateCheckedOutCartsSooner() {
+        ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+        long passivatedBefore = metrics.count("entities.passivated.checked-out");
+
+        Passivation passivation = new Passivation(Duration.ofMinutes(1), Duration.ofMillis(200), 0, metrics);
+        TestProbe<ClusterSharding.ShardCommand> shard = testKit.createTestProbe(ClusterSharding.ShardCommand.class);
+        ActorRef<ShoppingCartEntity.Command> shoppingCart = createTestCart(randomId(), passivation, shard.ref());
+        TestProbe<ShoppingCartEntity.Confirmation> probe = testKit.createTestProbe(ShoppingCartEntity.Confirmation.class);
+
+        shoppingCart.tell(new ShoppingCartEntity.AddItem(randomId(), 1, probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+        shard.expectNoMessage(Duration.ofMillis(300));
+
+        shoppingCart.tell(new ShoppingCartEntity.Checkout(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Accepted.class);
+
+        shard.expectMessage(new ClusterSharding.Passivate<>(shoppingCart));
+        Assert.assertEquals(passivatedBefore + 1, metrics.count("entities.passivated.checked-out"));
+    }
+
+    @Test
+    public void shouldPassivateTheLeastRecentlyUsedCart() {
+        Passivation passivation = new Passivation(Duration.ofMinutes(1), Duration.ofMinutes(1), 2, ShoppingCartMetrics.get(testKit.system()));
+        TestProbe<ClusterSharding.ShardCommand> shard = testKit.createTestProbe(ClusterSharding.ShardCommand.class);
+        TestProbe<ShoppingCartEntity.Summary> probe = testKit.createTestProbe(ShoppingCartEntity.Summary.class);
+
+        ActorRef<ShoppingCartEntity.Command> first = createTestCart(randomId(), passivation, shard.ref());
+        first.tell(new ShoppingCartEntity.Get(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Summary.class);
+        ActorRef<ShoppingCartEntity.Command> second = createTestCart(randomId(), passivation, shard.ref());
+        second.tell(new ShoppingCartEntity.Get(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Summary.class);
+        first.tell(new ShoppingCartEntity.Get(probe.ref()));
+        probe.expectMessageClass(ShoppingCartEntity.Summary.class);
+        shard.expectNoMessage(Duration.ofMillis(100));
+
+        // the second cart is now the least recently used one
+        createTestCart(randomId(), passivation, shard.ref());
+        shard.expectMessage(new ClusterSharding.Passivate<>(second));
+    }
 }
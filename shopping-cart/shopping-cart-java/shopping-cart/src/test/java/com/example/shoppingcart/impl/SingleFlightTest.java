@@ -0,0 +1,84 @@
+package com.example.shoppingcart.impl;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource();
+
+    private final ShoppingCartMetrics metrics = ShoppingCartMetrics.get(testKit.system());
+
+    // every test uses its own counters since the metrics are shared by the whole actor system
+    private final String prefix = "test." + UUID.randomUUID();
+
+    @Test
+    public void shouldShareALoadInFlight() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(10, metrics, prefix);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> loading = new CompletableFuture<>();
+
+        CompletionStage<String> first = singleFlight.load("cart", () -> {
+            loads.incrementAndGet();
+            return loading;
+        });
+        CompletionStage<String> second = singleFlight.load("cart", () -> {
+            loads.incrementAndGet();
+            return loading;
+        });
+        loading.complete("summary");
+
+        Assert.assertEquals("summary", first.toCompletableFuture().get());
+        Assert.assertEquals("summary", second.toCompletableFuture().get());
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, metrics.count(prefix + ".misses"));
+        Assert.assertEquals(1, metrics.count(prefix + ".hits"));
+    }
+
+    @Test
+    public void shouldStartANewLoadOnceTheLoadInFlightCompleted() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(10, metrics, prefix);
+
+        Assert.assertEquals("first", singleFlight.load("cart", () -> CompletableFuture.completedFuture("first")).toCompletableFuture().get());
+        Assert.assertEquals("second", singleFlight.load("cart", () -> CompletableFuture.completedFuture("second")).toCompletableFuture().get());
+        Assert.assertEquals(0, singleFlight.inFlight());
+        Assert.assertEquals(2, metrics.count(prefix + ".misses"));
+    }
+
+    @Test
+    public void shouldNotKeepFailedLoads() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(10, metrics, prefix);
+        CompletableFuture<String> loading = new CompletableFuture<>();
+
+        CompletionStage<String> result = singleFlight.load("cart", () -> loading);
+        loading.completeExceptionally(new IllegalStateException("timeout"));
+
+        try {
+            result.toCompletableFuture().get();
+            Assert.fail("The load should have failed");
+        } catch (InterruptedException | ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, singleFlight.inFlight());
+    }
+
+    @Test
+    public void shouldNotCoalesceMoreKeysThanTheLimit() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>(1, metrics, prefix);
+
+        singleFlight.load("first", CompletableFuture::new);
+        singleFlight.load("second", CompletableFuture::new);
+
+        Assert.assertEquals(1, singleFlight.inFlight());
+        Assert.assertEquals(1, metrics.count(prefix + ".bypassed"));
+    }
+}